@@ -0,0 +1,238 @@
+package Server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One setBlocks request: single tile edits and fill / replace operations over
+ * tile rectangles. Where operations overlap the later one wins; both parsers
+ * add all single edits first, then fills, then replaces (JSON) or the
+ * operations in frame order (binary), so a fill overrides edits in the same
+ * request rather than the other way round.
+ *
+ * The server groups them by chunk ({@link #byChunk}), so every affected chunk is
+ * read, changed, versioned, marked dirty and broadcast once, however many of the
+ * operations touch it. Since edits are applied on the tick, all chunks of one
+ * request land in the same edit-buffer flush (one transaction with SQLite).
+ *
+ * A request may hold at most {@link #MAX_OPS} operations covering at most
+ * {@link #MAX_TILES} tiles in total (-Dtyls.maxBulkEditTiles); a request over
+ * either limit is rejected as a whole.
+ */
+public final class BlockEdits {
+    static final int SET = 0;
+    static final int FILL = 1;
+    static final int REPLACE = 2; // Only tiles equal to from
+
+    static final int MAX_OPS = 4096;
+    static final long MAX_TILES = Long.getLong("tyls.maxBulkEditTiles", 65536);
+
+    // Reply to a rejected request, in either protocol (binary clients read JSON text frames too)
+    static final String REJECTED = "{\"type\":\"error\", \"message\":\"setBlocks rejected: malformed or over "
+            + MAX_TILES + " tiles\"}";
+
+    private static final int CHUNK_SIZE = TerrainGenerator.CHUNK_SIZE;
+    private static final int STRIDE = 7; // kind, x0, y0, x1, y1, from, val
+
+    private int[] ops = new int[STRIDE * 16];
+    private int count = 0;
+    private long tiles = 0;
+
+    public int size() {
+        return count;
+    }
+
+    /** Adds a tile edit; false if it would break a limit. */
+    public boolean set(int x, int y, int val) {
+        return add(SET, x, y, x, y, 0, val);
+    }
+
+    /** Sets every tile of the inclusive rectangle; false if it would break a limit. */
+    public boolean fill(int x0, int y0, int x1, int y1, int val) {
+        return add(FILL, x0, y0, x1, y1, 0, val);
+    }
+
+    /** Sets the tiles of the inclusive rectangle that are from; false if it would break a limit. */
+    public boolean replace(int x0, int y0, int x1, int y1, int from, int val) {
+        return add(REPLACE, x0, y0, x1, y1, from, val);
+    }
+
+    private boolean add(int kind, int x0, int y0, int x1, int y1, int from, int val) {
+        long area = (Math.abs((long) x1 - x0) + 1) * (Math.abs((long) y1 - y0) + 1);
+        if (count == MAX_OPS || tiles + area > MAX_TILES) {
+            return false;
+        }
+        if (ops.length < (count + 1) * STRIDE) {
+            ops = Arrays.copyOf(ops, ops.length * 2);
+        }
+        int o = count * STRIDE;
+        ops[o] = kind;
+        ops[o + 1] = Math.min(x0, x1);
+        ops[o + 2] = Math.min(y0, y1);
+        ops[o + 3] = Math.max(x0, x1);
+        ops[o + 4] = Math.max(y0, y1);
+        ops[o + 5] = from & 0xFF;
+        ops[o + 6] = val & 0xFF;
+        count++;
+        tiles += area;
+        return true;
+    }
+
+    /** ChunkCache keys of the chunks the operations touch, each with its operations in order. */
+    public Map<Long, List<Integer>> byChunk() {
+        Map<Long, List<Integer>> chunks = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            int o = i * STRIDE;
+            int cx0 = Math.floorDiv(ops[o + 1], CHUNK_SIZE);
+            int cy0 = Math.floorDiv(ops[o + 2], CHUNK_SIZE);
+            int cx1 = Math.floorDiv(ops[o + 3], CHUNK_SIZE);
+            int cy1 = Math.floorDiv(ops[o + 4], CHUNK_SIZE);
+            for (int cy = cy0; cy <= cy1; cy++) {
+                for (int cx = cx0; cx <= cx1; cx++) {
+                    chunks.computeIfAbsent(ChunkCache.key(cx, cy), k -> new ArrayList<>()).add(i);
+                }
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Applies the given operations (from {@link #byChunk}) to the row-major tiles
+     * of chunk (cx, cy). Returns the changed tiles as (tile << 8 | value) in tile
+     * order, one per tile.
+     */
+    public int[] apply(int cx, int cy, List<Integer> indexes, byte[] chunk) {
+        byte[] before = chunk.clone();
+        int baseX = cx * CHUNK_SIZE;
+        int baseY = cy * CHUNK_SIZE;
+        for (int i : indexes) {
+            int o = i * STRIDE;
+            int lx0 = Math.max(ops[o + 1] - baseX, 0);
+            int ly0 = Math.max(ops[o + 2] - baseY, 0);
+            int lx1 = Math.min(ops[o + 3] - baseX, CHUNK_SIZE - 1);
+            int ly1 = Math.min(ops[o + 4] - baseY, CHUNK_SIZE - 1);
+            byte from = (byte) ops[o + 5];
+            byte val = (byte) ops[o + 6];
+            for (int ly = ly0; ly <= ly1; ly++) {
+                for (int lx = lx0; lx <= lx1; lx++) {
+                    int idx = ly * CHUNK_SIZE + lx;
+                    if (ops[o] != REPLACE || chunk[idx] == from) {
+                        chunk[idx] = val;
+                    }
+                }
+            }
+        }
+        int n = 0;
+        for (int idx = 0; idx < chunk.length; idx++) {
+            if (chunk[idx] != before[idx]) {
+                n++;
+            }
+        }
+        int[] changed = new int[n];
+        n = 0;
+        for (int idx = 0; idx < chunk.length; idx++) {
+            if (chunk[idx] != before[idx]) {
+                changed[n++] = idx << 8 | (chunk[idx] & 0xFF);
+            }
+        }
+        return changed;
+    }
+
+    /** True if some operation covers a chunk of the partition (PartitionRouter). */
+    public boolean touches(Partitioning partitions, int partition) {
+        for (int i = 0; i < count; i++) {
+            int o = i * STRIDE;
+            if (partitions.intersects(partition, Math.floorDiv(ops[o + 1], CHUNK_SIZE),
+                    Math.floorDiv(ops[o + 2], CHUNK_SIZE), Math.floorDiv(ops[o + 3], CHUNK_SIZE),
+                    Math.floorDiv(ops[o + 4], CHUNK_SIZE))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // --- Parsing ---
+
+    /**
+     * {"type":"setBlocks","edits":[x,y,val,...],"fill":[x0,y0,x1,y1,val,...],
+     * "replace":[x0,y0,x1,y1,from,val,...]}; any of the arrays may be missing.
+     * Applied edits first, then fills, then replaces. Null if malformed, over a
+     * limit, or if a val or from is outside 0..255.
+     */
+    public static BlockEdits parse(String message, JsonReader msg) {
+        BlockEdits edits = new BlockEdits();
+        int[] v = new int[6];
+        for (int kind = SET; kind <= REPLACE; kind++) {
+            int field = msg.find(kind == SET ? "edits" : kind == FILL ? "fill" : "replace");
+            if (field == -1) {
+                continue;
+            }
+            if (msg.kindOf(field) != JsonReader.ARRAY) {
+                return null;
+            }
+            int arity = kind == SET ? 3 : kind == FILL ? 5 : 6;
+            JsonReader walker = new JsonReader();
+            walker.walk(message, msg.valueStart(field) + 1, msg.valueEnd(field) - 1);
+            int n = 0;
+            for (int k = walker.next(); k != JsonReader.END; k = walker.next()) {
+                if (k != JsonReader.NUMBER) {
+                    return null;
+                }
+                v[n] = JsonReader.parseInt(message, walker.start(), walker.end(), Integer.MIN_VALUE);
+                if (v[n] == Integer.MIN_VALUE) {
+                    return null;
+                }
+                if (++n == arity) {
+                    n = 0;
+                    // Tiles are one byte: val (and from) outside 0..255 are rejected, not wrapped
+                    for (int t = kind == REPLACE ? arity - 2 : arity - 1; t < arity; t++) {
+                        if (v[t] < 0 || v[t] > 255) {
+                            return null;
+                        }
+                    }
+                    boolean added = kind == SET ? edits.set(v[0], v[1], v[2])
+                            : kind == FILL ? edits.fill(v[0], v[1], v[2], v[3], v[4])
+                                    : edits.replace(v[0], v[1], v[2], v[3], v[4], v[5]);
+                    if (!added) {
+                        return null;
+                    }
+                }
+            }
+            if (n != 0) {
+                return null;
+            }
+        }
+        return edits;
+    }
+
+    /**
+     * Binary SET_BLOCKS payload: u16 count, count x (i32 x, i32 y, u8 val), then
+     * optionally u16 count, count x (u8 kind, i32 x0, y0, x1, y1, u8 from, u8 val)
+     * with kind 1 fill, 2 replace. Null if over a limit or of an unknown kind.
+     */
+    public static BlockEdits parse(ByteBuffer buf) {
+        BlockEdits edits = new BlockEdits();
+        int n = buf.getShort() & 0xFFFF;
+        for (int i = 0; i < n; i++) {
+            if (!edits.set(buf.getInt(), buf.getInt(), buf.get() & 0xFF)) {
+                return null;
+            }
+        }
+        n = buf.remaining() >= 2 ? buf.getShort() & 0xFFFF : 0;
+        for (int i = 0; i < n; i++) {
+            int kind = buf.get();
+            int x0 = buf.getInt(), y0 = buf.getInt(), x1 = buf.getInt(), y1 = buf.getInt();
+            int from = buf.get() & 0xFF;
+            int val = buf.get() & 0xFF;
+            if (kind == FILL ? !edits.fill(x0, y0, x1, y1, val)
+                    : kind != REPLACE || !edits.replace(x0, y0, x1, y1, from, val)) {
+                return null;
+            }
+        }
+        return edits;
+    }
+}
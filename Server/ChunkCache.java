@@ -0,0 +1,195 @@
+package Server;
+
+/**
+ * Bounded in-memory chunk cache in front of the database.
+ *
+ * Chunks are keyed by packed (cx, cy) longs and stored as compact tile arrays
+ * (one byte per tile, row-major). When the memory budget is reached, entries are
+ * evicted with a CLOCK sweep (second-chance LRU approximation), so hits never
+ * touch JDBC and never allocate.
+ *
+ * All public methods are synchronized: onMessage can run on several WebSocket
+ * worker threads at once. The tile arrays are not: the tick thread owns them and
+ * applies edits (and saves) to them in place; other threads only read them.
+ */
+public class ChunkCache {
+    // Rough heap cost of one entry: tile array + header + slot bookkeeping
+    private static final int ENTRY_OVERHEAD_BYTES = 64;
+
+    private final int capacity;
+    private final int tilesPerChunk;
+
+    // Slot storage (CLOCK ring)
+    private final long[] slotKeys;
+    private final byte[][] slotTiles;
+    private final boolean[] slotReferenced;
+    private int size = 0;
+    private int hand = 0;
+
+    // Open-addressing index: packed key -> slot (linear probing, backward-shift delete)
+    private final long[] indexKeys;
+    private final int[] indexSlots; // slot + 1, 0 = empty
+    private final int indexMask;
+
+    // Counters
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public ChunkCache(long budgetBytes, int tilesPerChunk) {
+        this.tilesPerChunk = tilesPerChunk;
+        long perEntry = tilesPerChunk + ENTRY_OVERHEAD_BYTES;
+        this.capacity = (int) Math.max(16, Math.min(1 << 24, budgetBytes / perEntry));
+
+        this.slotKeys = new long[capacity];
+        this.slotTiles = new byte[capacity][];
+        this.slotReferenced = new boolean[capacity];
+
+        // Keep the load factor at or below 0.5
+        int indexSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        this.indexKeys = new long[indexSize];
+        this.indexSlots = new int[indexSize];
+        this.indexMask = indexSize - 1;
+    }
+
+    public static long key(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns the cached tile array, or null on a miss. Only the tick thread
+     * writes into it.
+     */
+    public synchronized byte[] get(int cx, int cy) {
+        int slot = findSlot(key(cx, cy));
+        if (slot < 0) {
+            misses++;
+            return null;
+        }
+        hits++;
+        slotReferenced[slot] = true;
+        return slotTiles[slot];
+    }
+
+    /** Inserts or replaces a chunk. The cache takes ownership of the array. */
+    public synchronized void put(int cx, int cy, byte[] tiles) {
+        if (tiles.length != tilesPerChunk) {
+            throw new IllegalArgumentException("Expected " + tilesPerChunk + " tiles, got " + tiles.length);
+        }
+        long k = key(cx, cy);
+        int slot = findSlot(k);
+        if (slot >= 0) {
+            slotTiles[slot] = tiles;
+            slotReferenced[slot] = true;
+            return;
+        }
+
+        if (size < capacity) {
+            slot = size++;
+        } else {
+            slot = evictOne();
+        }
+        slotKeys[slot] = k;
+        slotTiles[slot] = tiles;
+        slotReferenced[slot] = true;
+        indexInsert(k, slot);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long total = hits + misses;
+        double hitRate = total == 0 ? 0 : (hits * 100.0 / total);
+        return String.format("ChunkCache[size=%d/%d, hits=%d, misses=%d, evictions=%d, hitRate=%.1f%%]",
+                size, capacity, hits, misses, evictions, hitRate);
+    }
+
+    // --- CLOCK ---
+
+    private int evictOne() {
+        while (true) {
+            int slot = hand;
+            hand = (hand + 1) % size;
+            if (slotReferenced[slot]) {
+                slotReferenced[slot] = false; // Second chance
+            } else {
+                indexRemove(slotKeys[slot]);
+                slotTiles[slot] = null;
+                evictions++;
+                return slot;
+            }
+        }
+    }
+
+    // --- Index (open addressing) ---
+
+    private static int mix(long k) {
+        k ^= (k >>> 33);
+        k *= 0xff51afd7ed558ccdL;
+        k ^= (k >>> 33);
+        return (int) k;
+    }
+
+    private int findSlot(long k) {
+        int i = mix(k) & indexMask;
+        while (indexSlots[i] != 0) {
+            if (indexKeys[i] == k) {
+                return indexSlots[i] - 1;
+            }
+            i = (i + 1) & indexMask;
+        }
+        return -1;
+    }
+
+    private void indexInsert(long k, int slot) {
+        int i = mix(k) & indexMask;
+        while (indexSlots[i] != 0) {
+            i = (i + 1) & indexMask;
+        }
+        indexKeys[i] = k;
+        indexSlots[i] = slot + 1;
+    }
+
+    private void indexRemove(long k) {
+        int i = mix(k) & indexMask;
+        while (indexSlots[i] != 0 && indexKeys[i] != k) {
+            i = (i + 1) & indexMask;
+        }
+        if (indexSlots[i] == 0) {
+            return;
+        }
+        // Backward-shift deletion keeps probe chains intact without tombstones
+        int hole = i;
+        int j = (i + 1) & indexMask;
+        while (indexSlots[j] != 0) {
+            int home = mix(indexKeys[j]) & indexMask;
+            boolean movable = (hole <= j) ? (home <= hole || home > j) : (home <= hole && home > j);
+            if (movable) {
+                indexKeys[hole] = indexKeys[j];
+                indexSlots[hole] = indexSlots[j];
+                hole = j;
+            }
+            j = (j + 1) & indexMask;
+        }
+        indexSlots[hole] = 0;
+    }
+}
@@ -0,0 +1,233 @@
+package Server;
+
+/**
+ * Binary chunk storage format (stored as a BLOB in chunks.data).
+ *
+ * Layout (version 1):
+ *
+ * <pre>
+ * [0] version (1)
+ * [1] mode    (0 = uniform, 1 = bit-packed, 2 = run-length)
+ * [2] palette size - 1
+ * [3..3+P) palette (tile IDs)
+ * payload:
+ *   uniform: nothing, every tile is palette[0]
+ *   packed:  256 palette indices, 1/2/4/8 bits each, LSB first
+ *   rle:     (palette index, run length - 1) byte pairs
+ * </pre>
+ *
+ * The encoder picks whichever of packed/RLE is smaller. Legacy TEXT rows
+ * ("[1,0,2,...]" or the client's "1021..." save format) are still decoded so
+ * old databases keep working while they are migrated.
+ */
+public final class ChunkCodec {
+    public static final int VERSION = 1;
+
+    private static final int MODE_UNIFORM = 0;
+    private static final int MODE_PACKED = 1;
+    private static final int MODE_RLE = 2;
+    private static final int HEADER = 3;
+
+    private ChunkCodec() {
+    }
+
+    // --- Encoding ---
+
+    public static byte[] encode(byte[] tiles) {
+        // Build palette (tile ID -> palette index)
+        int[] lookup = new int[256];
+        java.util.Arrays.fill(lookup, -1);
+        byte[] palette = new byte[256];
+        int paletteSize = 0;
+        for (byte t : tiles) {
+            int id = t & 0xFF;
+            if (lookup[id] == -1) {
+                lookup[id] = paletteSize;
+                palette[paletteSize++] = t;
+            }
+        }
+
+        if (paletteSize == 1) {
+            return new byte[] { (byte) VERSION, (byte) MODE_UNIFORM, 0, palette[0] };
+        }
+
+        int bits = bitsFor(paletteSize);
+        int packedLen = (tiles.length * bits + 7) / 8;
+
+        // Count runs to size the RLE payload
+        int runs = 0;
+        for (int i = 0; i < tiles.length; runs++) {
+            int j = i + 1;
+            while (j < tiles.length && tiles[j] == tiles[i] && j - i < 256) {
+                j++;
+            }
+            i = j;
+        }
+        int rleLen = runs * 2;
+
+        boolean rle = rleLen < packedLen;
+        byte[] out = new byte[HEADER + paletteSize + (rle ? rleLen : packedLen)];
+        out[0] = (byte) VERSION;
+        out[1] = (byte) (rle ? MODE_RLE : MODE_PACKED);
+        out[2] = (byte) (paletteSize - 1);
+        System.arraycopy(palette, 0, out, HEADER, paletteSize);
+        int pos = HEADER + paletteSize;
+
+        if (rle) {
+            for (int i = 0; i < tiles.length;) {
+                int j = i + 1;
+                while (j < tiles.length && tiles[j] == tiles[i] && j - i < 256) {
+                    j++;
+                }
+                out[pos++] = (byte) lookup[tiles[i] & 0xFF];
+                out[pos++] = (byte) (j - i - 1);
+                i = j;
+            }
+        } else {
+            int perByte = 8 / bits;
+            for (int i = 0; i < tiles.length; i++) {
+                int shift = (i % perByte) * bits;
+                out[pos + i / perByte] |= (byte) (lookup[tiles[i] & 0xFF] << shift);
+            }
+        }
+        return out;
+    }
+
+    // --- Decoding ---
+
+    /** Decodes a stored value (binary or legacy text) into a flat tile array, or null if malformed. */
+    public static byte[] decode(byte[] stored, int tileCount) {
+        if (stored == null || stored.length == 0) {
+            return null;
+        }
+        if (isLegacyText(stored)) {
+            return parseText(new String(stored, java.nio.charset.StandardCharsets.US_ASCII), tileCount);
+        }
+        // Every read below is bounds-checked: a truncated or corrupt blob is null, not an exception
+        if (stored[0] != VERSION || stored.length < HEADER) {
+            return null;
+        }
+
+        byte[] tiles = new byte[tileCount];
+        int mode = stored[1];
+        int paletteSize = (stored[2] & 0xFF) + 1;
+        int pos = HEADER + paletteSize;
+        if (stored.length < pos) {
+            return null;
+        }
+
+        switch (mode) {
+            case MODE_UNIFORM:
+                java.util.Arrays.fill(tiles, stored[HEADER]);
+                return tiles;
+            case MODE_PACKED: {
+                int bits = bitsFor(paletteSize);
+                if (stored.length < pos + (tileCount * bits + 7) / 8) {
+                    return null;
+                }
+                int perByte = 8 / bits;
+                int mask = (1 << bits) - 1;
+                for (int i = 0; i < tileCount; i++) {
+                    int p = (stored[pos + i / perByte] >> ((i % perByte) * bits)) & mask;
+                    if (p >= paletteSize) {
+                        return null;
+                    }
+                    tiles[i] = stored[HEADER + p];
+                }
+                return tiles;
+            }
+            case MODE_RLE: {
+                int n = 0;
+                while (pos + 1 < stored.length && n < tileCount) {
+                    int p = stored[pos] & 0xFF;
+                    if (p >= paletteSize) {
+                        return null;
+                    }
+                    byte t = stored[HEADER + p];
+                    int run = (stored[pos + 1] & 0xFF) + 1;
+                    for (int k = 0; k < run && n < tileCount; k++) {
+                        tiles[n++] = t;
+                    }
+                    pos += 2;
+                }
+                return n == tileCount ? tiles : null;
+            }
+            default:
+                return null;
+        }
+    }
+
+    public static boolean isLegacyText(byte[] stored) {
+        byte b = stored[0];
+        return b == '[' || (b >= '0' && b <= '9');
+    }
+
+    // --- Text format (legacy rows, client saves and JSON chunk responses) ---
+
+    // Accepts "[1,0,2,...]", "1,0,2,..." and the client's compact save format "1021..."
+    public static byte[] parseText(String data, int tileCount) {
+        if (data == null) {
+            return null;
+        }
+        return parseText(data, 0, data.length(), tileCount);
+    }
+
+    /** Same as {@link #parseText(String, int)} for data[from, to), without copying it out. */
+    public static byte[] parseText(CharSequence data, int from, int to, int tileCount) {
+        byte[] tiles = new byte[tileCount];
+        int n = 0;
+        boolean commaSeparated = false;
+        for (int i = from; i < to; i++) {
+            if (data.charAt(i) == ',') {
+                commaSeparated = true;
+                break;
+            }
+        }
+        int value = 0;
+        boolean inNumber = false;
+
+        for (int i = from; i < to && n < tileCount; i++) {
+            char c = data.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (!commaSeparated) {
+                    tiles[n++] = (byte) (c - '0');
+                    continue;
+                }
+                value = value * 10 + (c - '0');
+                inNumber = true;
+            } else if (inNumber) {
+                tiles[n++] = (byte) value;
+                value = 0;
+                inNumber = false;
+            }
+        }
+        if (inNumber && n < tileCount) {
+            tiles[n++] = (byte) value;
+        }
+        return n == tileCount ? tiles : null;
+    }
+
+    // Inverse of parseText: "[1,0,2,...]"
+    public static String toText(byte[] tiles) {
+        StringBuilder sb = new StringBuilder(tiles.length * 2 + 2);
+        sb.append('[');
+        for (int i = 0; i < tiles.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(tiles[i] & 0xFF);
+        }
+        sb.append(']');
+        return sb.toString();
+    }
+
+    private static int bitsFor(int paletteSize) {
+        if (paletteSize <= 2)
+            return 1;
+        if (paletteSize <= 4)
+            return 2;
+        if (paletteSize <= 16)
+            return 4;
+        return 8;
+    }
+}
@@ -0,0 +1,143 @@
+package Server;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Background conversion of legacy TEXT chunk rows ("[1,0,2,...]") to the
+ * binary {@link ChunkCodec} format.
+ *
+ * Walks the table in rowid order in small batches, so the game keeps running
+ * while it converts. Each batch is one transaction on the writer thread and only
+ * touches rows that are still TEXT, so newer edits are never overwritten. When
+ * done it records chunk_format in metadata and VACUUMs to give the space back
+ * (disable with -Dtyls.vacuumAfterMigration=false).
+ */
+public final class ChunkMigration implements Runnable {
+    private static final int BATCH_SIZE = 2000;
+
+    private final Database db;
+    private final int tileCount;
+
+    private ChunkMigration(Database db, int tileCount) {
+        this.db = db;
+        this.tileCount = tileCount;
+    }
+
+    public static Thread start(Database db, int tileCount) {
+        Thread t = new Thread(new ChunkMigration(db, tileCount), "chunk-migration");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+        return t;
+    }
+
+    @Override
+    public void run() {
+        long startTime = System.currentTimeMillis();
+        long lastRowId = 0;
+        long converted = 0;
+        long bytesBefore = 0;
+        long bytesAfter = 0;
+
+        System.out.println("Chunk migration: converting TEXT chunks to binary format v" + ChunkCodec.VERSION + "...");
+
+        try {
+            long sizeBefore = databaseSize();
+
+            while (true) {
+                final long from = lastRowId;
+                List<Object[]> batch = db.read(c -> {
+                    PreparedStatement pstmt = c.prepare(
+                            "SELECT rowid, id, data FROM chunks WHERE rowid > ? ORDER BY rowid LIMIT " + BATCH_SIZE);
+                    pstmt.setLong(1, from);
+                    List<Object[]> rows = new ArrayList<>(BATCH_SIZE);
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        while (rs.next()) {
+                            rows.add(new Object[] { rs.getLong(1), rs.getString(2), rs.getBytes(3) });
+                        }
+                    }
+                    return rows;
+                });
+
+                if (batch.isEmpty()) {
+                    break;
+                }
+                lastRowId = (Long) batch.get(batch.size() - 1)[0];
+
+                // Encode outside the writer thread
+                List<Object[]> updates = new ArrayList<>(batch.size());
+                for (Object[] row : batch) {
+                    byte[] stored = (byte[]) row[2];
+                    if (stored == null || stored.length == 0 || !ChunkCodec.isLegacyText(stored)) {
+                        continue;
+                    }
+                    byte[] tiles = ChunkCodec.decode(stored, tileCount);
+                    if (tiles == null) {
+                        continue; // Malformed row, leave it for manual inspection
+                    }
+                    byte[] encoded = ChunkCodec.encode(tiles);
+                    bytesBefore += stored.length;
+                    bytesAfter += encoded.length;
+                    updates.add(new Object[] { row[1], encoded });
+                }
+
+                if (!updates.isEmpty()) {
+                    converted += db.writeSync(c -> {
+                        PreparedStatement pstmt = c.prepare(
+                                "UPDATE chunks SET data = ? WHERE id = ? AND typeof(data) = 'text'");
+                        for (Object[] u : updates) {
+                            pstmt.setBytes(1, (byte[]) u[1]);
+                            pstmt.setString(2, (String) u[0]);
+                            pstmt.addBatch();
+                        }
+                        int n = 0;
+                        for (int r : pstmt.executeBatch()) {
+                            n += Math.max(r, 0);
+                        }
+                        return n;
+                    });
+                }
+
+                if (converted > 0 && converted % 100000 < updates.size()) {
+                    System.out.println("Chunk migration: " + converted + " chunks converted");
+                }
+            }
+
+            db.writeSync(c -> {
+                PreparedStatement pstmt = c.prepare("INSERT OR REPLACE INTO metadata(key, value) VALUES(?, ?)");
+                pstmt.setString(1, "chunk_format");
+                pstmt.setString(2, String.valueOf(ChunkCodec.VERSION));
+                return pstmt.executeUpdate();
+            });
+
+            if (converted > 0 && Boolean.parseBoolean(System.getProperty("tyls.vacuumAfterMigration", "true"))) {
+                db.maintenance(c -> {
+                    try (Statement s = c.connection().createStatement()) {
+                        s.execute("VACUUM");
+                    }
+                    return null;
+                }).join();
+            }
+
+            long sizeAfter = databaseSize();
+            long duration = (System.currentTimeMillis() - startTime) / 1000;
+            System.out.println("Chunk migration complete: " + converted + " chunks in " + duration + "s"
+                    + " (chunk data " + bytesBefore / 1024 + " KB -> " + bytesAfter / 1024 + " KB,"
+                    + " database " + sizeBefore / 1024 + " KB -> " + sizeAfter / 1024 + " KB)");
+        } catch (Exception e) {
+            System.err.println("Chunk migration failed (will retry on next start): " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private long databaseSize() throws SQLException {
+        return db.read(c -> {
+            try (Statement s = c.connection().createStatement();
+                    ResultSet rs = s.executeQuery(
+                            "SELECT page_count * page_size FROM pragma_page_count(), pragma_page_size()")) {
+                return rs.next() ? rs.getLong(1) : 0L;
+            }
+        });
+    }
+}
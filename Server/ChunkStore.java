@@ -0,0 +1,152 @@
+package Server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Where stored chunks live.
+ *
+ * Chunks are kept as {@link ChunkCodec} bytes under their (cx, cy). A chunk
+ * that was never stored reads as null and is generated by the caller. World
+ * metadata (player position, storage mode, checkpoints) always stays in the
+ * SQLite metadata table; a {@link Batch} can carry metadata rows so that they
+ * commit together with the chunks they describe.
+ *
+ * Implementations: {@link SqliteChunkStore} (the chunks table) and
+ * {@link RegionChunkStore} (memory-mapped region files). Reads may come from
+ * any thread; batches are applied one at a time, in submission order.
+ * {@link ChunkStoreConverter} copies a world from one to the other.
+ */
+public interface ChunkStore {
+    /** Decoded tiles of a stored chunk, or null if the chunk is not stored. */
+    byte[] read(int cx, int cy) throws IOException;
+
+    /** Bulk read by ChunkCache.key(cx, cy): out[i] gets keys[i]'s tiles, or stays null. */
+    void read(long[] keys, int count, byte[][] out) throws IOException;
+
+    /** Queues a batch; it is applied after every batch submitted before it. */
+    CompletableFuture<Integer> write(Batch batch);
+
+    /** True if no chunk is stored at all. */
+    boolean isEmpty() throws IOException;
+
+    /** Calls visitor for every stored chunk (encoded bytes), in no particular order. */
+    void forEach(Visitor visitor) throws IOException;
+
+    /** Waits for queued batches, then releases files and connections. */
+    void close();
+
+    /** Receives one stored chunk. */
+    interface Visitor {
+        void accept(int cx, int cy, byte[] encoded) throws IOException;
+    }
+
+    /** Queues a batch and waits for it to be applied; returns the chunks written. */
+    default int writeSync(Batch batch) throws IOException {
+        try {
+            return write(batch).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for a chunk write", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    /**
+     * Chunk writes, their versions and metadata rows applied together: one
+     * transaction for SQLite, one locked pass per region file (versions and
+     * metadata after the chunks) for region files. Chunk data is ChunkCodec-encoded by whoever adds it.
+     * Writes apply in the order they were added, so a later write to a chunk wins.
+     */
+    final class Batch {
+        static final int PUT = 0;
+        static final int PUT_IF_ABSENT = 1; // Generated chunks: never replaces an edit
+        static final int DELETE = 2; // Sparse storage: back to generated terrain
+
+        /** One chunk write. */
+        static final class Write {
+            final int cx;
+            final int cy;
+            final int mode;
+            final byte[] data; // ChunkCodec bytes; null for DELETE
+
+            Write(int cx, int cy, int mode, byte[] data) {
+                this.cx = cx;
+                this.cy = cy;
+                this.mode = mode;
+                this.data = data;
+            }
+        }
+
+        final int metric; // Metrics.DB_* op the apply time is recorded under
+        final List<Write> writes = new ArrayList<>();
+        final Map<String, String> metadata = new LinkedHashMap<>();
+        final Map<Long, Long> versions = new LinkedHashMap<>(); // ChunkCache key -> chunk version
+        private Consumer<Batch> fill;
+
+        public Batch(int metric) {
+            this.metric = metric;
+        }
+
+        public Batch put(int cx, int cy, byte[] encoded) {
+            writes.add(new Write(cx, cy, PUT, encoded));
+            return this;
+        }
+
+        public Batch putIfAbsent(int cx, int cy, byte[] encoded) {
+            writes.add(new Write(cx, cy, PUT_IF_ABSENT, encoded));
+            return this;
+        }
+
+        public Batch delete(int cx, int cy) {
+            writes.add(new Write(cx, cy, DELETE, null));
+            return this;
+        }
+
+        public Batch metadata(String key, String value) {
+            metadata.put(key, value);
+            return this;
+        }
+
+        /** Records the chunk's version (see ChunkVersions) together with its tiles. */
+        public Batch version(int cx, int cy, long version) {
+            versions.put(ChunkCache.key(cx, cy), version);
+            return this;
+        }
+
+        /**
+         * Defers adding writes to the writer thread, just before the batch is
+         * applied: encoding work stays off the caller (e.g. the tick) while the
+         * batch keeps its place in the write order.
+         */
+        public Batch fillOnWriter(Consumer<Batch> fill) {
+            this.fill = fill;
+            return this;
+        }
+
+        /** Stores call this first when applying the batch. */
+        void prepare() {
+            Consumer<Batch> f = fill;
+            fill = null;
+            if (f != null) {
+                f.accept(this);
+            }
+        }
+
+        public int size() {
+            return writes.size();
+        }
+
+        public boolean isEmpty() {
+            return writes.isEmpty() && metadata.isEmpty() && versions.isEmpty();
+        }
+    }
+}
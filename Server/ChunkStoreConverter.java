@@ -0,0 +1,109 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Offline tool: copies a world's chunks from one {@link ChunkStore} backend to
+ * the other and switches the world over (metadata chunk_store).
+ *
+ * Run with the server stopped:
+ * {@code java -cp "build:lib/*" Server.ChunkStoreConverter <sqlite|region> [world.db] [regionDir]}
+ *
+ * The target must be empty. The source is left as it was, so a conversion can
+ * be undone by setting chunk_store back; once the world runs fine on the new
+ * backend the old data can be deleted (the regions directory, or the chunks
+ * table rows followed by VACUUM).
+ */
+public final class ChunkStoreConverter {
+    private static final int BATCH_SIZE = 1024; // Chunks per write batch
+    private static final int TILES_PER_CHUNK = TerrainGenerator.CHUNK_SIZE * TerrainGenerator.CHUNK_SIZE;
+
+    private ChunkStoreConverter() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || !(args[0].equals("sqlite") || args[0].equals("region"))) {
+            System.err.println("Usage: ChunkStoreConverter <sqlite|region> [world.db] [regionDir]");
+            System.exit(2);
+        }
+        String target = args[0];
+        String dbFile = args.length > 1 ? args[1] : "world.db";
+        Path regionDir = Paths.get(args.length > 2 ? args[2] : System.getProperty("tyls.regionDir", "regions"));
+
+        int status = 0;
+        Database db = new Database("jdbc:sqlite:" + dbFile, 2);
+        try {
+            Main.createSchema(db);
+            String current = readMetadata(db, "chunk_store");
+            if (current == null) {
+                current = "sqlite"; // Worlds from before pluggable storage
+            }
+            if (current.equals(target)) {
+                System.out.println("World already uses the " + target + " chunk store");
+                return;
+            }
+
+            ChunkStore sqlite = new SqliteChunkStore(db, TILES_PER_CHUNK);
+            ChunkStore region = new RegionChunkStore(regionDir, db, TILES_PER_CHUNK);
+            ChunkStore from = target.equals("region") ? sqlite : region;
+            ChunkStore to = target.equals("region") ? region : sqlite;
+            try {
+                if (!to.isEmpty()) {
+                    System.err.println("Target " + target + " store is not empty; refusing to merge into it");
+                    status = 1;
+                    return;
+                }
+                long copied = copy(from, to);
+                to.writeSync(new ChunkStore.Batch(Metrics.DB_CHUNK_INSERT)
+                        .metadata("chunk_store", target)
+                        .metadata("chunk_format", String.valueOf(ChunkCodec.VERSION)));
+                System.out.println("World now uses the " + target + " chunk store (" + copied + " chunks)");
+            } finally {
+                region.close();
+                sqlite.close();
+            }
+        } finally {
+            db.close();
+            if (status != 0) {
+                System.exit(status);
+            }
+        }
+    }
+
+    private static long copy(ChunkStore from, ChunkStore to) throws IOException {
+        long startTime = System.currentTimeMillis();
+        long[] copied = { 0 };
+        ChunkStore.Batch[] batch = { new ChunkStore.Batch(Metrics.DB_CHUNK_INSERT) };
+        from.forEach((cx, cy, encoded) -> {
+            batch[0].put(cx, cy, encoded);
+            if (batch[0].size() >= BATCH_SIZE) {
+                copied[0] += to.writeSync(batch[0]);
+                batch[0] = new ChunkStore.Batch(Metrics.DB_CHUNK_INSERT);
+                if (copied[0] % (BATCH_SIZE * 100L) == 0) {
+                    System.out.println("  " + copied[0] + " chunks...");
+                }
+            }
+        });
+        if (!batch[0].isEmpty()) {
+            copied[0] += to.writeSync(batch[0]);
+        }
+        long ms = Math.max(1, System.currentTimeMillis() - startTime);
+        System.out.println("Copied " + copied[0] + " chunks in " + ms + " ms (" + copied[0] * 1000 / ms + " chunks/s)");
+        return copied[0];
+    }
+
+    private static String readMetadata(Database db, String key) throws SQLException {
+        return db.read(c -> {
+            PreparedStatement pstmt = c.prepare("SELECT value FROM metadata WHERE key = ?");
+            pstmt.setString(1, key);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? rs.getString("value") : null;
+            }
+        });
+    }
+}
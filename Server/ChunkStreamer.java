@@ -0,0 +1,270 @@
+package Server;
+
+import org.java_websocket.WebSocket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Serves batched region requests ("getChunks") off the socket thread.
+ *
+ * A request names a rectangle of chunks, optionally minus an exclusion
+ * rectangle (a ring is a square minus a smaller square). Chunks are resolved
+ * nearest-first (to the player's last pos, or the rectangle centre) in slices of
+ * {@link #FRAME_CHUNKS}: one cache pass plus one multi-key query per slice, and
+ * one coalesced frame per slice. Each request also becomes the session's view
+ * rectangle; chunks that fall outside a newer view before they are sent are
+ * dropped, which is how a batch is cancelled when the player moves away.
+ *
+ * A request may list the chunk versions the client still holds (see
+ * ChunkVersions). It is then answered with versioned frames: held chunks that
+ * did not change cost a few bytes, recently edited ones only their changed
+ * tiles, and only the rest are read and sent whole.
+ *
+ * Frames go to the client's {@link SendScheduler} queue. While a tick's worth
+ * of chunk frames is waiting there the stream parks, and the scheduler resumes
+ * it on this pool once the client has caught up, so a slow client holds no
+ * thread and no more than about one budget of built frames.
+ */
+public class ChunkStreamer {
+    static final int FRAME_CHUNKS = 64;
+    static final int MAX_SIDE = 129; // renderDistance 64 around the player
+
+    private final ExecutorService pool;
+    private final SendScheduler sender;
+
+    public ChunkStreamer(int threads, SendScheduler sender) {
+        this.sender = sender;
+        this.pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "chunk-streamer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Queues a batch. ex0..ey1 is the exclusion rectangle; pass ex0 > ex1 for none.
+     * held maps ChunkCache keys to the versions the client has; null for an
+     * unversioned request.
+     */
+    public void request(WebSocket conn, Session session, int x0, int y0, int x1, int y1,
+            int ex0, int ey0, int ex1, int ey1, Map<Long, Long> held) {
+        if (x1 < x0 || y1 < y0 || x1 - x0 >= MAX_SIDE || y1 - y0 >= MAX_SIDE) {
+            return; // Empty or oversized request
+        }
+        session.setViewRect(x0, y0, x1, y1);
+        pool.execute(() -> start(conn, session, x0, y0, x1, y1, ex0, ey0, ex1, ey1, held));
+    }
+
+    // A batch in progress: the distance-ordered chunks and how far it got
+    private final class Stream implements Runnable {
+        final WebSocket conn;
+        final Session session;
+        final int x0;
+        final int y0;
+        final int width;
+        final long[] order;
+        final int n;
+        final Map<Long, Long> held; // null: unversioned
+        int next = 0;
+
+        Stream(WebSocket conn, Session session, int x0, int y0, int width, long[] order, int n,
+                Map<Long, Long> held) {
+            this.conn = conn;
+            this.session = session;
+            this.x0 = x0;
+            this.y0 = y0;
+            this.width = width;
+            this.order = order;
+            this.n = n;
+            this.held = held;
+        }
+
+        @Override
+        public void run() {
+            send(this);
+        }
+    }
+
+    private void start(WebSocket conn, Session session, int x0, int y0, int x1, int y1,
+            int ex0, int ey0, int ex1, int ey1, Map<Long, Long> held) {
+        // Distance-ordered list of wanted chunks, packed as (dist2 << 32 | index in rect)
+        int width = x1 - x0 + 1;
+        int height = y1 - y0 + 1;
+        int centerX = session.hasPosition() ? session.getChunkX() : (x0 + x1) / 2;
+        int centerY = session.hasPosition() ? session.getChunkY() : (y0 + y1) / 2;
+
+        long[] order = new long[width * height];
+        int n = 0;
+        for (int cy = y0; cy <= y1; cy++) {
+            for (int cx = x0; cx <= x1; cx++) {
+                if (cx >= ex0 && cx <= ex1 && cy >= ey0 && cy <= ey1) {
+                    continue;
+                }
+                long dx = cx - centerX;
+                long dy = cy - centerY;
+                long dist2 = Math.min(dx * dx + dy * dy, Integer.MAX_VALUE);
+                order[n++] = (dist2 << 32) | ((cy - y0) * width + (cx - x0));
+            }
+        }
+        Arrays.sort(order, 0, n);
+        send(new Stream(conn, session, x0, y0, width, order, n, held));
+    }
+
+    // Pool thread: slices until the batch is done or the client's queue is full
+    private void send(Stream s) {
+        long[] keys = new long[FRAME_CHUNKS];
+        long[] have = new long[FRAME_CHUNKS];
+        while (s.next < s.n && s.conn.isOpen()) {
+            if (sender.parkChunks(s.session, () -> pool.execute(s))) {
+                return; // Resumed by the scheduler's tick
+            }
+            // Next slice, skipping anything the player has moved away from
+            int count = 0;
+            while (s.next < s.n && count < FRAME_CHUNKS) {
+                int idx = (int) s.order[s.next++];
+                int cx = s.x0 + idx % s.width;
+                int cy = s.y0 + idx / s.width;
+                if (s.session.inView(cx, cy) && Main.owns(cx, cy)) { // Partitions serve only their own chunks
+                    keys[count++] = ChunkCache.key(cx, cy);
+                }
+            }
+            if (count == 0) {
+                continue;
+            }
+
+            long[] frameKeys = Arrays.copyOf(keys, count);
+            int cx = (int) (keys[0] >> 32); // Nearest chunk of the slice
+            int cy = (int) keys[0];
+            if (s.held != null) {
+                for (int i = 0; i < count; i++) {
+                    have[i] = s.held.getOrDefault(keys[i], ChunkVersions.UNKNOWN);
+                }
+                sender.sendChunks(s.conn, cx, cy, frameKeys, versionedFrame(s.session.binary, keys, have, count));
+                continue;
+            }
+            byte[][] tiles = Main.getChunkTilesBulk(keys, count);
+            if (s.session.binary) {
+                sender.sendChunks(s.conn, cx, cy, frameKeys, binaryFrame(keys, tiles, count));
+            } else {
+                sender.sendChunks(s.conn, cx, cy, frameKeys, jsonFrame(keys, tiles, count));
+            }
+        }
+    }
+
+    // S_CHUNKS: u16 count, then per chunk i32 cx, i32 cy, u16 len, ChunkCodec bytes
+    private static byte[] binaryFrame(long[] keys, byte[][] tiles, int count) {
+        byte[][] encoded = new byte[count][];
+        int size = 3;
+        for (int i = 0; i < count; i++) {
+            encoded[i] = ChunkCodec.encode(tiles[i]);
+            size += 10 + encoded[i].length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.put(Protocol.S_CHUNKS).putShort((short) count);
+        for (int i = 0; i < count; i++) {
+            buf.putInt((int) (keys[i] >> 32)).putInt((int) keys[i]);
+            buf.putShort((short) encoded[i].length).put(encoded[i]);
+        }
+        return buf.array();
+    }
+
+    /**
+     * One versioned frame (S_CHUNKS_V, or "chunks" with versions) for keys[i]
+     * held at have[i]. Tiles are read after the versions, so a chunk sent whole
+     * is at least as new as the version it is labelled with; a later edit's
+     * block message then just sets the same tile again.
+     */
+    static Object versionedFrame(boolean binary, long[] keys, long[] have, int count) {
+        ChunkVersions.Resync[] resync = Main.getChunkVersions().resync(keys, count, have);
+        long[] fullKeys = new long[count];
+        int fullCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (resync[i].deltas == null) {
+                fullKeys[fullCount++] = keys[i];
+            }
+        }
+        byte[][] fullTiles = fullCount > 0 ? Main.getChunkTilesBulk(fullKeys, fullCount) : new byte[0][];
+        byte[][] tiles = new byte[count][];
+        for (int i = 0, f = 0; i < count; i++) {
+            if (resync[i].deltas == null) {
+                tiles[i] = fullTiles[f++];
+            }
+        }
+        return binary ? versionedBinaryFrame(keys, resync, tiles, count) : versionedJsonFrame(keys, resync, tiles, count);
+    }
+
+    // S_CHUNKS_V: u16 count, then per chunk i32 cx, i32 cy, i64 version, u8 kind, payload
+    private static byte[] versionedBinaryFrame(long[] keys, ChunkVersions.Resync[] resync, byte[][] tiles, int count) {
+        byte[][] encoded = new byte[count][];
+        int size = 3;
+        for (int i = 0; i < count; i++) {
+            size += 17;
+            if (tiles[i] != null) {
+                encoded[i] = ChunkCodec.encode(tiles[i]);
+                size += 2 + encoded[i].length;
+            } else if (!resync[i].unchanged()) {
+                size += 2 + 2 * resync[i].deltas.length;
+            }
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.put(Protocol.S_CHUNKS_V).putShort((short) count);
+        for (int i = 0; i < count; i++) {
+            buf.putInt((int) (keys[i] >> 32)).putInt((int) keys[i]).putLong(resync[i].version);
+            if (encoded[i] != null) {
+                buf.put((byte) Protocol.V_FULL).putShort((short) encoded[i].length).put(encoded[i]);
+            } else if (resync[i].unchanged()) {
+                buf.put((byte) Protocol.V_UNCHANGED);
+            } else {
+                buf.put((byte) Protocol.V_DELTAS).putShort((short) resync[i].deltas.length);
+                for (int d : resync[i].deltas) {
+                    buf.put((byte) (d >> 8)).put((byte) d);
+                }
+            }
+        }
+        return buf.array();
+    }
+
+    // {"type":"chunks","list":[{"key":"x,y","ver":7,"data":"[...]"},{"key":"x,y","ver":5},
+    // {"key":"x,y","ver":9,"d":[tile,val,...]},...]}: whole, unchanged, deltas
+    private static String versionedJsonFrame(long[] keys, ChunkVersions.Resync[] resync, byte[][] tiles, int count) {
+        StringBuilder sb = new StringBuilder(count * 64 + 32);
+        sb.append("{\"type\":\"chunks\",\"list\":[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"key\":\"").append((int) (keys[i] >> 32)).append(',').append((int) keys[i])
+                    .append("\",\"ver\":").append(resync[i].version);
+            if (tiles[i] != null) {
+                sb.append(",\"data\":\"").append(ChunkCodec.toText(tiles[i])).append('"');
+            } else if (!resync[i].unchanged()) {
+                sb.append(",\"d\":[");
+                for (int d = 0; d < resync[i].deltas.length; d++) {
+                    if (d > 0) {
+                        sb.append(',');
+                    }
+                    sb.append(resync[i].deltas[d] >> 8).append(',').append(resync[i].deltas[d] & 0xFF);
+                }
+                sb.append(']');
+            }
+            sb.append('}');
+        }
+        return sb.append("]}").toString();
+    }
+
+    // {"type":"chunks","list":[{"key":"x,y","data":"[...]"},...]}
+    private static String jsonFrame(long[] keys, byte[][] tiles, int count) {
+        StringBuilder sb = new StringBuilder(count * 560 + 32);
+        sb.append("{\"type\":\"chunks\",\"list\":[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"key\":\"").append((int) (keys[i] >> 32)).append(',').append((int) keys[i])
+                    .append("\",\"data\":\"").append(ChunkCodec.toText(tiles[i])).append("\"}");
+        }
+        return sb.append("]}").toString();
+    }
+}
@@ -0,0 +1,422 @@
+package Server;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Chunk versions and a short log of recent tile edits per chunk, so a client
+ * that still holds some version of a chunk can be answered with "unchanged" or
+ * a few tile deltas instead of the whole chunk.
+ *
+ * Versions come from one world-wide counter: every setBlock and every chunk a
+ * save changes takes the next number, so a chunk's version only grows and no
+ * number ever stands for two different states. The counter is reserved ahead
+ * in blocks (metadata chunk_version_reserved) and never reused after a crash.
+ * A chunk's version is persisted with the write that stores its tiles (table
+ * chunk_versions, see {@link ChunkStore.Batch#version}); a chunk without a row
+ * is version 0, unchanged since it was generated.
+ *
+ * Each chunk keeps its last {@link #LOG_EDITS} tile edits in memory. Logs start
+ * empty after a restart, so then only chunks that did not change since the
+ * client's copy are spared. Up to maxEntries chunks are tracked (least recently
+ * used first out); a chunk whose version is not persisted yet is never dropped.
+ * If a chunk's stored version cannot be read it is tracked as {@link #UNKNOWN}
+ * and sent whole until its next edit.
+ */
+public class ChunkVersions {
+    static final int LOG_EDITS = 64; // Tile edits kept per chunk
+    static final long RESERVE_BLOCK = 1 << 20; // Versions reserved per metadata write
+    static final String RESERVED_KEY = "chunk_version_reserved";
+    static final long UNKNOWN = -1; // Also what clients send for a chunk they do not hold
+    private static final String BULK_SQL = "SELECT id, version FROM chunk_versions WHERE id IN ("
+            + "?,".repeat(SqliteChunkStore.BULK_QUERY_SIZE - 1) + "?)";
+
+    /** What a client holding some version of a chunk needs. */
+    public static final class Resync {
+        public final long version; // Current version
+        public final int[] deltas; // (tile << 8 | value), one per changed tile; empty: unchanged; null: send it all
+
+        Resync(long version, int[] deltas) {
+            this.version = version;
+            this.deltas = deltas;
+        }
+
+        public boolean unchanged() {
+            return deltas != null && deltas.length == 0;
+        }
+    }
+
+    // One tracked chunk
+    private static final class Entry {
+        long version;
+        long floor; // Oldest held version the log can bring up to date
+        boolean unsaved; // version not persisted yet: pinned
+        long[] log; // Ring of (version << 16 | tile << 8 | value), oldest at start; null until edited
+        int start = 0;
+        int count = 0;
+
+        Entry(long version) {
+            this.version = version;
+            this.floor = version;
+        }
+
+        void append(long v, int tile, int value) {
+            if (log == null) {
+                log = new long[LOG_EDITS];
+            }
+            if (count == LOG_EDITS) {
+                floor = log[start] >>> 16; // Dropping the oldest edit
+                start = (start + 1) % LOG_EDITS;
+                count--;
+            }
+            log[(start + count) % LOG_EDITS] = v << 16 | tile << 8 | value;
+            count++;
+        }
+
+        void clearLog(long v) {
+            start = 0;
+            count = 0;
+            floor = v;
+        }
+    }
+
+    private final Database db;
+    private final int maxEntries;
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(1024, 0.75f, true);
+
+    private long next; // Next version to hand out
+    private long reservedUpTo; // Versions below this are covered by a committed reservation
+    private boolean reserving = false;
+
+    // Counters
+    private long loads = 0;
+    private long unchanged = 0;
+    private long deltas = 0;
+    private long full = 0;
+    private long evicted = 0; // Entries dropped so far (resync re-validates its read with it)
+
+    /** Picks up the counter above anything handed out before (reads metadata and chunk_versions). */
+    public ChunkVersions(Database db, int maxEntries) throws SQLException {
+        this.db = db;
+        this.maxEntries = maxEntries;
+        long reserved = db.read(c -> {
+            PreparedStatement pstmt = c.prepare("SELECT value FROM metadata WHERE key = ?");
+            pstmt.setString(1, RESERVED_KEY);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? Long.parseLong(rs.getString(1)) : 0L;
+            }
+        });
+        long stored = db.read(c -> {
+            try (ResultSet rs = c.prepare("SELECT max(version) FROM chunk_versions").executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0L;
+            }
+        });
+        next = Math.max(reserved, stored + 1);
+        reservedUpTo = next;
+        db.writeSync(c -> reserve(c, next + RESERVE_BLOCK));
+        reservedUpTo = next + RESERVE_BLOCK;
+    }
+
+    private static Integer reserve(Database.DbConnection c, long upTo) throws SQLException {
+        PreparedStatement pstmt = c.prepare("INSERT OR REPLACE INTO metadata(key, value) VALUES(?, ?)");
+        pstmt.setString(1, RESERVED_KEY);
+        pstmt.setString(2, String.valueOf(upTo));
+        return pstmt.executeUpdate();
+    }
+
+    // Under this monitor. The next block is reserved once half of this one is used;
+    // only if that write is still not committed when the block runs out do we wait.
+    private long nextVersion() {
+        if (!reserving && next >= reservedUpTo - RESERVE_BLOCK / 2) {
+            reserving = true;
+            long upTo = reservedUpTo + RESERVE_BLOCK;
+            db.write(c -> reserve(c, upTo)).whenComplete((n, e) -> {
+                synchronized (this) {
+                    reserving = false;
+                    if (e == null) {
+                        reservedUpTo = Math.max(reservedUpTo, upTo);
+                    } else {
+                        System.err.println("Chunk version reservation failed: " + e.getMessage());
+                    }
+                    notifyAll();
+                }
+            });
+        }
+        while (next >= reservedUpTo) {
+            try {
+                wait(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for a chunk version reservation", e);
+            }
+            if (!reserving && next >= reservedUpTo) {
+                return nextVersion(); // Failed: ask again
+            }
+        }
+        return next++;
+    }
+
+    /** Records a setBlock of tile (row-major index) to value; returns {previous version, new version}. */
+    public synchronized long[] edit(int cx, int cy, int tile, int value) {
+        long key = ChunkCache.key(cx, cy);
+        long v = nextVersion();
+        Entry e = track(key);
+        long previous = e.version;
+        if (previous == UNKNOWN) {
+            e.clearLog(v); // No history to build deltas on
+        }
+        e.version = v;
+        e.unsaved = true;
+        e.append(v, tile, value);
+        evict();
+        return new long[] { previous, v };
+    }
+
+    /** Records a chunk replaced as a whole (a save); returns {previous version, new version}. */
+    public synchronized long[] replace(int cx, int cy, byte[] before, byte[] after) {
+        int n = 0;
+        for (int i = 0; i < after.length; i++) {
+            if (before[i] != after[i]) {
+                n++;
+            }
+        }
+        int[] changed = new int[n];
+        n = 0;
+        for (int i = 0; i < after.length; i++) {
+            if (before[i] != after[i]) {
+                changed[n++] = i << 8 | (after[i] & 0xFF);
+            }
+        }
+        return edits(cx, cy, changed);
+    }
+
+    /**
+     * Records tile changes (tile << 8 | value) made to a chunk at once, under one
+     * new version; returns {previous version, new version}.
+     */
+    public synchronized long[] edits(int cx, int cy, int[] changed) {
+        long key = ChunkCache.key(cx, cy);
+        long v = nextVersion();
+        Entry e = track(key);
+        long previous = e.version;
+        e.version = v;
+        e.unsaved = true;
+        if (changed.length > LOG_EDITS || previous == UNKNOWN) {
+            e.clearLog(v); // Cheaper to send the whole chunk
+        } else {
+            for (int c : changed) {
+                e.append(v, c >> 8, c & 0xFF);
+            }
+        }
+        evict();
+        return new long[] { previous, v };
+    }
+
+    /**
+     * What to send for keys[i] (ChunkCache keys) to a client holding version
+     * held[i] of it (-1: none). Untracked chunks are looked up in one bulk read,
+     * made outside this monitor so edits on the tick do not wait for it.
+     */
+    public Resync[] resync(long[] keys, int count, long[] held) {
+        long[] missing;
+        long evictedBefore;
+        synchronized (this) {
+            missing = untracked(keys, count);
+            evictedBefore = evicted;
+        }
+        Map<Long, Long> stored = read(missing);
+        synchronized (this) {
+            loads += batches(missing.length);
+            // A chunk dropped meanwhile may have been edited and persisted after the
+            // read; then install nothing and read whatever is still missing again here
+            if (evicted == evictedBefore) {
+                install(stored);
+            }
+            load(keys, count);
+            Resync[] out = new Resync[count];
+            for (int i = 0; i < count; i++) {
+                out[i] = resync(entries.get(keys[i]), held[i]);
+            }
+            evict();
+            return out;
+        }
+    }
+
+    private Resync resync(Entry e, long held) {
+        if (held != UNKNOWN && held == e.version) {
+            unchanged++;
+            return new Resync(e.version, new int[0]);
+        }
+        if (held == UNKNOWN || held < e.floor || held > e.version) {
+            full++; // Not held, too old for the log, or from before a restore
+            return new Resync(e.version, null);
+        }
+        // Edits after the held version, last write per tile
+        int[] last = new int[TerrainGenerator.TILES_PER_CHUNK];
+        Arrays.fill(last, -1);
+        int n = 0;
+        for (int k = 0; k < e.count; k++) {
+            long x = e.log[(e.start + k) % LOG_EDITS];
+            if (x >>> 16 > held) {
+                int tile = (int) (x >> 8) & 0xFF;
+                if (last[tile] < 0) {
+                    n++;
+                }
+                last[tile] = (int) x & 0xFF;
+            }
+        }
+        int[] out = new int[n];
+        n = 0;
+        for (int tile = 0; tile < last.length; tile++) {
+            if (last[tile] >= 0) {
+                out[n++] = tile << 8 | last[tile];
+            }
+        }
+        deltas++;
+        return new Resync(e.version, out);
+    }
+
+    /** Called once a batch's writes committed: their versions may be dropped from memory again. */
+    public synchronized void persisted(ChunkStore.Batch batch) {
+        for (Map.Entry<Long, Long> w : batch.versions.entrySet()) {
+            Entry e = entries.get(w.getKey());
+            if (e != null && e.version == w.getValue()) {
+                e.unsaved = false;
+            }
+        }
+        evict();
+    }
+
+    /**
+     * Highest version up to which chunk_versions is complete: every version at or
+     * below it is persisted or was superseded by a persisted one (see WorldSnapshots).
+     */
+    public synchronized long persistedThrough() {
+        long lowest = next;
+        for (Entry e : entries.values()) {
+            if (e.unsaved) {
+                lowest = Math.min(lowest, e.version);
+            }
+        }
+        return lowest - 1;
+    }
+
+    /** Versions below this may have been handed out (reserved in metadata). */
+    public synchronized long reservedUpTo() {
+        return reservedUpTo;
+    }
+
+    // Under this monitor: the entry for key, read from chunk_versions if not tracked
+    private Entry track(long key) {
+        Entry e = entries.get(key);
+        if (e == null) {
+            load(new long[] { key }, 1);
+            e = entries.get(key);
+        }
+        return e;
+    }
+
+    // Under this monitor: starts tracking the untracked keys (the store read holds it too)
+    private void load(long[] keys, int count) {
+        long[] missing = untracked(keys, count);
+        if (missing.length > 0) {
+            install(read(missing));
+            loads += batches(missing.length);
+        }
+    }
+
+    // Under this monitor
+    private long[] untracked(long[] keys, int count) {
+        long[] missing = new long[count];
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (!entries.containsKey(keys[i])) {
+                missing[n++] = keys[i];
+            }
+        }
+        return Arrays.copyOf(missing, n);
+    }
+
+    // Under this monitor: an entry tracked meanwhile is newer than the read and stays
+    private void install(Map<Long, Long> stored) {
+        for (Map.Entry<Long, Long> s : stored.entrySet()) {
+            entries.putIfAbsent(s.getKey(), new Entry(s.getValue()));
+        }
+    }
+
+    private static int batches(int keys) {
+        return (keys + SqliteChunkStore.BULK_QUERY_SIZE - 1) / SqliteChunkStore.BULK_QUERY_SIZE;
+    }
+
+    // Stored versions of keys, one IN (...) query per BULK_QUERY_SIZE; a key without
+    // a row maps to 0, one whose lookup failed to UNKNOWN. Needs no monitor
+    private Map<Long, Long> read(long[] keys) {
+        Map<Long, Long> versions = new HashMap<>();
+        for (int start = 0; start < keys.length; start += SqliteChunkStore.BULK_QUERY_SIZE) {
+            final int from = start;
+            final int to = Math.min(keys.length, start + SqliteChunkStore.BULK_QUERY_SIZE);
+            Map<Long, Long> stored;
+            long absent = 0; // No row: never changed since generated
+            try {
+                stored = db.read(c -> {
+                    PreparedStatement pstmt = c.prepare(BULK_SQL);
+                    for (int p = 0; p < SqliteChunkStore.BULK_QUERY_SIZE; p++) {
+                        pstmt.setLong(p + 1, keys[Math.min(from + p, to - 1)]); // Pad with the last key
+                    }
+                    Map<Long, Long> found = new HashMap<>();
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        while (rs.next()) {
+                            found.put(rs.getLong(1), rs.getLong(2));
+                        }
+                    }
+                    return found;
+                });
+            } catch (SQLException e) {
+                System.err.println("Chunk version lookup failed: " + e.getMessage());
+                stored = Map.of();
+                absent = UNKNOWN;
+            }
+            for (int i = from; i < to; i++) {
+                versions.put(keys[i], stored.getOrDefault(keys[i], absent));
+            }
+        }
+        return versions;
+    }
+
+    // Under this monitor: drops least recently used entries over the limit, except unsaved ones
+    private void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (entries.size() > maxEntries && it.hasNext()) {
+            if (!it.next().unsaved) {
+                it.remove();
+                evicted++;
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getLoads() {
+        return loads;
+    }
+
+    public synchronized long getUnchanged() {
+        return unchanged;
+    }
+
+    public synchronized long getDeltas() {
+        return deltas;
+    }
+
+    public synchronized long getFull() {
+        return full;
+    }
+}
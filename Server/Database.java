@@ -0,0 +1,211 @@
+package Server;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Long-lived SQLite access layer.
+ *
+ * Reads borrow one of a small pool of persistent connections, each with its own
+ * PreparedStatement cache. All writes are funneled through a single writer thread
+ * that owns one persistent connection, so writers never contend for the WAL write
+ * lock and readers never pay connection setup.
+ */
+public class Database {
+
+    /** Unit of work run against a pooled connection. */
+    public interface Task<T> {
+        T run(DbConnection db) throws SQLException;
+    }
+
+    /** A persistent connection plus its statement cache. Not thread-safe. */
+    public static class DbConnection {
+        private final Connection conn;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        DbConnection(String url) throws SQLException {
+            this.conn = DriverManager.getConnection(url);
+            try (Statement s = conn.createStatement()) {
+                s.execute("PRAGMA busy_timeout=5000;");
+                s.execute("PRAGMA synchronous=NORMAL;");
+            }
+        }
+
+        /**
+         * Returns a cached PreparedStatement for this SQL. Do not close it;
+         * close ResultSets obtained from it instead.
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement ps = statements.get(sql);
+            if (ps == null) {
+                ps = conn.prepareStatement(sql);
+                statements.put(sql, ps);
+            } else {
+                ps.clearParameters();
+            }
+            return ps;
+        }
+
+        public Connection connection() {
+            return conn;
+        }
+
+        void close() {
+            for (PreparedStatement ps : statements.values()) {
+                try {
+                    ps.close();
+                } catch (SQLException ignored) {
+                }
+            }
+            statements.clear();
+            try {
+                conn.close();
+            } catch (SQLException ignored) {
+            }
+        }
+    }
+
+    private final String url;
+    private final BlockingQueue<DbConnection> readers;
+    private final List<DbConnection> allReaders = new ArrayList<>();
+    private final ExecutorService writerThread;
+    private DbConnection writer; // Only touched on the writer thread
+    private volatile boolean closed = false;
+
+    public Database(String url, int readerCount) throws SQLException {
+        this.url = url;
+
+        // WAL must be enabled before readers are opened
+        try (Connection c = DriverManager.getConnection(url);
+                Statement s = c.createStatement()) {
+            s.execute("PRAGMA journal_mode=WAL;");
+        }
+
+        this.readers = new ArrayBlockingQueue<>(readerCount);
+        for (int i = 0; i < readerCount; i++) {
+            DbConnection c = new DbConnection(url);
+            allReaders.add(c);
+            readers.add(c);
+        }
+
+        this.writerThread = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "db-writer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** Runs a read on a pooled connection, blocking until one is free. */
+    public <T> T read(Task<T> task) throws SQLException {
+        DbConnection c;
+        try {
+            c = readers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a read connection", e);
+        }
+        try {
+            return task.run(c);
+        } finally {
+            readers.offer(c);
+        }
+    }
+
+    /** Queues a write on the writer thread. The task runs inside one transaction. */
+    public <T> CompletableFuture<T> write(Task<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        if (closed) {
+            result.completeExceptionally(new SQLException("Database is closed"));
+            return result;
+        }
+        writerThread.execute(() -> {
+            try {
+                result.complete(runInTransaction(task));
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /** Queues a write and waits for it to commit. */
+    public <T> T writeSync(Task<T> task) throws SQLException {
+        try {
+            return write(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for write", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            throw new SQLException(cause);
+        }
+    }
+
+    /**
+     * Queues a task that must run outside a transaction (VACUUM, checkpoints).
+     * It still runs on the writer thread, so it never races other writes.
+     */
+    public <T> CompletableFuture<T> maintenance(Task<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        if (closed) {
+            result.completeExceptionally(new SQLException("Database is closed"));
+            return result;
+        }
+        writerThread.execute(() -> {
+            try {
+                if (writer == null) {
+                    writer = new DbConnection(url);
+                }
+                result.complete(task.run(writer));
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    private <T> T runInTransaction(Task<T> task) throws SQLException {
+        if (writer == null) {
+            writer = new DbConnection(url);
+        }
+        Connection conn = writer.connection();
+        conn.setAutoCommit(false);
+        try {
+            T value = task.run(writer);
+            conn.commit();
+            return value;
+        } catch (SQLException | RuntimeException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    /** Drains queued writes, then closes every connection. */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        writerThread.execute(() -> {
+            if (writer != null) {
+                writer.close();
+                writer = null;
+            }
+        });
+        writerThread.shutdown();
+        try {
+            writerThread.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (DbConnection c : allReaders) {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package Server;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Write-behind buffer for tile edits.
+ *
+ * setBlock edits the cached tile array and only marks the chunk dirty here, so
+ * any number of edits to one chunk cost one row write. The server tick calls
+ * {@link #tick()}, which flushes every dirty chunk in a single transaction once
+ * the oldest edit is older than maxDirtyAgeMs or maxDirtyChunks chunks are
+ * dirty (-Dtyls.maxDirtyAgeMs, -Dtyls.maxDirtyChunks). {@link #flush()} is also
+ * called on shutdown.
+ *
+ * Until a chunk's write has committed this buffer holds a reference to its tiles,
+ * so a cache eviction cannot lose the edit; readers check {@link #get} before
+ * the DB.
+ *
+ * With sparse storage ({@link #setPristineSource}) a chunk whose tiles are back
+ * to the generated terrain has its row deleted instead of written.
+ *
+ * Each chunk is written with the version of its latest edit (see ChunkVersions),
+ * which is told once the write has committed.
+ */
+public class EditBuffer {
+    private static final class Dirty {
+        final int cx;
+        final int cy;
+        byte[] tiles;
+        long version;
+
+        Dirty(int cx, int cy, byte[] tiles, long version) {
+            this.cx = cx;
+            this.cy = cy;
+            this.tiles = tiles;
+            this.version = version;
+        }
+    }
+
+    private final ChunkStore store;
+    private final ChunkVersions versions;
+    private final long maxDirtyAgeNanos;
+    private final int maxDirtyChunks;
+    private volatile WorldPreGenerator.ChunkSource pristine; // Sparse storage only
+
+    private Map<Long, Dirty> dirty = new HashMap<>();
+    private final Map<Long, Dirty> flushing = new HashMap<>(); // Handed to the writer, not committed yet
+    private long oldestDirtyNanos = 0;
+
+    // Counters
+    private long editsTotal = 0;
+    private long flushes = 0;
+    private long chunksWritten = 0;
+
+    public EditBuffer(ChunkStore store, ChunkVersions versions, long maxDirtyAgeMs, int maxDirtyChunks) {
+        this.store = store;
+        this.versions = versions;
+        this.maxDirtyAgeNanos = maxDirtyAgeMs * 1_000_000L;
+        this.maxDirtyChunks = maxDirtyChunks;
+    }
+
+    /** Enables sparse storage: chunks equal to the source's output are deleted rather than stored. */
+    public void setPristineSource(WorldPreGenerator.ChunkSource source) {
+        this.pristine = source;
+    }
+
+    /**
+     * Records that the given chunk's tiles changed, now at version. The array is
+     * written as-is at flush time.
+     */
+    public synchronized void markDirty(int cx, int cy, byte[] tiles, long version) {
+        long key = ChunkCache.key(cx, cy);
+        Dirty d = dirty.get(key);
+        if (d == null) {
+            if (dirty.isEmpty()) {
+                oldestDirtyNanos = System.nanoTime();
+            }
+            d = new Dirty(cx, cy, tiles, version);
+            dirty.put(key, d);
+        }
+        d.tiles = tiles;
+        d.version = version;
+        editsTotal++;
+    }
+
+    /**
+     * Drops a pending edit because the caller is writing a newer version of the
+     * whole chunk itself (writes are ordered on the writer thread).
+     */
+    public synchronized void discard(int cx, int cy) {
+        dirty.remove(ChunkCache.key(cx, cy));
+    }
+
+    /** Unflushed tiles for a chunk, or null if it is clean. */
+    public synchronized byte[] get(int cx, int cy) {
+        long key = ChunkCache.key(cx, cy);
+        Dirty d = dirty.get(key);
+        if (d == null) {
+            d = flushing.get(key);
+        }
+        return d == null ? null : d.tiles;
+    }
+
+    /** Called once per server tick: flushes when a durability bound is reached. */
+    public void tick() {
+        boolean due;
+        synchronized (this) {
+            due = !dirty.isEmpty() && (dirty.size() >= maxDirtyChunks
+                    || System.nanoTime() - oldestDirtyNanos >= maxDirtyAgeNanos);
+        }
+        if (due) {
+            flush().exceptionally(e -> {
+                System.err.println("Edit flush failed: " + e.getMessage());
+                return null;
+            });
+        }
+    }
+
+    /** Writes every dirty chunk in one store batch (one transaction with SQLite). */
+    public CompletableFuture<Integer> flush() {
+        Map<Long, Dirty> batch;
+        synchronized (this) {
+            if (dirty.isEmpty()) {
+                return CompletableFuture.completedFuture(0);
+            }
+            batch = dirty;
+            dirty = new HashMap<>();
+            flushing.putAll(batch);
+            flushes++;
+            chunksWritten += batch.size();
+        }
+
+        // Snapshot now, so later edits to the same arrays go to the next flush
+        List<Dirty> rows = new ArrayList<>(batch.size());
+        for (Dirty d : batch.values()) {
+            rows.add(new Dirty(d.cx, d.cy, d.tiles.clone(), d.version));
+        }
+        WorldPreGenerator.ChunkSource source = pristine;
+
+        // Regenerating and encoding on the writer thread keeps both off the tick
+        ChunkStore.Batch writes = new ChunkStore.Batch(Metrics.DB_EDIT_FLUSH);
+        return store.write(writes.fillOnWriter(b -> {
+            for (Dirty row : rows) {
+                b.version(row.cx, row.cy, row.version);
+                if (source != null && Arrays.equals(row.tiles, source.generate(row.cx, row.cy))) {
+                    b.delete(row.cx, row.cy);
+                } else {
+                    b.put(row.cx, row.cy, ChunkCodec.encode(row.tiles));
+                }
+            }
+        })).whenComplete((n, e) -> {
+            synchronized (this) {
+                for (Map.Entry<Long, Dirty> entry : batch.entrySet()) {
+                    flushing.remove(entry.getKey(), entry.getValue());
+                }
+                if (e == null) {
+                    versions.persisted(writes);
+                } else {
+                    // Put failed chunks back unless they were edited again meanwhile
+                    for (Map.Entry<Long, Dirty> entry : batch.entrySet()) {
+                        if (dirty.isEmpty()) {
+                            oldestDirtyNanos = System.nanoTime();
+                        }
+                        dirty.putIfAbsent(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        });
+    }
+
+    public synchronized int dirtyCount() {
+        return dirty.size();
+    }
+
+    public synchronized long getEditsTotal() {
+        return editsTotal;
+    }
+
+    public synchronized long getFlushes() {
+        return flushes;
+    }
+
+    public synchronized long getChunksWritten() {
+        return chunksWritten;
+    }
+}
@@ -0,0 +1,89 @@
+package Server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-bucket latency histogram, safe to record from any thread without locks.
+ *
+ * Bucket i counts samples {@code <= bounds[i]} (and above the previous bound);
+ * the last bucket is the overflow. Counts are not cumulative here; exporters
+ * add them up if they need to.
+ */
+public class Histogram {
+    /** 10 us .. 1 s in 1-2-5 steps, suitable for tick phases, DB calls and message handling. */
+    public static final long[] LATENCY_BOUNDS_NANOS = {
+            10_000L, 20_000L, 50_000L,
+            100_000L, 200_000L, 500_000L,
+            1_000_000L, 2_000_000L, 5_000_000L,
+            10_000_000L, 20_000_000L, 50_000_000L,
+            100_000_000L, 200_000_000L, 500_000_000L,
+            1_000_000_000L };
+
+    private final long[] bounds;
+    private final AtomicLongArray buckets;
+    private final LongAdder sum = new LongAdder();
+    private final LongAdder count = new LongAdder();
+
+    public Histogram() {
+        this(LATENCY_BOUNDS_NANOS);
+    }
+
+    public Histogram(long[] boundsNanos) {
+        this.bounds = boundsNanos.clone();
+        this.buckets = new AtomicLongArray(bounds.length + 1);
+    }
+
+    public void record(long nanos) {
+        int i = 0;
+        while (i < bounds.length && nanos > bounds[i]) {
+            i++;
+        }
+        buckets.incrementAndGet(i);
+        sum.add(nanos);
+        count.increment();
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSumNanos() {
+        return sum.sum();
+    }
+
+    /** Upper bounds of the finite buckets, in nanoseconds. */
+    public long[] getBounds() {
+        return bounds.clone();
+    }
+
+    /** Per-bucket counts; one more entry than getBounds() (the overflow bucket). */
+    public long[] getBucketCounts() {
+        long[] out = new long[buckets.length()];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = buckets.get(i);
+        }
+        return out;
+    }
+
+    /** Upper bound of the bucket holding quantile q (0..1): Long.MAX_VALUE in the overflow bucket, -1 with no samples. */
+    public long quantileUpperBound(double q) {
+        long[] counts = getBucketCounts();
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        if (total == 0) {
+            return -1;
+        }
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                return i < bounds.length ? bounds[i] : Long.MAX_VALUE;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+}
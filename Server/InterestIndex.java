@@ -0,0 +1,131 @@
+package Server;
+
+import org.java_websocket.WebSocket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Area-of-interest index: which sockets can see a given chunk.
+ *
+ * The world is divided into square regions of {@link #REGION_CHUNKS} chunks.
+ * Each located session is registered in every region overlapped by its
+ * interest area (its chunk position +/- its view radius, see
+ * {@link Session#sees}). Registrations are refreshed from pos updates and only
+ * change when the area crosses a region boundary. A lookup for a chunk reads a
+ * single region and filters it by the exact distance check.
+ *
+ * Sessions that have not reported a position yet are kept in a separate set
+ * and receive everything, as before.
+ */
+public class InterestIndex {
+    static final int REGION_SHIFT = 4;
+    static final int REGION_CHUNKS = 1 << REGION_SHIFT;
+
+    private final ConcurrentHashMap<Long, Set<WebSocket>> regions = new ConcurrentHashMap<>();
+    private final Set<WebSocket> unlocated = ConcurrentHashMap.newKeySet();
+
+    public void add(WebSocket conn) {
+        unlocated.add(conn);
+    }
+
+    public void remove(WebSocket conn) {
+        unlocated.remove(conn);
+        Session session = conn.getAttachment();
+        if (session != null) {
+            synchronized (session) {
+                int[] r = session.regions;
+                if (r != null) {
+                    unregister(conn, r[0], r[1], r[2], r[3]);
+                    session.regions = null;
+                }
+            }
+        }
+    }
+
+    /** Re-registers conn after its session's position or view radius changed. */
+    public void update(WebSocket conn, Session session) {
+        if (!session.hasPosition()) {
+            return;
+        }
+        int radius = session.getViewRadius();
+        int rx0 = (session.getChunkX() - radius) >> REGION_SHIFT;
+        int ry0 = (session.getChunkY() - radius) >> REGION_SHIFT;
+        int rx1 = (session.getChunkX() + radius) >> REGION_SHIFT;
+        int ry1 = (session.getChunkY() + radius) >> REGION_SHIFT;
+
+        synchronized (session) {
+            if (!conn.isOpen()) {
+                return; // Closed meanwhile; remove() has run or will run
+            }
+            int[] old = session.regions;
+            if (old != null && old[0] == rx0 && old[1] == ry0 && old[2] == rx1 && old[3] == ry1) {
+                return;
+            }
+            // Join the new regions before leaving the old ones, so lookups never miss it
+            for (int ry = ry0; ry <= ry1; ry++) {
+                for (int rx = rx0; rx <= rx1; rx++) {
+                    join(conn, rx, ry);
+                }
+            }
+            if (old != null) {
+                for (int ry = old[1]; ry <= old[3]; ry++) {
+                    for (int rx = old[0]; rx <= old[2]; rx++) {
+                        if (rx < rx0 || rx > rx1 || ry < ry0 || ry > ry1) {
+                            leave(conn, rx, ry);
+                        }
+                    }
+                }
+            }
+            session.regions = new int[] { rx0, ry0, rx1, ry1 };
+            unlocated.remove(conn);
+        }
+    }
+
+    /** Calls action for every socket that can see chunk (cx, cy). */
+    public void forEachWatcher(int cx, int cy, Consumer<WebSocket> action) {
+        Set<WebSocket> region = regions.get(ChunkCache.key(cx >> REGION_SHIFT, cy >> REGION_SHIFT));
+        if (region != null) {
+            for (WebSocket conn : region) {
+                Session session = conn.getAttachment();
+                if (session != null && session.sees(cx, cy)) {
+                    action.accept(conn);
+                }
+            }
+        }
+        for (WebSocket conn : unlocated) {
+            action.accept(conn);
+        }
+    }
+
+    /** Number of regions with at least one watcher. */
+    public int regionCount() {
+        return regions.size();
+    }
+
+    private void unregister(WebSocket conn, int rx0, int ry0, int rx1, int ry1) {
+        for (int ry = ry0; ry <= ry1; ry++) {
+            for (int rx = rx0; rx <= rx1; rx++) {
+                leave(conn, rx, ry);
+            }
+        }
+    }
+
+    // Set updates happen inside compute, so an emptied set is never joined after removal
+    private void join(WebSocket conn, int rx, int ry) {
+        regions.compute(ChunkCache.key(rx, ry), (k, set) -> {
+            if (set == null) {
+                set = ConcurrentHashMap.newKeySet();
+            }
+            set.add(conn);
+            return set;
+        });
+    }
+
+    private void leave(WebSocket conn, int rx, int ry) {
+        regions.computeIfPresent(ChunkCache.key(rx, ry), (k, set) -> {
+            set.remove(conn);
+            return set.isEmpty() ? null : set;
+        });
+    }
+}
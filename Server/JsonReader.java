@@ -0,0 +1,360 @@
+package Server;
+
+/**
+ * Allocation-free JSON tokenizer for the small client messages.
+ *
+ * {@link #reset} indexes the top-level fields of an object in a single pass,
+ * recording only offsets into the source string; nested objects and arrays are
+ * skipped over and kept as spans. Field lookups compare names in place, and
+ * {@link #getInt}/{@link #getFloat} parse numbers straight from the characters,
+ * accepting both {@code 10} and {@code "10"}. Nothing is copied unless a caller
+ * asks for a String.
+ *
+ * A span can be walked token by token with {@link #next()} (e.g. the array of
+ * chunks in a save). Readers are reusable and not thread-safe.
+ */
+public final class JsonReader {
+    // Token kinds returned by next()
+    public static final int END = 0;
+    public static final int OBJECT = 1;
+    public static final int END_OBJECT = 2;
+    public static final int ARRAY = 3;
+    public static final int END_ARRAY = 4;
+    public static final int STRING = 5; // start()/end() exclude the quotes
+    public static final int NUMBER = 6;
+    public static final int LITERAL = 7; // true, false, null
+
+    private static final int MAX_FIELDS = 32;
+    private static final double[] POW10 = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12,
+            1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 }; // Exact as doubles
+
+    private String src;
+    private int pos;
+    private int limit;
+    private int tokStart;
+    private int tokEnd;
+
+    // Top-level fields of the last reset(): name span, value kind and value span
+    private int fieldCount;
+    private final int[] nameStart = new int[MAX_FIELDS];
+    private final int[] nameEnd = new int[MAX_FIELDS];
+    private final int[] valueKind = new int[MAX_FIELDS];
+    private final int[] valueStart = new int[MAX_FIELDS];
+    private final int[] valueEnd = new int[MAX_FIELDS];
+
+    /** Indexes the object in json. Returns false if it is not an object or is malformed. */
+    public boolean reset(String json) {
+        return reset(json, 0, json.length());
+    }
+
+    /** Indexes the object in json[from, to). */
+    public boolean reset(String json, int from, int to) {
+        src = json;
+        pos = from;
+        limit = to;
+        fieldCount = 0;
+        if (next() != OBJECT) {
+            return false;
+        }
+        while (true) {
+            int kind = next();
+            if (kind == END_OBJECT) {
+                return true;
+            }
+            if (kind != STRING) {
+                return false;
+            }
+            int ns = tokStart;
+            int ne = tokEnd;
+            kind = next();
+            if (kind == END || kind == END_OBJECT || kind == END_ARRAY) {
+                return false;
+            }
+            int vs = tokStart;
+            if (kind == OBJECT || kind == ARRAY) {
+                if (!skipNested()) {
+                    return false;
+                }
+                tokEnd = pos;
+            }
+            if (fieldCount < MAX_FIELDS) {
+                nameStart[fieldCount] = ns;
+                nameEnd[fieldCount] = ne;
+                valueKind[fieldCount] = kind;
+                valueStart[fieldCount] = vs;
+                valueEnd[fieldCount] = tokEnd;
+                fieldCount++;
+            }
+        }
+    }
+
+    /** Positions the tokenizer on json[from, to) without indexing anything. */
+    public void walk(String json, int from, int to) {
+        src = json;
+        pos = from;
+        limit = to;
+        fieldCount = 0;
+    }
+
+    /**
+     * Next token. Commas and colons are treated as whitespace, so names come back
+     * as STRING tokens; callers know from context whether a name or value is next.
+     */
+    public int next() {
+        while (pos < limit) {
+            char c = src.charAt(pos);
+            if (c == ' ' || c == ',' || c == ':' || c == '\n' || c == '\r' || c == '\t') {
+                pos++;
+                continue;
+            }
+            tokStart = pos;
+            switch (c) {
+                case '{':
+                    pos++;
+                    tokEnd = pos;
+                    return OBJECT;
+                case '}':
+                    pos++;
+                    tokEnd = pos;
+                    return END_OBJECT;
+                case '[':
+                    pos++;
+                    tokEnd = pos;
+                    return ARRAY;
+                case ']':
+                    pos++;
+                    tokEnd = pos;
+                    return END_ARRAY;
+                case '"': {
+                    int i = pos + 1;
+                    while (i < limit) {
+                        char q = src.charAt(i);
+                        if (q == '"') {
+                            break;
+                        }
+                        i += q == '\\' ? 2 : 1;
+                    }
+                    if (i >= limit) {
+                        pos = limit;
+                        return END;
+                    }
+                    tokStart = pos + 1;
+                    tokEnd = i;
+                    pos = i + 1;
+                    return STRING;
+                }
+                default: {
+                    int i = pos;
+                    while (i < limit) {
+                        char q = src.charAt(i);
+                        if (q == ',' || q == '}' || q == ']' || q == ' ' || q == ':' || q == '\n' || q == '\r'
+                                || q == '\t') {
+                            break;
+                        }
+                        i++;
+                    }
+                    tokEnd = i;
+                    pos = i;
+                    return (c == '-' || (c >= '0' && c <= '9')) ? NUMBER : LITERAL;
+                }
+            }
+        }
+        return END;
+    }
+
+    /** Skips the rest of the object or array whose opening token was just read. */
+    public boolean skipNested() {
+        int depth = 1;
+        while (depth > 0) {
+            int kind = next();
+            if (kind == END) {
+                return false;
+            }
+            if (kind == OBJECT || kind == ARRAY) {
+                depth++;
+            } else if (kind == END_OBJECT || kind == END_ARRAY) {
+                depth--;
+            }
+        }
+        return true;
+    }
+
+    public int start() {
+        return tokStart;
+    }
+
+    public int end() {
+        return tokEnd;
+    }
+
+    // --- Indexed field access ---
+
+    /** Index of the top-level field with this name, or -1. */
+    public int find(String name) {
+        int len = name.length();
+        for (int i = 0; i < fieldCount; i++) {
+            if (nameEnd[i] - nameStart[i] == len && src.startsWith(name, nameStart[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean has(String name) {
+        return find(name) != -1;
+    }
+
+    public int kindOf(int field) {
+        return valueKind[field];
+    }
+
+    /** Value span of a field. Objects and arrays include their brackets; strings exclude the quotes. */
+    public int valueStart(int field) {
+        return valueStart[field];
+    }
+
+    public int valueEnd(int field) {
+        return valueEnd[field];
+    }
+
+    /** True if the named field is a string equal to value. */
+    public boolean stringEquals(String name, String value) {
+        return valueEquals(find(name), value);
+    }
+
+    /** True if field (an index from find, or -1) is a string equal to value. */
+    public boolean valueEquals(int field, String value) {
+        return field != -1 && valueKind[field] == STRING && valueEnd[field] - valueStart[field] == value.length()
+                && src.startsWith(value, valueStart[field]);
+    }
+
+    /** Raw text of a field's value (allocates). */
+    public String getRaw(String name) {
+        int f = find(name);
+        return f == -1 ? null : src.substring(valueStart[f], valueEnd[f]);
+    }
+
+    /** Integer field, quoted or not; def if absent or not an integer. */
+    public int getInt(String name, int def) {
+        int f = find(name);
+        return f == -1 ? def : parseInt(src, valueStart[f], valueEnd[f], def);
+    }
+
+    /** Long field, quoted or not; def if absent or not an integer. */
+    public long getLong(String name, long def) {
+        int f = find(name);
+        return f == -1 ? def : parseLong(src, valueStart[f], valueEnd[f], def);
+    }
+
+    /** Float field, quoted or not; def if absent or not a number. */
+    public float getFloat(String name, float def) {
+        int f = find(name);
+        return f == -1 ? def : parseFloat(src, valueStart[f], valueEnd[f], def);
+    }
+
+    // --- Number parsing from characters ---
+
+    /** Parses s[from, to) as a decimal int, or returns def. */
+    public static int parseInt(CharSequence s, int from, int to, int def) {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+            negative = s.charAt(i) == '-';
+            i++;
+        }
+        if (i >= to || to - i > 10) {
+            return def;
+        }
+        long value = 0;
+        for (; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return def;
+            }
+            value = value * 10 + (c - '0');
+        }
+        value = negative ? -value : value;
+        return value < Integer.MIN_VALUE || value > Integer.MAX_VALUE ? def : (int) value;
+    }
+
+    /** Parses s[from, to) as a decimal long of at most 18 digits, or returns def. */
+    public static long parseLong(CharSequence s, int from, int to, long def) {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+            negative = s.charAt(i) == '-';
+            i++;
+        }
+        if (i >= to || to - i > 18) {
+            return def;
+        }
+        long value = 0;
+        for (; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return def;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses s[from, to) as a decimal number rounded to float, or returns def.
+     * The first 18 significant digits are accumulated in a long and scaled by one
+     * power of ten, which is well inside float precision; exponents and very
+     * large or small magnitudes fall back to Float.parseFloat.
+     */
+    public static float parseFloat(CharSequence s, int from, int to, float def) {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+            negative = s.charAt(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exp10 = 0;
+        boolean sawDigit = false;
+        boolean point = false;
+        for (; i < to; i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                sawDigit = true;
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                    if (point) {
+                        exp10--;
+                    }
+                } else if (!point) {
+                    exp10++; // Dropped integer digit
+                }
+            } else if (c == '.' && !point) {
+                point = true;
+            } else if (c == 'e' || c == 'E') {
+                return slowParseFloat(s, from, to, def);
+            } else {
+                return def;
+            }
+        }
+        if (!sawDigit) {
+            return def;
+        }
+        if (exp10 <= -POW10.length || exp10 >= POW10.length) {
+            return slowParseFloat(s, from, to, def);
+        }
+        double value = exp10 < 0 ? mantissa / POW10[-exp10] : mantissa * POW10[exp10];
+        return (float) (negative ? -value : value);
+    }
+
+    private static float slowParseFloat(CharSequence s, int from, int to, float def) {
+        try {
+            return Float.parseFloat(s.subSequence(from, to).toString());
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package Server;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Level-of-detail pyramid for zoomed-out views.
+ *
+ * Every cell holds one tile id. A level-0 cell is a chunk, holding that chunk's
+ * dominant tile (the most common id of its 256, lowest id on a tie). A level-n
+ * cell covers {@link #FAN} x {@link #FAN} cells of level n-1 and holds their
+ * dominant value, so the {@link #LEVELS} levels cover 1x1, 4x4 and 16x16 chunks.
+ *
+ * Cells are served in pages of {@link #PAGE_SIZE} x {@link #PAGE_SIZE}. A page
+ * is built on first request: level 0 from the chunks' current tiles (read without
+ * filling the chunk cache), higher levels from the 4 x 4 pages below. Built pages
+ * stay in memory. Edits and saves call {@link #chunkChanged}, which updates the
+ * chunk's cell and walks up the pyramid only while a cell actually changes. Pages
+ * that are requested but not built yet are built on a single background thread.
+ */
+public class LodPyramid {
+    static final int LEVELS = 3;
+    static final int PAGE_SIZE = 16; // Cells per page side
+    static final int PAGE_CELLS = PAGE_SIZE * PAGE_SIZE;
+    static final int FAN = 4; // Cells per side merged into one cell of the next level
+    private static final int MAX_CHUNK_COORD = 1 << 26; // Keeps tile coordinates within an int
+
+    /** Current tiles of up to count chunks, by ChunkCache.key(cx, cy). */
+    public interface ChunkReader {
+        byte[][] read(long[] keys, int count);
+    }
+
+    // Pages of one level; guarded by the pyramid's monitor
+    private static final class Level {
+        final Map<Long, byte[]> pages = new HashMap<>();
+        final Set<Long> building = new HashSet<>();
+        final Set<Long> stale = new HashSet<>(); // Changed while being built
+    }
+
+    private final ChunkReader reader;
+    private final int maxPages;
+    private final Level[] levels = new Level[LEVELS];
+    private final ExecutorService builder;
+    private final int[] counts = new int[256]; // chunkChanged only, under the monitor
+    private final int[] buildCounts = new int[256]; // Builder thread only
+
+    // Counters
+    private long pagesBuilt = 0;
+    private long pageHits = 0;
+    private long pageMisses = 0;
+
+    public LodPyramid(ChunkReader reader, int maxPages, int maxQueued) {
+        this.reader = reader;
+        this.maxPages = maxPages;
+        for (int i = 0; i < LEVELS; i++) {
+            levels[i] = new Level();
+        }
+        this.builder = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(maxQueued),
+                r -> {
+                    Thread t = new Thread(r, "lod-builder");
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    /** Chunks per cell side at a level (1, 4, 16). */
+    static int chunksPerCell(int level) {
+        return 1 << (2 * level);
+    }
+
+    /** False for an unknown level or a page too far out to address its tiles. */
+    static boolean isValidPage(int level, int px, int py) {
+        if (level < 0 || level >= LEVELS) {
+            return false;
+        }
+        long span = (long) PAGE_SIZE * chunksPerCell(level);
+        return Math.abs(px * span) < MAX_CHUNK_COORD && Math.abs(py * span) < MAX_CHUNK_COORD;
+    }
+
+    /**
+     * Passes a copy of page (px, py) of a level to reply: right away if it is built,
+     * else from the builder thread. Invalid or (queue full) refused requests get no reply.
+     */
+    public void request(int level, int px, int py, Consumer<byte[]> reply) {
+        if (!isValidPage(level, px, py)) {
+            return;
+        }
+        long key = ChunkCache.key(px, py);
+        byte[] copy = null;
+        synchronized (this) {
+            byte[] page = levels[level].pages.get(key);
+            if (page != null) {
+                pageHits++;
+                copy = page.clone();
+            } else {
+                pageMisses++;
+            }
+        }
+        if (copy != null) {
+            reply.accept(copy);
+            return;
+        }
+        try {
+            builder.execute(() -> {
+                byte[] page = build(level, px, py);
+                byte[] built;
+                synchronized (this) {
+                    built = page.clone();
+                }
+                reply.accept(built);
+            });
+        } catch (RejectedExecutionException e) {
+            // Overloaded; the client asks again
+        }
+    }
+
+    /**
+     * Records a chunk's new tiles. Cheap enough for the tick thread: one pass over
+     * the tiles, then one 4 x 4 pass per level whose cell changed.
+     */
+    public synchronized void chunkChanged(int cx, int cy, byte[] tiles) {
+        int value = dominant(tiles, 0, TerrainGenerator.CHUNK_SIZE, TerrainGenerator.CHUNK_SIZE, counts);
+        boolean known = true; // False once a level's page is missing: the value above is unknown
+        int x = cx;
+        int y = cy;
+        for (int level = 0; level < LEVELS; level++) {
+            Level l = levels[level];
+            long key = ChunkCache.key(Math.floorDiv(x, PAGE_SIZE), Math.floorDiv(y, PAGE_SIZE));
+            if (l.building.contains(key)) {
+                l.stale.add(key);
+            }
+            byte[] page = l.pages.get(key);
+            if (page != null && !known) {
+                l.pages.remove(key); // Cannot be patched without its children; rebuilt on demand
+            } else if (page == null) {
+                known = false;
+            } else {
+                int cellX = Math.floorMod(x, PAGE_SIZE);
+                int cellY = Math.floorMod(y, PAGE_SIZE);
+                if (page[cellY * PAGE_SIZE + cellX] == (byte) value) {
+                    return; // Nothing above can change
+                }
+                page[cellY * PAGE_SIZE + cellX] = (byte) value;
+                int blockStart = (cellY - cellY % FAN) * PAGE_SIZE + (cellX - cellX % FAN);
+                value = dominant(page, blockStart, PAGE_SIZE, FAN, counts);
+            }
+            x = Math.floorDiv(x, FAN);
+            y = Math.floorDiv(y, FAN);
+        }
+    }
+
+    // Builder thread: the installed page, building it (and any missing pages below) first
+    private byte[] build(int level, int px, int py) {
+        Level l = levels[level];
+        long key = ChunkCache.key(px, py);
+        while (true) {
+            synchronized (this) {
+                byte[] page = l.pages.get(key);
+                if (page != null) {
+                    return page;
+                }
+                l.building.add(key);
+            }
+
+            byte[] page = level == 0 ? buildFromChunks(px, py) : buildFromPages(level, px, py);
+
+            synchronized (this) {
+                l.building.remove(key);
+                if (!l.stale.remove(key)) {
+                    if (size() >= maxPages) {
+                        clear(); // Rare (a very large explored area); everything is rebuilt on demand
+                    }
+                    l.pages.put(key, page);
+                    pagesBuilt++;
+                    return page;
+                }
+            }
+            // A chunk in this page changed while it was read: build it again
+        }
+    }
+
+    private byte[] buildFromChunks(int px, int py) {
+        long[] keys = new long[PAGE_CELLS];
+        int x0 = px * PAGE_SIZE;
+        int y0 = py * PAGE_SIZE;
+        for (int i = 0; i < PAGE_CELLS; i++) {
+            keys[i] = ChunkCache.key(x0 + i % PAGE_SIZE, y0 + i / PAGE_SIZE);
+        }
+        byte[][] tiles = reader.read(keys, PAGE_CELLS);
+        byte[] page = new byte[PAGE_CELLS];
+        for (int i = 0; i < PAGE_CELLS; i++) {
+            page[i] = (byte) dominant(tiles[i], 0, TerrainGenerator.CHUNK_SIZE, TerrainGenerator.CHUNK_SIZE,
+                    buildCounts);
+        }
+        return page;
+    }
+
+    // Each of the 4 x 4 child pages fills a 4 x 4 block of this page's cells
+    private byte[] buildFromPages(int level, int px, int py) {
+        byte[] page = new byte[PAGE_CELLS];
+        int childCells = PAGE_SIZE / FAN;
+        for (int j = 0; j < FAN; j++) {
+            for (int i = 0; i < FAN; i++) {
+                byte[] child = build(level - 1, px * FAN + i, py * FAN + j);
+                for (int cy = 0; cy < childCells; cy++) {
+                    for (int cx = 0; cx < childCells; cx++) {
+                        int v = dominant(child, cy * FAN * PAGE_SIZE + cx * FAN, PAGE_SIZE, FAN, buildCounts);
+                        page[(j * childCells + cy) * PAGE_SIZE + i * childCells + cx] = (byte) v;
+                    }
+                }
+            }
+        }
+        return page;
+    }
+
+    // Most common value in a side x side block of a row-major grid (lowest value on a tie)
+    private static int dominant(byte[] grid, int start, int stride, int side, int[] counts) {
+        Arrays.fill(counts, 0);
+        for (int y = 0; y < side; y++) {
+            int row = start + y * stride;
+            for (int x = 0; x < side; x++) {
+                counts[grid[row + x] & 0xFF]++;
+            }
+        }
+        int best = 0;
+        for (int v = 1; v < counts.length; v++) {
+            if (counts[v] > counts[best]) {
+                best = v;
+            }
+        }
+        return best;
+    }
+
+    private void clear() {
+        for (Level l : levels) {
+            l.pages.clear();
+        }
+    }
+
+    /** Pages held, all levels. */
+    public synchronized int size() {
+        int n = 0;
+        for (Level l : levels) {
+            n += l.pages.size();
+        }
+        return n;
+    }
+
+    public synchronized long getPagesBuilt() {
+        return pagesBuilt;
+    }
+
+    public synchronized long getPageHits() {
+        return pageHits;
+    }
+
+    public synchronized long getPageMisses() {
+        return pageMisses;
+    }
+}
@@ -4,19 +4,121 @@ import org.java_websocket.server.WebSocketServer;
 import org.java_websocket.WebSocket;
 import org.java_websocket.handshake.ClientHandshake;
 import com.sun.net.httpserver.HttpServer;
-import com.sun.net.httpserver.HttpExchange;
 import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
 import java.net.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.nio.file.*;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class Main {
     private static final int CHUNK_SIZE = 16;
-    private static final String DB_URL = "jdbc:sqlite:world.db";
     private static final int WORLD_RADIUS_CHUNKS = 512; // 1024x1024 chunks total (~1M)
-    private static final int HTTP_PORT = 8001;
-    private static final int WS_PORT = 8002;
+
+    // World database and ports (override with -Dtyls.dbFile=F, -Dtyls.httpPort=N, -Dtyls.wsPort=N)
+    private static final String DB_URL = "jdbc:sqlite:" + System.getProperty("tyls.dbFile", "world.db");
+    private static final int HTTP_PORT = Integer.getInteger("tyls.httpPort", 8001);
+    private static final int WS_PORT = Integer.getInteger("tyls.wsPort", 8002);
+
+    // Partition mode (-Dtyls.partition=N, set by PartitionRouter): this process owns only
+    // partition N of the chunk plane (see Partitioning) and serves the router on loopback
+    private static final int PARTITION = Integer.getInteger("tyls.partition", -1);
+    private static final Partitioning partitions = PARTITION >= 0 ? Partitioning.fromProperties() : null;
+
+    // Production mode (-Dtyls.production=true): long browser caching for hashed assets
+    private static final boolean PRODUCTION = Boolean.getBoolean("tyls.production");
+    private static final int TILES_PER_CHUNK = CHUNK_SIZE * CHUNK_SIZE;
+    private static final int TILE_SIZE_PX = 16; // Client world units per tile (pos messages)
+
+    // Chunk cache budget in MB (override with -Dtyls.chunkCacheMb=N)
+    private static final int CHUNK_CACHE_MB = Integer.getInteger("tyls.chunkCacheMb", 64);
+    private static final ChunkCache chunkCache = new ChunkCache(CHUNK_CACHE_MB * 1024L * 1024L, TILES_PER_CHUNK);
+
+    // Pooled read connections (override with -Dtyls.dbReaders=N), single writer thread
+    private static final int DB_READERS = Integer.getInteger("tyls.dbReaders", 4);
+    private static Database db;
+
+    // Chunk storage backend, fixed per world (metadata chunk_store): the SQLite chunks
+    // table, or region files in -Dtyls.regionDir (new worlds: -Dtyls.chunkStore=sqlite|region)
+    private static final String CHUNK_STORE_KEY = "chunk_store";
+    private static final Path REGION_DIR = Paths.get(System.getProperty("tyls.regionDir", "regions"));
+    private static ChunkStore store;
+
+    // Write-behind tile edits, flushed from the tick loop
+    private static final long MAX_DIRTY_AGE_MS = Long.getLong("tyls.maxDirtyAgeMs", 1000);
+    private static final int MAX_DIRTY_CHUNKS = Integer.getInteger("tyls.maxDirtyChunks", 256);
+    private static EditBuffer editBuffer;
+
+    // Chunk versions for delta resync (see ChunkVersions)
+    private static final int CHUNK_VERSION_ENTRIES = Integer.getInteger("tyls.chunkVersionEntries", 65536);
+    private static ChunkVersions versions;
+
+    // Online world snapshots (see WorldSnapshots): every -Dtyls.snapshotIntervalSec seconds
+    // (0: off) and on POST /admin/snapshot, into -Dtyls.snapshotDir, a full one after every
+    // -Dtyls.snapshotFullEvery incrementals
+    private static final Path SNAPSHOT_DIR = Paths.get(System.getProperty("tyls.snapshotDir", "snapshots"));
+    private static final long SNAPSHOT_INTERVAL_SEC = Long.getLong("tyls.snapshotIntervalSec", 0);
+    private static final int SNAPSHOT_FULL_EVERY = Integer.getInteger("tyls.snapshotFullEvery", 24);
+    private static WorldSnapshots worldSnapshots;
+
+    // Terrain for the world seed; immutable, shared by every generating thread
+    private static final int WORLD_SEED = 12345;
+    private static final TerrainGenerator terrain = new TerrainGenerator(WORLD_SEED);
+
+    // World pre-generation threads (override with -Dtyls.genThreads=N)
+    private static final int GEN_THREADS = Integer.getInteger("tyls.genThreads",
+            Runtime.getRuntime().availableProcessors());
+
+    // Area of interest for block/pos fan-out; radius in chunks until a client's
+    // getChunks requests say otherwise (override with -Dtyls.viewRadius=N)
+    private static final int VIEW_RADIUS = Integer.getInteger("tyls.viewRadius", 32);
+    private static final InterestIndex interest = new InterestIndex();
+
+    // Fixed-step tick (override with -Dtyls.tps=N, -Dtyls.maxCatchUpTicks=N)
+    private static final TickScheduler ticker = new TickScheduler(Integer.getInteger("tyls.tps", 20),
+            Integer.getInteger("tyls.maxCatchUpTicks", 5));
+
+    // Block edits from the socket threads (and saves from the saver), applied by the tick
+    // int[] {x, y, val} per setBlock, a BlockEdits per setBlocks or a SaveDiff, in arrival order
+    private static final ConcurrentLinkedQueue<Object> pendingEdits = new ConcurrentLinkedQueue<>();
+    private static final List<Object> tickEdits = new ArrayList<>(); // Tick thread only
+
+    // Outbound frames: per-client priority queues, drained each tick within a byte budget;
+    // clients over the backlog limit for too long are dropped (-Dtyls.sendBudgetBytes=N per
+    // tick, -Dtyls.maxSendBacklogBytes=N, -Dtyls.slowClientMs=N)
+    private static final SendScheduler sender = new SendScheduler(Long.getLong("tyls.sendBudgetBytes", 256 * 1024),
+            Long.getLong("tyls.maxSendBacklogBytes", 4 * 1024 * 1024), Long.getLong("tyls.slowClientMs", 10_000));
+
+    // Player positions go out once per tick as per-client delta snapshots
+    private static final SnapshotBroadcaster snapshots = new SnapshotBroadcaster(interest, sender);
+
+    // Batched region requests (getChunks)
+    private static final ChunkStreamer chunkStreamer = new ChunkStreamer(2, sender);
+
+    // Zoomed-out views: one dominant tile per chunk / 4x4 / 16x16 chunks, kept current
+    // by edits and saves (override the page budget with -Dtyls.lodMaxPages=N)
+    private static final LodPyramid lod = new LodPyramid((keys, count) -> getChunkTilesBulk(keys, count, false),
+            Integer.getInteger("tyls.lodMaxPages", 65536), 1024);
+
+    // Saves are diffed and persisted one at a time, in arrival order, off the socket
+    // threads; at most tyls.maxQueuedSaves wait (further saves are refused)
+    private static final ExecutorService saver = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(Integer.getInteger("tyls.maxQueuedSaves", 64)), r -> {
+                Thread t = new Thread(r, "save");
+                t.setDaemon(true);
+                return t;
+            });
+    private static final JsonReader saveReader = new JsonReader(); // Saver thread only
+    private static String[] savedPlayer; // Last persisted player_x/player_y; saver thread only
+
+    // Sparse storage (-Dtyls.storage=sparse, the default for new worlds): only chunks
+    // that differ from the generated terrain are stored
+    private static boolean sparseStorage = false;
 
     // Async Progress Tracking
     private static volatile boolean worldReady = false; // Renamed from isWorldReady as requested
@@ -27,7 +129,9 @@ public class Main {
     // WebSocket Server Inner Class
     public static class GameWebSocketServer extends WebSocketServer {
         public GameWebSocketServer(int port) {
-            super(new InetSocketAddress(port));
+            super(partitions != null ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port)
+                    : new InetSocketAddress(port));
+            setReuseAddr(true); // Allow a quick restart while old sockets sit in TIME_WAIT
             serverInstance = this;
         }
 
@@ -39,6 +143,15 @@ public class Main {
             }
             System.out.println("New connection: " + conn.getRemoteSocketAddress());
 
+            // Protocol negotiation: binary only if the client asked for it (?proto=bin)
+            Session session = new Session(Protocol.wantsBinary(handshake.getResourceDescriptor()), VIEW_RADIUS);
+            if (partitions != null) {
+                session.snapshots.rehome(false, 0); // Until the router says this is the player's home
+            }
+            conn.setAttachment(session);
+            interest.add(conn);
+            sender.send(conn, Protocol.hello(session));
+
             // Send initial world dimension/metadata if needed
             // conn.send("{\"type\":\"config\",\"worldSize\":" + (WORLD_RADIUS_CHUNKS * 2) +
             // "}");
@@ -47,79 +160,333 @@ public class Main {
         @Override
         public void onClose(WebSocket conn, int code, String reason, boolean remote) {
             System.out.println("Closed connection: " + conn.getRemoteSocketAddress());
+            interest.remove(conn);
+        }
+
+        // --- JSON messages: {"type":...} -> handler ---
+
+        private interface MessageHandler {
+            void handle(WebSocket conn, Session session, String message, JsonReader msg) throws Exception;
         }
 
+        // Dispatch table, matched against the type field in place (no substring).
+        // Index i is also the Metrics.MSG_* type.
+        private final String[] handlerTypes = { "pos", "ack", "getChunk", "getChunks", "setBlock", "save",
+                "getLod", "setBlocks" };
+        private final MessageHandler[] handlers = { this::onPos, this::onAck, this::onGetChunk, this::onGetChunks,
+                this::onSetBlock, this::onSave, this::onGetLod, this::onSetBlocks };
+
+        // One reusable tokenizer per socket worker thread
+        private final ThreadLocal<JsonReader> readers = ThreadLocal.withInitial(JsonReader::new);
+
         @Override
         public void onMessage(WebSocket conn, String message) {
+            long start = System.nanoTime();
+            int metric = Metrics.MSG_OTHER;
             try {
                 // System.out.println("Received: " + message); // Debug log
 
-                // Simple generic JSON parser since we don't have a library
-                // We look for "type":"value"
-                String type = extractJsonString(message, "type");
-
-                if ("pos".equals(type)) {
-                    // Broadcast to others
-                    broadcast(message);
-                } else if ("getChunk".equals(type)) {
-                    // Handle Chunk Request: {"type":"getChunk", "key":"0,0", "x":0, "y":0}
-                    String key = extractJsonString(message, "key");
-                    if (key == null)
+                JsonReader msg = readers.get();
+                if (!msg.reset(message)) {
+                    return; // Not a JSON object
+                }
+                int type = msg.find("type");
+                if (partitions != null && msg.valueEquals(type, "route")) {
+                    onRoute(conn, conn.getAttachment(), message, msg);
+                    return;
+                }
+                for (int i = 0; i < handlerTypes.length; i++) {
+                    if (msg.valueEquals(type, handlerTypes[i])) {
+                        metric = i;
+                        handlers[i].handle(conn, conn.getAttachment(), message, msg);
                         return;
+                    }
+                }
+                // Legacy support or unknown
+                // broadcast(message);
+            } catch (Exception e) {
+                System.err.println("Error processing message: " + message);
+                e.printStackTrace();
+            } finally {
+                Metrics.recordMessage(metric, false, System.nanoTime() - start);
+            }
+        }
+
+        // Partition mode only, from the router: {"type":"route","id":7,"home":1,"seq":40}. id is
+        // the player's id in every partition; the home partition (the one the player stands
+        // in) sends the snapshots, numbered above seq, the last one the client got elsewhere
+        private void onRoute(WebSocket conn, Session session, String message, JsonReader msg) {
+            session.id = msg.getInt("id", session.id);
+            session.snapshots.rehome(msg.getInt("home", 0) == 1, msg.getInt("seq", 0));
+        }
+
+        // {"type":"pos","x":1.5,"y":2.5}: recorded only, relayed by the next tick's snapshots
+        private void onPos(WebSocket conn, Session session, String message, JsonReader msg) {
+            float px = msg.getFloat("x", Float.NaN);
+            float py = msg.getFloat("y", Float.NaN);
+            if (!Float.isNaN(px) && !Float.isNaN(py)) {
+                updatePosition(conn, session, px, py);
+            }
+        }
+
+        // {"type":"ack","seq":7}: newest position snapshot the client has applied
+        private void onAck(WebSocket conn, Session session, String message, JsonReader msg) {
+            session.snapshots.ack(msg.getInt("seq", 0));
+        }
+
+        // {"type":"getChunk", "key":"0,0", "x":0, "y":0[, "ver":7]} (ver: the version the client holds)
+        private void onGetChunk(WebSocket conn, Session session, String message, JsonReader msg) {
+            int key = msg.find("key");
+            if (key == -1 || msg.kindOf(key) != JsonReader.STRING) {
+                return;
+            }
+
+            // key is "x,y"
+            int start = msg.valueStart(key);
+            int end = msg.valueEnd(key);
+            int comma = message.indexOf(',', start);
+            if (comma == -1 || comma >= end) {
+                return;
+            }
+            int cx = JsonReader.parseInt(message, start, comma, Integer.MIN_VALUE);
+            int cy = JsonReader.parseInt(message, comma + 1, end, Integer.MIN_VALUE);
+            if (cx != Integer.MIN_VALUE && cy != Integer.MIN_VALUE) {
+                sendChunk(conn, cx, cy, msg.has("ver") ? msg.getLong("ver", ChunkVersions.UNKNOWN) : null);
+            }
+        }
+
+        // Rect: {"type":"getChunks","x0":-5,"y0":-5,"x1":5,"y1":5[,"ex0":..,"ey0":..,"ex1":..,"ey1":..]}
+        // Ring: {"type":"getChunks","cx":0,"cy":0,"r":8[,"r0":4]} (square of radius r minus radius r0-1)
+        // Either may list held chunk versions, "have":[cx,cy,ver,...], for a versioned reply
+        private void onGetChunks(WebSocket conn, Session session, String message, JsonReader msg) {
+            Map<Long, Long> held = heldVersions(message, msg);
+            if (msg.has("r")) {
+                int cx = msg.getInt("cx", 0);
+                int cy = msg.getInt("cy", 0);
+                int r = msg.getInt("r", 0);
+                int inner = msg.getInt("r0", 0) - 1;
+                chunkStreamer.request(conn, session, cx - r, cy - r, cx + r, cy + r,
+                        cx - inner, cy - inner, cx + inner, cy + inner, held);
+            } else {
+                chunkStreamer.request(conn, session,
+                        msg.getInt("x0", 0), msg.getInt("y0", 0),
+                        msg.getInt("x1", -1), msg.getInt("y1", -1),
+                        msg.getInt("ex0", 1), msg.getInt("ey0", 1),
+                        msg.getInt("ex1", 0), msg.getInt("ey1", 0), held);
+            }
+            interest.update(conn, session); // The view radius follows the requested area
+        }
+
+        // The "have" triples as ChunkCache key -> version; null if the request has none
+        private Map<Long, Long> heldVersions(String message, JsonReader msg) {
+            int have = msg.find("have");
+            if (have == -1 || msg.kindOf(have) != JsonReader.ARRAY) {
+                return null;
+            }
+            Map<Long, Long> held = new HashMap<>();
+            JsonReader walker = new JsonReader();
+            walker.walk(message, msg.valueStart(have) + 1, msg.valueEnd(have) - 1);
+            long[] triple = new long[3];
+            int n = 0;
+            for (int kind = walker.next(); kind == JsonReader.NUMBER; kind = walker.next()) {
+                triple[n++] = JsonReader.parseLong(message, walker.start(), walker.end(), ChunkVersions.UNKNOWN);
+                if (n == 3) {
+                    held.put(ChunkCache.key((int) triple[0], (int) triple[1]), triple[2]);
+                    n = 0;
+                }
+                if (held.size() >= ChunkStreamer.MAX_SIDE * ChunkStreamer.MAX_SIDE) {
+                    break;
+                }
+            }
+            return held;
+        }
+
+        // {"type":"setBlock", "x":10, "y":20, "val":1} (numbers may also be quoted)
+        private void onSetBlock(WebSocket conn, Session session, String message, JsonReader msg) {
+            int gx = msg.getInt("x", Integer.MIN_VALUE); // Global X
+            int gy = msg.getInt("y", Integer.MIN_VALUE); // Global Y
+            int val = msg.getInt("val", Integer.MIN_VALUE);
+            if (gx == Integer.MIN_VALUE || gy == Integer.MIN_VALUE || val < 0 || val > 255) {
+                return; // Tiles are one byte: a wider val would be stored truncated but broadcast whole
+            }
 
-                    // key is "x,y", split it
-                    String[] parts = key.split(",");
-                    int cx = Integer.parseInt(parts[0]);
-                    int cy = Integer.parseInt(parts[1]);
+            // Applied on the next tick
+            queueEdit(gx, gy, val);
+        }
 
-                    String chunkData = getOrGenerateChunk(cx, cy);
+        // {"type":"setBlocks", "edits":[x,y,val,...], "fill":[x0,y0,x1,y1,val,...],
+        // "replace":[x0,y0,x1,y1,from,val,...]} (see BlockEdits). Whatever the field order,
+        // edits apply first, then fill, then replace: a later kind wins where they overlap
+        private void onSetBlocks(WebSocket conn, Session session, String message, JsonReader msg) {
+            BlockEdits edits = BlockEdits.parse(message, msg);
+            if (edits == null) {
+                sender.send(conn, BlockEdits.REJECTED);
+                return;
+            }
+            queueEdits(edits);
+        }
 
-                    // Send back: {"type":"chunk", "key":"...", "data":"..."}
-                    // We construct JSON manually
-                    String response = "{\"type\":\"chunk\", \"key\":\"" + key + "\", \"data\":\"" + chunkData + "\"}";
-                    conn.send(response);
-                } else if ("save".equals(type)) {
-                    // Handle Save: {"type":"save", "player":{...}, "chunks":[...]}
+        // {"type":"save", "player":{...}, "chunks":[...]}
+        // Diffing and writing a large save happens on the saver thread, not here
+        private void onSave(WebSocket conn, Session session, String message, JsonReader msg) {
+            try {
+                saver.execute(() -> {
                     try {
-                        int count = saveDataInternal(message);
-                        conn.send("{\"type\":\"saveAck\", \"count\":" + count + "}");
+                        int[] result = saveDataInternal(message);
+                        sender.send(conn, "{\"type\":\"saveAck\", \"count\":" + result[0]
+                                + ", \"unchanged\":" + result[1] + "}");
                     } catch (Exception e) {
                         e.printStackTrace();
-                        conn.send("{\"type\":\"error\", \"message\":\"Save failed\"}");
+                        if (conn.isOpen()) {
+                            sender.send(conn, "{\"type\":\"error\", \"message\":\"Save failed\"}");
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                sender.send(conn, "{\"type\":\"error\", \"message\":\"Save failed: server busy\"}");
+            }
+        }
+
+        // {"type":"getLod", "level":0, "x":0, "y":0}: one LOD page (see LodPyramid)
+        private void onGetLod(WebSocket conn, Session session, String message, JsonReader msg) {
+            int level = msg.getInt("level", -1);
+            int px = msg.getInt("x", Integer.MIN_VALUE);
+            int py = msg.getInt("y", Integer.MIN_VALUE);
+            if (px != Integer.MIN_VALUE && py != Integer.MIN_VALUE) {
+                sendLod(conn, level, px, py);
+            }
+        }
+
+        // Binary protocol frames (see Protocol)
+        @Override
+        public void onMessage(WebSocket conn, ByteBuffer buf) {
+            long start = System.nanoTime();
+            int metric = Metrics.MSG_OTHER;
+            try {
+                byte type = buf.get();
+                switch (type) {
+                    case Protocol.GET_CHUNK: {
+                        metric = Metrics.MSG_GET_CHUNK;
+                        int cx = buf.getInt();
+                        int cy = buf.getInt();
+                        sendChunk(conn, cx, cy, buf.remaining() >= 8 ? buf.getLong() : null);
+                        break;
+                    }
+                    case Protocol.SET_BLOCK: {
+                        metric = Metrics.MSG_SET_BLOCK;
+                        int gx = buf.getInt();
+                        int gy = buf.getInt();
+                        int val = buf.get() & 0xFF;
+                        queueEdit(gx, gy, val);
+                        break;
                     }
-                } else if ("setBlock".equals(type)) {
-                    // Handle Block Update: {"type":"setBlock", "x":10, "y":20, "val":1}
-                    String xStr = extractJsonString(message, "x");
-                    String yStr = extractJsonString(message, "y");
-                    String valStr = extractJsonString(message, "val");
-
-                    if (xStr != null && yStr != null && valStr != null) {
-                        try {
-                            int gx = Integer.parseInt(xStr); // Global X
-                            int gy = Integer.parseInt(yStr); // Global Y
-                            int val = Integer.parseInt(valStr);
-
-                            // Broadcast Immediately for responsiveness
-                            broadcast(message);
-
-                            // Persist to DB (ASync or blocking? Blocking for safety now)
-                            // Refactored to a helper method
-                            setBlock(gx, gy, val);
-
-                        } catch (Exception e) {
-                            e.printStackTrace();
+                    case Protocol.SET_BLOCKS: {
+                        metric = Metrics.MSG_SET_BLOCKS;
+                        BlockEdits edits = BlockEdits.parse(buf);
+                        if (edits == null) {
+                            sender.send(conn, BlockEdits.REJECTED);
+                        } else {
+                            queueEdits(edits);
                         }
+                        break;
                     }
-                } else {
-                    // Legacy support or unknown
-                    // broadcast(message);
+                    case Protocol.GET_CHUNKS: {
+                        metric = Metrics.MSG_GET_CHUNKS;
+                        int x0 = buf.getInt(), y0 = buf.getInt(), x1 = buf.getInt(), y1 = buf.getInt();
+                        if (buf.remaining() >= 16) {
+                            int ex0 = buf.getInt(), ey0 = buf.getInt(), ex1 = buf.getInt(), ey1 = buf.getInt();
+                            Map<Long, Long> held = null;
+                            if (buf.remaining() >= 2) {
+                                int count = Math.min(buf.getShort() & 0xFFFF, buf.remaining() / 16);
+                                held = new HashMap<>();
+                                for (int i = 0; i < count; i++) {
+                                    held.put(ChunkCache.key(buf.getInt(), buf.getInt()), buf.getLong());
+                                }
+                            }
+                            chunkStreamer.request(conn, conn.getAttachment(), x0, y0, x1, y1,
+                                    ex0, ey0, ex1, ey1, held);
+                        } else {
+                            chunkStreamer.request(conn, conn.getAttachment(), x0, y0, x1, y1, 1, 1, 0, 0, null);
+                        }
+                        interest.update(conn, conn.getAttachment());
+                        break;
+                    }
+                    case Protocol.POS:
+                        metric = Metrics.MSG_POS;
+                        updatePosition(conn, conn.getAttachment(), buf.getFloat(), buf.getFloat());
+                        break;
+                    case Protocol.ACK: {
+                        metric = Metrics.MSG_ACK;
+                        Session session = conn.getAttachment();
+                        session.snapshots.ack(buf.getInt());
+                        break;
+                    }
+                    case Protocol.GET_LOD: {
+                        metric = Metrics.MSG_GET_LOD;
+                        int level = buf.get() & 0xFF;
+                        sendLod(conn, level, buf.getInt(), buf.getInt());
+                        break;
+                    }
+                    default:
+                        // Unknown frame type, ignore
                 }
+            } catch (BufferUnderflowException e) {
+                System.err.println("Truncated binary frame from " + conn.getRemoteSocketAddress());
             } catch (Exception e) {
-                System.err.println("Error processing message: " + message);
                 e.printStackTrace();
+            } finally {
+                Metrics.recordMessage(metric, true, System.nanoTime() - start);
             }
         }
 
+        private void updatePosition(WebSocket conn, Session session, float px, float py) {
+            session.setPosition(px, py, Math.floorDiv((int) Math.floor(px), TILE_SIZE_PX * CHUNK_SIZE),
+                    Math.floorDiv((int) Math.floor(py), TILE_SIZE_PX * CHUNK_SIZE));
+            interest.update(conn, session);
+        }
+
+        // Reply to a chunk request in the connection's protocol; versioned if the client
+        // said which version it holds (UNKNOWN: none)
+        private void sendChunk(WebSocket conn, int cx, int cy, Long heldVersion) {
+            if (!owns(cx, cy)) {
+                return; // Another partition's chunk (the router does not send these)
+            }
+            Session session = conn.getAttachment();
+            long[] keys = { ChunkCache.key(cx, cy) };
+            if (heldVersion != null) {
+                sender.sendChunks(conn, cx, cy, keys, ChunkStreamer.versionedFrame(session != null && session.binary,
+                        keys, new long[] { heldVersion }, 1));
+            } else if (session != null && session.binary) {
+                sender.sendChunks(conn, cx, cy, keys, Protocol.chunk(cx, cy, ChunkCodec.encode(getChunkTiles(cx, cy))));
+            } else {
+                // Send back: {"type":"chunk", "key":"...", "data":"..."}
+                // We construct JSON manually
+                String response = "{\"type\":\"chunk\", \"key\":\"" + cx + "," + cy + "\", \"data\":\""
+                        + getOrGenerateChunk(cx, cy) + "\"}";
+                sender.sendChunks(conn, cx, cy, keys, response);
+            }
+        }
+
+        // Reply with an LOD page once it is available (built pages: immediately)
+        private void sendLod(WebSocket conn, int level, int px, int py) {
+            Session session = conn.getAttachment();
+            // Queued as a chunk frame at the page's centre chunk; never dropped for leaving the view
+            int span = LodPyramid.PAGE_SIZE * LodPyramid.chunksPerCell(level);
+            int centerX = px * span + span / 2;
+            int centerY = py * span + span / 2;
+            lod.request(level, px, py, page -> {
+                if (!conn.isOpen()) {
+                    return;
+                }
+                if (session != null && session.binary) {
+                    sender.sendChunks(conn, centerX, centerY, null, Protocol.lod(level, px, py, ChunkCodec.encode(page)));
+                } else {
+                    sender.sendChunks(conn, centerX, centerY, null, "{\"type\":\"lod\", \"level\":" + level + ", \"x\":" + px
+                            + ", \"y\":" + py + ", \"data\":\"" + ChunkCodec.toText(page) + "\"}");
+                }
+            });
+        }
+
         @Override
         public void onError(WebSocket conn, Exception ex) {
             ex.printStackTrace();
@@ -145,51 +512,80 @@ public class Main {
         GameWebSocketServer wsServer = new GameWebSocketServer(WS_PORT);
         wsServer.start();
 
-        // Initialize Random Seed
-        initWorldGen(12345);
-
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-                Statement stmt = conn.createStatement()) {
-
-            // Enable WAL mode for better concurrency
-            stmt.execute("PRAGMA journal_mode=WAL;");
-
-            // Create Table
-            String sql = "CREATE TABLE IF NOT EXISTS chunks (" +
-                    "id TEXT PRIMARY KEY," +
-                    "data TEXT NOT NULL" +
-                    ")";
-            stmt.execute(sql);
+        try {
+            openDatabase(DB_URL);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                // Stop the tick, apply the edits that arrived after its last run, and persist
+                // everything buffered before the writer is drained and closed
+                try {
+                    if (ticker.stopAndWait(5000)) {
+                        ingestInputs();
+                        applyEdits();
+                    } else {
+                        System.err.println("Tick did not stop; queued edits are not applied");
+                    }
+                    editBuffer.flush().join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (CompletionException e) {
+                    System.err.println("Final edit flush failed: " + e.getCause().getMessage());
+                }
+                closeDatabase();
+            }, "db-shutdown"));
 
-            // Create Metadata Table (Player Position, Seed, etc.)
-            stmt.execute("CREATE TABLE IF NOT EXISTS metadata (key TEXT PRIMARY KEY, value TEXT)");
+            // Start HTTP Server for Static Files (and /metrics, which reports generation progress)
+            registerMetrics(wsServer);
+            try {
+                startHttpServer();
+            } catch (IOException e) {
+                System.err.println("Failed to start HTTP Server: " + e.getMessage());
+                return;
+            }
 
-            // World Loading Check
-            int count = getWorldChunkCount(conn);
+            // World Loading Check (an existence probe; count(*) walks the whole table)
+            boolean hasChunks = hasAnyChunk();
+            String checkpoint = getMetadata(WorldPreGenerator.CHECKPOINT_KEY);
+            int nextRow = checkpoint == null ? 0 : Integer.parseInt(checkpoint);
+
+            // Storage mode is fixed when the world is created; worlds from before sparse mode are dense
+            String storedMode = getMetadata("storage");
+            String storage = System.getProperty("tyls.storage",
+                    storedMode != null ? storedMode : (hasChunks ? "dense" : "sparse"));
+            sparseStorage = "sparse".equals(storage);
+            if (!storage.equals(storedMode)) {
+                setMetadata("storage", sparseStorage ? "sparse" : "dense");
+            }
 
-            if (count == 0) {
+            if (sparseStorage) {
+                // Only modified chunks are stored; everything else is generated on read
+                editBuffer.setPristineSource(terrain);
+                if (!hasChunks) {
+                    setMetadata("chunk_format", String.valueOf(ChunkCodec.VERSION));
+                    System.out.println("New world (sparse storage): chunks are generated on demand");
+                } else {
+                    System.out.println("World loaded from database (sparse storage)");
+                    startMigrationIfNeeded();
+                }
+                worldReady = true;
+            } else if (!hasChunks) {
                 System.out.println("No world data found. Generating new world...");
                 // FORCE SYNC GENERATION (Blocking)
-                preGenerateWorld(DB_URL);
+                preGenerateWorld(0);
+            } else if (checkpoint != null && nextRow < newPreGenerator().rowCount()) {
+                System.out.println("Resuming interrupted world generation at row " + nextRow + "...");
+                preGenerateWorld(nextRow);
             } else {
-                System.out.println("World loaded from database: " + count + " chunks");
+                System.out.println("World loaded from database");
                 worldReady = true;
+                startMigrationIfNeeded();
             }
 
             System.out.println("Database: Ready");
-        } catch (SQLException e) {
+        } catch (SQLException | IOException e) {
             System.err.println("Database Error: " + e.getMessage());
             return;
         }
 
-        // Start HTTP Server for Static Files
-        try {
-            startHttpServer();
-        } catch (IOException e) {
-            System.err.println("Failed to start HTTP Server: " + e.getMessage());
-            return;
-        }
-
         // Keep Server Alive
         try {
             System.out.println("");
@@ -198,580 +594,747 @@ public class Main {
             System.out.println("  HTTP:      http://localhost:" + HTTP_PORT);
             System.out.println("  WebSocket: ws://localhost:" + WS_PORT);
             System.out.println("  Game:      http://localhost:" + HTTP_PORT + "/Frontend/index.html");
+            if (partitions != null) {
+                int[] b = partitions.bounds(PARTITION);
+                System.out.println("  Partition: " + PARTITION + " of " + partitions + ", chunks x "
+                        + bound(b[0]) + ".." + bound(b[2]) + ", y " + bound(b[1]) + ".." + bound(b[3]));
+            }
             System.out.println("========================================");
             System.out.println("  Press Ctrl+C to stop.");
 
-            System.out.println("  Press Ctrl+C to stop.");
-
-            // SERVER TICK LOOP (20 TPS)
-            long lastTime = System.nanoTime();
-            final double ns = 1000000000.0 / 20.0;
-            double delta = 0;
-            long timer = System.currentTimeMillis();
-            int updates = 0;
-            // int frames = 0; // Removed unused variable
-
-            while (true) {
-                long now = System.nanoTime();
-                delta += (now - lastTime) / ns;
-                lastTime = now;
-
-                while (delta >= 1) {
-                    // Update Game Logic Here (if any)
-                    // world.tick();
-                    updates++;
-                    delta--;
-                    System.out.println("*tick*"); // Prints 20 times per second exactly as they happen
-                }
-
-                // Sleep to prevent CPU hogging
-                try {
-                    Thread.sleep(2);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
+            // SERVER TICK (20 TPS): ingest inputs -> apply edits -> flush persistence -> (start a due
+            // world snapshot) -> broadcast
+            ticker.register("ingest", Main::ingestInputs)
+                    .register("applyEdits", Main::applyEdits)
+                    .register("flush", editBuffer::tick)
+                    .register("snapshot", worldSnapshots::tick)
+                    .register("broadcast", () -> snapshots.tick(wsServer.getConnections()))
+                    .register("send", () -> sender.tick(wsServer.getConnections()));
+            for (TickScheduler.Phase phase : ticker.getPhases()) {
+                Metrics.histogram("tyls_tick_phase_seconds", "Duration of one tick phase",
+                        "phase=\"" + phase.name + "\"", phase.histogram);
             }
+            ticker.run();
 
         } catch (Exception e) { // General Exception
             e.printStackTrace();
         }
     }
 
-    // --- HTTP Static File Server ---
-    private static void startHttpServer() throws IOException {
-        HttpServer httpServer = HttpServer.create(new InetSocketAddress(HTTP_PORT), 0);
-
-        // MIME type mapping
-        final Map<String, String> MIME_TYPES = new HashMap<>();
-        MIME_TYPES.put(".html", "text/html");
-        MIME_TYPES.put(".js", "application/javascript");
-        MIME_TYPES.put(".css", "text/css");
-        MIME_TYPES.put(".json", "application/json");
-        MIME_TYPES.put(".png", "image/png");
-        MIME_TYPES.put(".jpg", "image/jpeg");
-        MIME_TYPES.put(".gif", "image/gif");
-        MIME_TYPES.put(".svg", "image/svg+xml");
-        MIME_TYPES.put(".ttf", "font/ttf");
-        MIME_TYPES.put(".woff", "font/woff");
-        MIME_TYPES.put(".woff2", "font/woff2");
-        MIME_TYPES.put(".wasm", "application/wasm");
-        MIME_TYPES.put(".mp3", "audio/mpeg");
-        MIME_TYPES.put(".ogg", "audio/ogg");
-        MIME_TYPES.put(".wav", "audio/wav");
-        MIME_TYPES.put(".ico", "image/x-icon");
-
-        // Project root directory (where the server is launched from)
-        final Path ROOT = Paths.get(".").toAbsolutePath().normalize();
-
-        httpServer.createContext("/", exchange -> {
-            String method = exchange.getRequestMethod();
-
-            // Handle CORS preflight
-            if ("OPTIONS".equalsIgnoreCase(method)) {
-                exchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
-                exchange.getResponseHeaders().add("Access-Control-Allow-Methods", "GET, OPTIONS");
-                exchange.getResponseHeaders().add("Access-Control-Allow-Headers", "*");
-                exchange.sendResponseHeaders(204, -1);
-                exchange.close();
-                return;
+    // --- Metrics ---
+
+    // Values owned by other components, sampled when /metrics is scraped
+    private static void registerMetrics(GameWebSocketServer wsServer) {
+        Metrics.gauge("tyls_connections", "Open WebSocket connections", () -> wsServer.getConnections().size());
+        Metrics.gauge("tyls_interest_regions", "Interest regions with at least one watcher", interest::regionCount);
+
+        Metrics.gauge("tyls_chunk_cache_chunks", "Chunks held in the cache", chunkCache::size);
+        Metrics.gauge("tyls_chunk_cache_capacity_chunks", "Chunk cache capacity", chunkCache::capacity);
+        Metrics.counter("tyls_chunk_cache_hits_total", "Chunk cache hits", chunkCache::getHits);
+        Metrics.counter("tyls_chunk_cache_misses_total", "Chunk cache misses", chunkCache::getMisses);
+        Metrics.counter("tyls_chunk_cache_evictions_total", "Chunk cache evictions", chunkCache::getEvictions);
+
+        Metrics.gauge("tyls_edit_dirty_chunks", "Edited chunks waiting for a flush", editBuffer::dirtyCount);
+        Metrics.counter("tyls_edits_total", "Block edits buffered", editBuffer::getEditsTotal);
+        Metrics.counter("tyls_edit_flushes_total", "Edit buffer flushes", editBuffer::getFlushes);
+        Metrics.counter("tyls_edit_chunks_written_total", "Chunks written by edit flushes",
+                editBuffer::getChunksWritten);
+
+        Metrics.gauge("tyls_chunk_versions_tracked", "Chunks with a version held in memory", versions::size);
+        Metrics.counter("tyls_chunk_version_loads_total", "Bulk reads of stored chunk versions", versions::getLoads);
+        Metrics.counter("tyls_chunk_resync_unchanged_total", "Versioned chunk requests answered as unchanged",
+                versions::getUnchanged);
+        Metrics.counter("tyls_chunk_resync_deltas_total", "Versioned chunk requests answered with tile deltas",
+                versions::getDeltas);
+        Metrics.counter("tyls_chunk_resync_full_total", "Versioned chunk requests answered with the whole chunk",
+                versions::getFull);
+
+        Metrics.counter("tyls_world_snapshots_total", "World snapshots written", worldSnapshots::getTaken);
+        Metrics.counter("tyls_world_snapshot_failures_total", "World snapshots that failed",
+                worldSnapshots::getFailures);
+        Metrics.gauge("tyls_world_snapshot_last_ms", "Duration of the last world snapshot",
+                worldSnapshots::getLastMillis);
+        Metrics.gauge("tyls_world_snapshot_last_bytes", "File size of the last world snapshot",
+                worldSnapshots::getLastBytes);
+        Metrics.gauge("tyls_world_snapshot_last_chunks", "Chunks in the last world snapshot",
+                worldSnapshots::getLastChunks);
+
+        Metrics.gauge("tyls_lod_pages", "LOD pages held, all levels", lod::size);
+        Metrics.counter("tyls_lod_pages_built_total", "LOD pages built", lod::getPagesBuilt);
+        Metrics.counter("tyls_lod_page_hits_total", "LOD page requests served from memory", lod::getPageHits);
+        Metrics.counter("tyls_lod_page_misses_total", "LOD page requests that had to build the page",
+                lod::getPageMisses);
+
+        Metrics.counter("tyls_snapshots_sent_total", "Position snapshots sent", snapshots::getSnapshotsSent);
+        Metrics.gauge("tyls_send_queued_bytes", "Bytes waiting in outbound queues (last tick)",
+                sender::getQueuedBytes);
+        Metrics.counter("tyls_send_deferred_total", "Frames queued for a later tick", sender::getFramesDeferred);
+        Metrics.counter("tyls_send_snapshots_superseded_total", "Unsent snapshots replaced by a newer one",
+                sender::getSnapshotsSuperseded);
+        Metrics.counter("tyls_send_chunk_frames_dropped_total", "Queued chunk frames dropped after leaving the view",
+                sender::getChunkFramesDropped);
+        Metrics.counter("tyls_send_slow_disconnects_total", "Clients disconnected for a send backlog",
+                sender::getSlowDisconnects);
+        Metrics.counter("tyls_snapshot_entries_total", "Entries in sent position snapshots",
+                snapshots::getEntriesSent);
+
+        // Process: what load runs (bench LoadGenerator) compare between builds
+        com.sun.management.OperatingSystemMXBean os = ManagementFactory
+                .getPlatformMXBean(com.sun.management.OperatingSystemMXBean.class);
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        Metrics.counter("tyls_process_cpu_milliseconds_total", "CPU time used by the server process",
+                () -> os.getProcessCpuTime() / 1_000_000);
+        Metrics.gauge("tyls_jvm_heap_used_bytes", "Java heap in use", () -> memory.getHeapMemoryUsage().getUsed());
+        Metrics.gauge("tyls_jvm_heap_max_bytes", "Java heap limit", () -> memory.getHeapMemoryUsage().getMax());
+        Metrics.counter("tyls_jvm_gc_milliseconds_total", "Time spent in garbage collection", () -> {
+            long ms = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                ms += Math.max(0, gc.getCollectionTime());
             }
+            return ms;
+        });
 
-            String path = exchange.getRequestURI().getPath();
+        Metrics.gauge("tyls_tick_rate", "Configured ticks per second", ticker::getTps);
+        Metrics.counter("tyls_ticks_total", "Server ticks run", ticker::getTicks);
+        Metrics.counter("tyls_tick_overruns_total", "Ticks that took longer than the period", ticker::getOverruns);
+        Metrics.counter("tyls_ticks_skipped_total", "Ticks dropped after a stall", ticker::getSkippedTicks);
+        Metrics.counter("tyls_tick_phase_errors_total", "Exceptions thrown by tick phases", ticker::getPhaseErrors);
+        Metrics.histogram("tyls_tick_seconds", "Server tick duration", null, ticker.getTickHistogram());
+    }
 
-            // Default to index
-            if (path.equals("/")) {
-                path = "/Frontend/index.html";
-            }
+    // --- HTTP Static File Server ---
+    private static void startHttpServer() throws IOException {
+        // Partition processes are only for the router (and their own /metrics) on loopback
+        HttpServer httpServer = HttpServer.create(partitions != null
+                ? new InetSocketAddress(InetAddress.getLoopbackAddress(), HTTP_PORT)
+                : new InetSocketAddress(HTTP_PORT), 0);
 
-            // Security: Block path traversal
-            if (path.contains("..")) {
-                sendError(exchange, 403, "Forbidden");
-                return;
-            }
+        // Prometheus scrape endpoint
+        httpServer.createContext("/metrics", Metrics.handler());
 
-            // Security: Block access to server source and lib
-            String lowerPath = path.toLowerCase();
-            if (lowerPath.startsWith("/server/") || lowerPath.startsWith("/lib/") ||
-                    lowerPath.startsWith("/.git")) {
-                sendError(exchange, 403, "Forbidden");
-                return;
-            }
+        // World snapshots on demand (loopback only)
+        httpServer.createContext("/admin/snapshot", worldSnapshots.handler());
 
-            // Resolve file
-            Path filePath = ROOT.resolve(path.substring(1)).normalize();
+        // Static files from the project root (where the server is launched from)
+        httpServer.createContext("/", new StaticAssets(Paths.get(".").toAbsolutePath().normalize(), PRODUCTION));
 
-            // Ensure resolved path is still within project root
-            if (!filePath.startsWith(ROOT)) {
-                sendError(exchange, 403, "Forbidden");
-                return;
-            }
+        httpServer.setExecutor(StaticAssets.newExecutor());
+        httpServer.start();
+        System.out.println("HTTP Server started on port: " + HTTP_PORT + (PRODUCTION ? " (production)" : ""));
+    }
 
-            if (!Files.exists(filePath) || Files.isDirectory(filePath)) {
-                sendError(exchange, 404, "Not Found: " + path);
-                return;
-            }
+    // Opens the world database (reader pool, WAL mode) and its schema, the world's
+    // chunk store and the edit buffer in front of it. Package-private so benchmarks
+    // can open a temporary world.
+    static Database openDatabase(String url) throws SQLException, IOException {
+        db = new Database(url, DB_READERS);
+        createSchema(db);
+        store = openChunkStore(db);
+        versions = new ChunkVersions(db, CHUNK_VERSION_ENTRIES);
+        editBuffer = new EditBuffer(store, versions, MAX_DIRTY_AGE_MS, MAX_DIRTY_CHUNKS);
+        worldSnapshots = new WorldSnapshots(db, store, versions, SNAPSHOT_DIR, SNAPSHOT_INTERVAL_SEC,
+                SNAPSHOT_FULL_EVERY);
+        return db;
+    }
 
-            // Determine MIME type
-            String fileName = filePath.getFileName().toString();
-            String ext = fileName.contains(".") ? fileName.substring(fileName.lastIndexOf('.')) : "";
-            String mimeType = MIME_TYPES.getOrDefault(ext.toLowerCase(), "application/octet-stream");
+    // Drains queued writes, then closes the chunk store and the database
+    static void closeDatabase() {
+        store.close();
+        db.close();
+    }
 
-            // Send response
-            byte[] fileBytes = Files.readAllBytes(filePath);
-            exchange.getResponseHeaders().add("Content-Type", mimeType);
-            exchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
-            exchange.getResponseHeaders().add("Cache-Control", "no-cache"); // Dev-friendly
-            exchange.sendResponseHeaders(200, fileBytes.length);
-            try (OutputStream os = exchange.getResponseBody()) {
-                os.write(fileBytes);
+    // Tables shared by every chunk store: chunks (SQLite store), chunk_versions and metadata
+    static void createSchema(Database db) throws SQLException {
+        db.writeSync(c -> {
+            try (Statement stmt = c.connection().createStatement()) {
+                // Create Table
+                String sql = "CREATE TABLE IF NOT EXISTS chunks (" +
+                        "id TEXT PRIMARY KEY," +
+                        "data BLOB NOT NULL" + // ChunkCodec binary (legacy worlds: TEXT)
+                        ")";
+                stmt.execute(sql);
+
+                // Chunk versions (see ChunkVersions), keyed by ChunkCache.key; no row: version 0
+                stmt.execute("CREATE TABLE IF NOT EXISTS chunk_versions (id INTEGER PRIMARY KEY, version INTEGER NOT NULL)");
+
+                // Create Metadata Table (Player Position, Seed, etc.)
+                stmt.execute("CREATE TABLE IF NOT EXISTS metadata (key TEXT PRIMARY KEY, value TEXT)");
             }
+            return null;
         });
-
-        httpServer.setExecutor(null); // Default executor
-        httpServer.start();
-        System.out.println("HTTP Server started on port: " + HTTP_PORT);
     }
 
-    private static void sendError(HttpExchange exchange, int code, String message) throws IOException {
-        byte[] resp = message.getBytes();
-        exchange.sendResponseHeaders(code, resp.length);
-        try (OutputStream os = exchange.getResponseBody()) {
-            os.write(resp);
+    // The backend recorded for this world; switching needs ChunkStoreConverter, not a flag
+    private static ChunkStore openChunkStore(Database db) throws SQLException, IOException {
+        String recorded = getMetadata(CHUNK_STORE_KEY);
+        String requested = System.getProperty("tyls.chunkStore");
+        String kind = recorded != null ? recorded : requested != null ? requested : "sqlite";
+        if (recorded != null && requested != null && !requested.equals(recorded)) {
+            System.err.println("World uses the " + recorded + " chunk store; ignoring -Dtyls.chunkStore=" + requested
+                    + " (convert with Server.ChunkStoreConverter)");
         }
+        ChunkStore opened = "region".equals(kind) ? new RegionChunkStore(REGION_DIR, db, TILES_PER_CHUNK)
+                : new SqliteChunkStore(db, TILES_PER_CHUNK);
+        if (recorded == null) {
+            setMetadata(CHUNK_STORE_KEY, "region".equals(kind) ? "region" : "sqlite");
+        }
+        System.out.println("Chunk store: " + ("region".equals(kind) ? "region files in " + REGION_DIR : "sqlite"));
+        return opened;
     }
 
-    private static int getWorldChunkCount(Connection conn) throws SQLException {
-        try (Statement stmt = conn.createStatement();
-                ResultSet rs = stmt.executeQuery("SELECT count(*) FROM chunks")) {
-            if (rs.next()) {
-                return rs.getInt(1);
-            }
+    private static boolean hasAnyChunk() throws IOException {
+        return !store.isEmpty();
+    }
+
+    // Convert legacy TEXT chunks to the binary format in the background (SQLite store only)
+    private static void startMigrationIfNeeded() throws SQLException {
+        if (store instanceof SqliteChunkStore
+                && !String.valueOf(ChunkCodec.VERSION).equals(getMetadata("chunk_format"))) {
+            ChunkMigration.start(db, TILES_PER_CHUNK);
         }
-        return 0;
     }
 
-    private static void preGenerateWorld(String dbUrl) {
+    private static void preGenerateWorld(int startRow) {
         System.out.println("Beginning World Generation (" + (WORLD_RADIUS_CHUNKS * 2) + "x" + (WORLD_RADIUS_CHUNKS * 2)
-                + " chunks)... Background Thread Started.");
+                + " chunks" + (partitions != null ? ", partition " + PARTITION + "'s share" : "") + ")...");
+
+        long startTime = System.currentTimeMillis();
 
-        try (Connection conn = DriverManager.getConnection(dbUrl)) {
-            // WAL Mode on new connection
-            try (Statement s = conn.createStatement()) {
-                s.execute("PRAGMA journal_mode=WAL;");
+        try {
+            if (startRow == 0) {
+                setMetadata("chunk_format", String.valueOf(ChunkCodec.VERSION));
             }
 
-            // ... Generation Logic ...
-            long startTime = System.currentTimeMillis();
+            // Fork/join over chunk rows, one writer transaction (and checkpoint) per row
+            newPreGenerator().run(startRow);
+            worldReady = true;
+        } catch (CompletionException e) {
+            e.printStackTrace();
+            System.err.println("Failed to generate world: " + e.getCause().getMessage());
+        }
 
-            String sql = "INSERT INTO chunks(id, data) VALUES(?, ?)";
+        long duration = (System.currentTimeMillis() - startTime) / 1000;
+        System.out.println("World Generation Complete in " + duration + "s");
+    }
 
-            try {
-                conn.setAutoCommit(false); // Begin Transaction
+    // The world square, clipped to this process's partition
+    private static WorldPreGenerator newPreGenerator() {
+        int x0 = -WORLD_RADIUS_CHUNKS;
+        int y0 = -WORLD_RADIUS_CHUNKS;
+        int x1 = WORLD_RADIUS_CHUNKS - 1;
+        int y1 = WORLD_RADIUS_CHUNKS - 1;
+        if (partitions != null) {
+            int[] b = partitions.bounds(PARTITION);
+            x0 = Math.max(x0, b[0]);
+            y0 = Math.max(y0, b[1]);
+            x1 = Math.min(x1, b[2]);
+            y1 = Math.min(y1, b[3]);
+        }
+        return new WorldPreGenerator(store, terrain, x0, y0, x1, y1, GEN_THREADS);
+    }
 
-                try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-                    int total = (WORLD_RADIUS_CHUNKS * 2) * (WORLD_RADIUS_CHUNKS * 2);
-                    int current = 0;
+    // --- Partitioning ---
 
-                    initWorldGen(12345); // Seed
+    // True if this process owns chunk (cx, cy): always, unless in partition mode
+    static boolean owns(int cx, int cy) {
+        return partitions == null || partitions.owner(cx, cy) == PARTITION;
+    }
 
-                    for (int cy = -WORLD_RADIUS_CHUNKS; cy < WORLD_RADIUS_CHUNKS; cy++) {
-                        for (int cx = -WORLD_RADIUS_CHUNKS; cx < WORLD_RADIUS_CHUNKS; cx++) {
+    // Partition bound for printing; open sides are unbounded
+    private static String bound(int v) {
+        return v == Integer.MIN_VALUE ? "-inf" : v == Integer.MAX_VALUE ? "+inf" : String.valueOf(v);
+    }
 
-                            String key = cx + "," + cy;
-                            // Generate using Perlin
-                            int[][] chunk = generateChunkPerlin(cx, cy);
-                            String dataStr = chunkToString(chunk);
+    // --- Helpers (RESTORED) ---
 
-                            pstmt.setString(1, key);
-                            pstmt.setString(2, dataStr);
-                            pstmt.addBatch();
+    private static String getMetadata(String key) throws SQLException {
+        return db.read(c -> {
+            PreparedStatement pstmt = c.prepare("SELECT value FROM metadata WHERE key = ?");
+            pstmt.setString(1, key);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? rs.getString(1) : null;
+            }
+        });
+    }
 
-                            current++;
+    private static void setMetadata(String key, String value) {
+        db.write(c -> {
+            PreparedStatement pstmt = c.prepare("INSERT OR REPLACE INTO metadata(key, value) VALUES(?, ?)");
+            pstmt.setString(1, key);
+            pstmt.setString(2, value);
+            return pstmt.executeUpdate();
+        });
+    }
 
-                            // Execute batch every 10,000 chunks
-                            if (current % 10000 == 0) {
-                                pstmt.executeBatch();
-                                conn.commit();
+    // Diffs a save message against the server's chunks and persists what changed.
+    // Runs on the saver thread. Returns {chunks written, chunks unchanged}.
+    private static int[] saveDataInternal(String body) throws SQLException, IOException {
+        JsonReader msg = saveReader;
+        if (!msg.reset(body)) {
+            return new int[2];
+        }
 
-                                // Console Progress
-                                int p = (int) ((long) current * 100 / total);
-                                System.out.print(
-                                        "\rProgress: " + p + "% (" + current + "/" + total + ")");
-                            }
-                        }
-                    }
+        // 1. Player Position, written only when it moved
+        // Expected JSON: ... "player":{"x":123,"y":456} ...
+        String[] player = null;
+        int playerField = msg.find("player");
+        if (playerField != -1 && msg.kindOf(playerField) == JsonReader.OBJECT) {
+            JsonReader p = new JsonReader();
+            if (p.reset(body, msg.valueStart(playerField), msg.valueEnd(playerField))) {
+                String xStr = p.getRaw("x");
+                String yStr = p.getRaw("y");
+                player = new String[] { xStr == null ? "0" : xStr, yStr == null ? "0" : yStr };
+            }
+        }
+        if (savedPlayer == null) {
+            savedPlayer = new String[] { getMetadata("player_x"), getMetadata("player_y") };
+        }
+        if (player != null && Arrays.equals(player, savedPlayer)) {
+            player = null;
+        }
 
-                    // Final batch
-                    pstmt.executeBatch();
-                    conn.commit();
-                    System.out.println("\rProgress: 100% - Done!");
-                    worldReady = true;
-                } catch (SQLException e) {
-                    conn.rollback();
-                    throw e;
-                } finally {
-                    conn.setAutoCommit(true);
+        // 2. Chunks: [{"key":"x,y","data":"..."}, ...], walked in one pass. Entries are
+        // compared against the current chunk state in batches (one bulk lookup each);
+        // only chunks that differ are kept for writing.
+        SaveDiff diff = new SaveDiff();
+        int chunksField = msg.find("chunks");
+        if (chunksField != -1 && msg.kindOf(chunksField) == JsonReader.ARRAY) {
+            JsonReader walker = new JsonReader();
+            JsonReader entry = new JsonReader();
+            walker.walk(body, msg.valueStart(chunksField) + 1, msg.valueEnd(chunksField) - 1);
+            for (int kind = walker.next(); kind != JsonReader.END; kind = walker.next()) {
+                if (kind != JsonReader.OBJECT) {
+                    continue;
                 }
-
-            } catch (SQLException e) {
-                e.printStackTrace();
-                System.err.println("Failed to generate world: " + e.getMessage());
+                int start = walker.start();
+                if (!walker.skipNested() || !entry.reset(body, start, walker.end())) {
+                    break;
+                }
+                int key = entry.find("key");
+                int data = entry.find("data");
+                if (key == -1 || data == -1) {
+                    continue;
+                }
+                int keyStart = entry.valueStart(key);
+                int keyEnd = entry.valueEnd(key);
+                int comma = keyStart;
+                while (comma < keyEnd && body.charAt(comma) != ',') {
+                    comma++;
+                }
+                if (comma == keyEnd) {
+                    continue;
+                }
+                int cx = JsonReader.parseInt(body, keyStart, comma, Integer.MIN_VALUE);
+                int cy = JsonReader.parseInt(body, comma + 1, keyEnd, Integer.MIN_VALUE);
+                byte[] tiles = ChunkCodec.parseText(body, entry.valueStart(data), entry.valueEnd(data),
+                        TILES_PER_CHUNK);
+                if (tiles == null || cx == Integer.MIN_VALUE || cy == Integer.MIN_VALUE || !owns(cx, cy)) {
+                    continue; // Partition mode: the router sends the save to each owner
+                }
+                diff.add(cx, cy, tiles);
             }
-
-            long duration = (System.currentTimeMillis() - startTime) / 1000;
-            System.out.println("World Generation Complete in " + duration + "s");
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
-    }
-
-    // --- Helpers (RESTORED) ---
-
-    // Extracted logic for reuse in WebSocket
-    private static int saveDataInternal(String body) throws SQLException {
-        int savedCount = 0;
-
-        try (Connection conn = DriverManager.getConnection(DB_URL)) {
-            conn.setAutoCommit(false);
+        diff.compare();
 
-            // 1. Save Player Position
-            // Expected JSON: ... "player":{"x":123,"y":456} ...
-            int playerIdx = body.indexOf("\"player\":");
-            if (playerIdx != -1) {
-                try (PreparedStatement pstmt = conn.prepareStatement(
-                        "INSERT OR REPLACE INTO metadata(key, value) VALUES(?, ?)")) {
+        if (player == null && diff.isEmpty()) {
+            return new int[] { 0, diff.unchanged }; // Nothing moved: no transaction at all
+        }
 
-                    // "x":123.45, "y":...
-                    String xStr = extractJsonValue(body, "\"x\":", playerIdx).trim();
-                    String yStr = extractJsonValue(body, "\"y\":", playerIdx).trim();
+        // 3. The tick applies the save between edits and persists it in one batch
+        // (one transaction with the SQLite store); wait for that write
+        diff.player = player;
+        pendingEdits.add(diff);
+        int[] result;
+        try {
+            result = diff.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for a save", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+        if (player != null) {
+            savedPlayer = player;
+        }
+        return result;
+    }
 
-                    pstmt.setString(1, "player_x");
-                    pstmt.setString(2, xStr);
-                    pstmt.addBatch();
+    // Saved chunks waiting to be compared. The saver thread drops the unchanged ones
+    // (and loads the rest into the cache); the tick thread, which alone writes into
+    // cached tile arrays, compares again and applies the rest (see apply)
+    private static final class SaveDiff {
+        static final int BATCH = SqliteChunkStore.BULK_QUERY_SIZE;
+
+        final CompletableFuture<int[]> result = new CompletableFuture<>(); // {chunks written, chunks unchanged}
+        String[] player; // player_x/player_y to write, or null
+        int unchanged = 0;
+
+        private final long[] keys = new long[BATCH];
+        private final byte[][] tiles = new byte[BATCH][];
+        private int count = 0;
+        private final List<Long> changedKeys = new ArrayList<>();
+        private final List<byte[]> changedTiles = new ArrayList<>();
+
+        void add(int cx, int cy, byte[] chunk) {
+            keys[count] = ChunkCache.key(cx, cy);
+            tiles[count] = chunk;
+            if (++count == BATCH) {
+                compare();
+            }
+        }
 
-                    pstmt.setString(1, "player_y");
-                    pstmt.setString(2, yStr);
-                    pstmt.addBatch();
+        boolean isEmpty() {
+            return changedKeys.isEmpty();
+        }
 
-                    pstmt.executeBatch();
+        // Saver thread: current state (cache, edit buffer, one bulk store read, else
+        // generated) vs. the saved tiles. Edits may land meanwhile; apply checks again
+        void compare() {
+            if (count == 0) {
+                return;
+            }
+            byte[][] current = getChunkTilesBulk(keys, count);
+            for (int i = 0; i < count; i++) {
+                if (Arrays.equals(tiles[i], current[i])) {
+                    unchanged++;
+                } else {
+                    changedKeys.add(keys[i]);
+                    changedTiles.add(tiles[i]);
                 }
+                tiles[i] = null;
             }
+            count = 0;
+        }
 
-            // 2. Save Chunks
-            try (PreparedStatement pstmt = conn.prepareStatement(
-                    "INSERT OR REPLACE INTO chunks(id, data) VALUES(?, ?)")) {
-
-                // Find all chunk entries
-                int idx = body.indexOf("\"chunks\""); // Start searching after "chunks"
-                if (idx == -1)
-                    idx = 0;
-
-                while ((idx = body.indexOf("\"key\":", idx)) != -1) {
-                    // Extract key
-                    String key = extractJsonString(body, "key", idx);
-
-                    // We need to advance idx manually to find data relative to this key
-                    // Let's look for "data" AFTER the key
-                    int keyPosInStr = body.indexOf(key, idx); // Approximate position
-
-                    int dataIdx = body.indexOf("\"data\":", keyPosInStr);
-                    String data = extractJsonString(body, "data", dataIdx - 1); // allow some slack?
-
-                    int keyStart = body.indexOf("\"", idx + 6) + 1;
-                    int keyEnd = body.indexOf("\"", keyStart);
-
-                    // re-parsing using the indices logic:
-                    key = body.substring(keyStart, keyEnd);
-
-                    int dIdx = body.indexOf("\"data\":", keyEnd);
-                    int dStart = body.indexOf("\"", dIdx + 7) + 1;
-                    int dEnd = body.indexOf("\"", dStart);
-                    data = body.substring(dStart, dEnd);
-
-                    pstmt.setString(1, key);
-                    pstmt.setString(2, data);
-                    pstmt.addBatch();
-                    savedCount++;
-
-                    idx = dEnd;
+        // Tick thread (applyEdits): the save replaces the chunks as they are now, and
+        // its write is queued before the flush of any later edit
+        void apply() {
+            int n = changedKeys.size();
+            long[] rowKeys = new long[n];
+            long[] rowVersions = new long[n];
+            byte[][] rowTiles = new byte[n][];
+            int rows = 0;
+            long[] slice = new long[BATCH];
+            for (int from = 0; from < n; from += BATCH) {
+                int sliceCount = Math.min(BATCH, n - from);
+                for (int i = 0; i < sliceCount; i++) {
+                    slice[i] = changedKeys.get(from + i);
+                }
+                byte[][] current = getChunkTilesBulk(slice, sliceCount);
+                for (int i = 0; i < sliceCount; i++) {
+                    byte[] saved = changedTiles.get(from + i);
+                    if (Arrays.equals(saved, current[i])) {
+                        unchanged++;
+                        continue;
+                    }
+                    int cx = (int) (slice[i] >> 32);
+                    int cy = (int) slice[i];
+                    rowVersions[rows] = versions.replace(cx, cy, current[i], saved)[1];
+                    chunkCache.put(cx, cy, saved);
+                    editBuffer.discard(cx, cy); // Superseded by this save
+                    lod.chunkChanged(cx, cy, saved);
+                    rowKeys[rows] = slice[i];
+                    rowTiles[rows++] = saved.clone(); // Later edits change the cached array
                 }
-
-                pstmt.executeBatch();
-                conn.commit();
             }
-        }
-        return savedCount;
-    }
+            if (rows == 0 && player == null) {
+                result.complete(new int[] { 0, unchanged });
+                return;
+            }
 
-    private static String extractJsonValue(String json, String key, int startIdx) {
-        int k = json.indexOf(key, startIdx);
-        if (k == -1)
-            return "0";
-        int valStart = k + key.length();
-        int valEnd = valStart;
-        while (valEnd < json.length()) {
-            char c = json.charAt(valEnd);
-            if (c == ',' || c == '}' || c == ']')
-                break;
-            valEnd++;
+            // Store binary. Sparse storage: a chunk saved back to its generated state
+            // loses its row. Encoding and regenerating happen on the writer thread
+            ChunkStore.Batch batch = new ChunkStore.Batch(Metrics.DB_SAVE);
+            if (player != null) {
+                batch.metadata("player_x", player[0]).metadata("player_y", player[1]);
+            }
+            int total = rows;
+            store.write(batch.fillOnWriter(b -> {
+                for (int r = 0; r < total; r++) {
+                    int cx = (int) (rowKeys[r] >> 32);
+                    int cy = (int) rowKeys[r];
+                    b.version(cx, cy, rowVersions[r]);
+                    if (sparseStorage && Arrays.equals(rowTiles[r], generateTiles(cx, cy))) {
+                        b.delete(cx, cy);
+                    } else {
+                        b.put(cx, cy, ChunkCodec.encode(rowTiles[r]));
+                    }
+                }
+            })).whenComplete((written, e) -> {
+                if (e != null) {
+                    result.completeExceptionally(e);
+                } else {
+                    versions.persisted(batch);
+                    result.complete(new int[] { written, unchanged });
+                }
+            });
         }
-        return json.substring(valStart, valEnd);
-    }
-
-    // New Helper for extracting string values "key":"value"
-    private static String extractJsonString(String json, String key) {
-        return extractJsonString(json, key, 0);
     }
 
-    private static String extractJsonString(String json, String key, int startIdx) {
-        // Look for "key":"
-        String search = "\"" + key + "\":";
-        int k = json.indexOf(search, startIdx);
-        if (k == -1)
-            return null;
-
-        int valStart = json.indexOf("\"", k + search.length()) + 1;
-        int valEnd = json.indexOf("\"", valStart);
+    // --- Chunk Storage ---
 
-        if (valStart == 0 || valEnd == -1)
-            return null; // Not found
-
-        return json.substring(valStart, valEnd);
+    static ChunkVersions getChunkVersions() {
+        return versions;
     }
 
-    // --- SQLite Logic ---
-
     private static String getOrGenerateChunk(int cx, int cy) {
-        String key = cx + "," + cy;
+        return ChunkCodec.toText(getChunkTiles(cx, cy));
+    }
 
-        // 1. Try Select
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-                PreparedStatement pstmt = conn.prepareStatement("SELECT data FROM chunks WHERE id = ?")) {
+    // Cache -> DB -> Generate. Returned array is shared with the cache.
+    static byte[] getChunkTiles(int cx, int cy) {
+        byte[] tiles = chunkCache.get(cx, cy);
+        if (tiles != null) {
+            return tiles;
+        }
 
-            pstmt.setString(1, key);
-            ResultSet rs = pstmt.executeQuery();
+        // Evicted while it still has unflushed edits
+        tiles = editBuffer.get(cx, cy);
+        if (tiles != null) {
+            chunkCache.put(cx, cy, tiles);
+            return tiles;
+        }
 
-            if (rs.next()) {
-                return rs.getString("data");
-            }
-        } catch (SQLException e) {
+        // 1. Stored copy
+        try {
+            tiles = store.read(cx, cy);
+        } catch (IOException e) {
             e.printStackTrace();
         }
 
-        // 2. Generate (Fallback for Out of Bounds)
-        initWorldGen(12345); // Ensure initialized if falling back
-        int[][] chunk = generateChunkPerlin(cx, cy);
-        String dataStr = chunkToString(chunk);
-
-        // 3. Insert
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-                PreparedStatement pstmt = conn.prepareStatement("INSERT INTO chunks(id, data) VALUES(?, ?)")) {
-
-            pstmt.setString(1, key);
-            pstmt.setString(2, dataStr);
-            pstmt.executeUpdate();
-
-        } catch (SQLException e) {
-            // Duplicate key race condition possible
+        if (tiles != null) {
+            chunkCache.put(cx, cy, tiles);
+            return tiles;
         }
 
-        return dataStr;
+        return generateAndStoreChunk(cx, cy);
     }
 
-    // Helper to update a block in the database
-    private static void setBlock(int gx, int gy, int val) {
-        // Calculate Chunk ID
-        int cx = Math.floorDiv(gx, CHUNK_SIZE);
-        int cy = Math.floorDiv(gy, CHUNK_SIZE);
-        String key = cx + "," + cy;
-
-        // Calculate Local Coordinates (0-15)
-        int lx = (gx % CHUNK_SIZE + CHUNK_SIZE) % CHUNK_SIZE;
-        int ly = (gy % CHUNK_SIZE + CHUNK_SIZE) % CHUNK_SIZE;
-        int idx = ly * CHUNK_SIZE + lx;
-
-        try (Connection conn = DriverManager.getConnection(DB_URL)) {
-            String sqlSelect = "SELECT data FROM chunks WHERE id = ?";
-            String currentData = null;
+    // Bulk variant of getChunkTiles for ChunkCache.key(cx, cy) keys:
+    // one cache pass, one bulk store read for the misses, then generation for the rest.
+    static byte[][] getChunkTilesBulk(long[] keys, int count) {
+        return getChunkTilesBulk(keys, count, true);
+    }
 
-            try (PreparedStatement pstmt = conn.prepareStatement(sqlSelect)) {
-                pstmt.setString(1, key);
-                ResultSet rs = pstmt.executeQuery();
-                if (rs.next()) {
-                    currentData = rs.getString("data");
-                }
+    // cache false: misses are neither cached nor stored (LOD builds sweep far more
+    // chunks than anyone is looking at)
+    static byte[][] getChunkTilesBulk(long[] keys, int count, boolean cache) {
+        byte[][] out = new byte[count][];
+        int[] missing = new int[count];
+        int missCount = 0;
+        for (int i = 0; i < count; i++) {
+            out[i] = chunkCache.get((int) (keys[i] >> 32), (int) keys[i]);
+            if (out[i] == null) {
+                out[i] = editBuffer.get((int) (keys[i] >> 32), (int) keys[i]);
             }
+            if (out[i] == null) {
+                missing[missCount++] = i;
+            }
+        }
 
-            if (currentData != null) {
-                // Remove brackets if present (backward compatibility check)
-                if (currentData.startsWith("[")) {
-                    currentData = currentData.substring(1, currentData.length() - 1);
-                }
-
-                String[] parts = currentData.split(",");
-                if (idx >= 0 && idx < parts.length) {
-                    parts[idx] = String.valueOf(val);
-
-                    // Reconstruct
-                    StringBuilder sb = new StringBuilder();
-                    sb.append("[");
-                    for (int i = 0; i < parts.length; i++) {
-                        sb.append(parts[i]);
-                        if (i < parts.length - 1)
-                            sb.append(",");
-                    }
-                    sb.append("]");
-                    String newData = sb.toString();
-
-                    // Save back
-                    String sqlUpdate = "UPDATE chunks SET data = ? WHERE id = ?";
-                    try (PreparedStatement pstmtUpd = conn.prepareStatement(sqlUpdate)) {
-                        pstmtUpd.setString(1, newData);
-                        pstmtUpd.setString(2, key); // Fixed typo from pstmtUp
-                        pstmtUpd.executeUpdate();
-                    }
-
-                    // Broadcast Update to all clients
-                    // {"type":"block", "x":1, "y":2, "val":3}
-                    String updateMsg = String.format("{\"type\":\"block\",\"x\":%d,\"y\":%d,\"val\":%d}", gx, gy, val);
-                    broadcast(updateMsg); // Helper method needed or access inner class
+        if (missCount > 0) {
+            long[] missKeys = new long[missCount];
+            byte[][] stored = new byte[missCount][];
+            for (int m = 0; m < missCount; m++) {
+                missKeys[m] = keys[missing[m]];
+            }
+            try {
+                store.read(missKeys, missCount, stored);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            for (int m = 0; m < missCount; m++) {
+                int i = missing[m];
+                out[i] = stored[m];
+                if (stored[m] != null && cache) {
+                    chunkCache.put((int) (keys[i] >> 32), (int) keys[i], stored[m]);
                 }
             }
-
-        } catch (SQLException e) {
-            System.err.println("SetBlock DB Error: " + e.getMessage());
         }
-    }
 
-    // Static helper to broadcast
-    public static void broadcast(String msg) {
-        // This is a bit hacky because GameWebSocketServer is an inner class instance.
-        // But we need to access the helper.
-        // Ideally, we should have a static reference to the server instance.
-        if (serverInstance != null) {
-            serverInstance.broadcast(msg);
+        for (int m = 0; m < missCount; m++) {
+            int i = missing[m];
+            if (out[i] == null) {
+                int cx = (int) (keys[i] >> 32);
+                int cy = (int) keys[i];
+                out[i] = cache ? generateAndStoreChunk(cx, cy) : generateTiles(cx, cy);
+            }
         }
+        return out;
     }
 
-    private static int[][] generateChunkPerlin(int cx, int cy) {
-        int[][] chunk = new int[CHUNK_SIZE][CHUNK_SIZE];
-
-        // Safe spawn zone in center
-        double distFromCenter = Math.sqrt(cx * cx + cy * cy);
-        if (distFromCenter < 2) {
-            for (int y = 0; y < CHUNK_SIZE; y++) {
-                for (int x = 0; x < CHUNK_SIZE; x++) {
-                    chunk[y][x] = 1; // Dirt (Safe Spawn - User Request: ID 1 is Dirt)
-                }
-            }
-            return chunk;
+    private static byte[] generateAndStoreChunk(int cx, int cy) {
+        // 2. Generate (Fallback for Out of Bounds)
+        byte[] generated = generateTiles(cx, cy);
+        chunkCache.put(cx, cy, generated);
+        if (sparseStorage) {
+            return generated; // Unmodified terrain is never stored
         }
 
-        for (int y = 0; y < CHUNK_SIZE; y++) {
-            for (int x = 0; x < CHUNK_SIZE; x++) {
-                // User Request: Density based on Perlin Noise (Low = Dense)
-                // 0=Water, 1=Dirt, 2=Grass, 3=Sand
+        // 3. Insert (async, the cache serves it meanwhile)
+        store.write(new ChunkStore.Batch(Metrics.DB_CHUNK_INSERT).putIfAbsent(cx, cy, ChunkCodec.encode(generated)));
+        return generated;
+    }
 
-                // Generate a single noise value for "density"
-                // Using previously tuned frequency (0.04) for visible variation in LOD
-                double val = getNoise((cx * CHUNK_SIZE + x) * 0.04, (cy * CHUNK_SIZE + y) * 0.04);
+    // Generated terrain for a chunk, as a flat row-major tile array
+    static byte[] generateTiles(int cx, int cy) {
+        return terrain.generate(cx, cy);
+    }
 
-                int blockID;
-                if (val < -0.3) {
-                    blockID = 0; // Low Perlin = Water (Densest)
-                } else if (val < 0.1) {
-                    blockID = 1; // Dirt
-                } else if (val < 0.4) {
-                    blockID = 2; // Grass
-                } else {
-                    blockID = 3; // High Perlin = Sand (Least Dense)
-                }
-                chunk[y][x] = blockID;
-            }
+    private static void queueEdit(int gx, int gy, int val) {
+        if (!owns(Math.floorDiv(gx, CHUNK_SIZE), Math.floorDiv(gy, CHUNK_SIZE))) {
+            return;
         }
-        return chunk;
+        pendingEdits.add(new int[] { gx, gy, val });
     }
 
-    // Convert 2D int array to JSON-like Array String "[1,0,2,...]"
-    private static String chunkToString(int[][] chunk) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("[");
-        for (int r = 0; r < chunk.length; r++) {
-            for (int c = 0; c < chunk[r].length; c++) {
-                sb.append(chunk[r][c]);
-                if (r != chunk.length - 1 || c != chunk[r].length - 1) {
-                    sb.append(",");
-                }
-            }
+    private static void queueEdits(BlockEdits edits) {
+        if (edits.size() > 0) {
+            pendingEdits.add(edits); // Partition mode: chunks of other partitions are skipped when applied
         }
-        sb.append("]");
-        return sb.toString();
     }
 
-    // --- Perlin Noise Logic (Embedded) ---
-    private static final int[] P = new int[512];
-
-    private static void initWorldGen(int seed) {
-        int[] permutation = new int[256];
-        Random r = new Random(seed);
-
-        for (int i = 0; i < 256; i++)
-            permutation[i] = i;
-        // Shuffle
-        for (int i = 0; i < 256; i++) {
-            int j = r.nextInt(256);
-            int temp = permutation[i];
-            permutation[i] = permutation[j];
-            permutation[j] = temp;
+    // Tick phase: take the edits that arrived since the last tick
+    private static void ingestInputs() {
+        Object edit;
+        while ((edit = pendingEdits.poll()) != null) {
+            tickEdits.add(edit);
         }
+    }
 
-        for (int i = 0; i < 512; i++) {
-            P[i] = permutation[i % 256];
+    // Tick phase: apply them in arrival order (cache + edit buffer + block broadcast; saves)
+    private static void applyEdits() {
+        for (Object edit : tickEdits) {
+            if (edit instanceof BlockEdits) {
+                setBlocks((BlockEdits) edit);
+            } else if (edit instanceof SaveDiff) {
+                ((SaveDiff) edit).apply();
+            } else {
+                int[] e = (int[]) edit;
+                setBlock(e[0], e[1], e[2]);
+            }
         }
+        tickEdits.clear();
     }
 
-    private static double getNoise(double x, double y) {
-        // Find unit cube that contains point
-        int X = (int) Math.floor(x) & 255;
-        int Y = (int) Math.floor(y) & 255;
-
-        // Find relative x,y of point in cube
-        x -= Math.floor(x);
-        y -= Math.floor(y);
-
-        // Compute fade curves for x,y
-        double u = fade(x);
-        double v = fade(y);
+    // Applies a setBlocks chunk by chunk: one bulk read per slice of chunks, then per
+    // changed chunk one version, one dirty mark and one broadcast of all its changed tiles
+    static void setBlocks(BlockEdits edits) {
+        Map<Long, List<Integer>> byChunk = edits.byChunk();
+        long[] keys = new long[SqliteChunkStore.BULK_QUERY_SIZE];
+        Iterator<Map.Entry<Long, List<Integer>>> it = byChunk.entrySet().iterator();
+        List<List<Integer>> ops = new ArrayList<>(keys.length);
+        while (it.hasNext()) {
+            int count = 0;
+            ops.clear();
+            while (it.hasNext() && count < keys.length) {
+                Map.Entry<Long, List<Integer>> chunk = it.next();
+                if (owns((int) (chunk.getKey() >> 32), (int) (long) chunk.getKey())) {
+                    keys[count++] = chunk.getKey();
+                    ops.add(chunk.getValue());
+                }
+            }
+            byte[][] tiles = getChunkTilesBulk(keys, count);
+            for (int i = 0; i < count; i++) {
+                int cx = (int) (keys[i] >> 32);
+                int cy = (int) keys[i];
+                int[] changed = edits.apply(cx, cy, ops.get(i), tiles[i]);
+                if (changed.length == 0) {
+                    continue;
+                }
+                chunkCache.put(cx, cy, tiles[i]);
+                long[] version = versions.edits(cx, cy, changed);
+                editBuffer.markDirty(cx, cy, tiles[i], version[1]);
+                lod.chunkChanged(cx, cy, tiles[i]);
+
+                // {"type":"blocks", "cx":0, "cy":0, "prev":6, "ver":7, "d":[tile,val,...]}
+                StringBuilder json = new StringBuilder(48 + changed.length * 8);
+                json.append("{\"type\":\"blocks\",\"cx\":").append(cx).append(",\"cy\":").append(cy)
+                        .append(",\"prev\":").append(version[0]).append(",\"ver\":").append(version[1])
+                        .append(",\"d\":[");
+                for (int c = 0; c < changed.length; c++) {
+                    if (c > 0) {
+                        json.append(',');
+                    }
+                    json.append(changed[c] >> 8).append(',').append(changed[c] & 0xFF);
+                }
+                broadcastAt(cx, cy, json.append("]}").toString(),
+                        Protocol.blocks(cx, cy, version[0], version[1], changed), null);
+            }
+        }
+    }
 
-        // Hash coordinates of the 4 cube corners
-        int A = P[X] + Y, AA = P[A], AB = P[A + 1];
-        int B = P[X + 1] + Y, BA = P[B], BB = P[B + 1];
+    // Helper to update a block in the database
+    static void setBlock(int gx, int gy, int val) {
+        // Calculate Chunk ID
+        int cx = Math.floorDiv(gx, CHUNK_SIZE);
+        int cy = Math.floorDiv(gy, CHUNK_SIZE);
 
-        // Hash coordinates (fixed for static context)
-        // Note: P is static now.
-        int aaa = P[AA];
-        int aba = P[AB];
-        int baa = P[BA];
-        int bba = P[BB];
+        // Calculate Local Coordinates (0-15)
+        int lx = (gx % CHUNK_SIZE + CHUNK_SIZE) % CHUNK_SIZE;
+        int ly = (gy % CHUNK_SIZE + CHUNK_SIZE) % CHUNK_SIZE;
+        int idx = ly * CHUNK_SIZE + lx;
 
-        // Add blended results from 4 corners
-        return lerp(v, lerp(u, grad(aaa, x, y), grad(baa, x - 1, y)),
-                lerp(u, grad(aba, x, y - 1), grad(bba, x - 1, y - 1)));
+        // Read-modify-write against the cached copy (no SELECT / split)
+        byte[] tiles = getChunkTiles(cx, cy);
+        tiles[idx] = (byte) val;
+        chunkCache.put(cx, cy, tiles); // Re-insert in case it was evicted meanwhile
+
+        // Persisted by the next edit flush (coalesces edits to the same chunk)
+        long[] version = versions.edit(cx, cy, idx, val & 0xFF);
+        editBuffer.markDirty(cx, cy, tiles, version[1]);
+        lod.chunkChanged(cx, cy, tiles);
+
+        // Broadcast Update to all clients
+        // {"type":"block", "x":1, "y":2, "val":3, "prev":6, "ver":7} (chunk version before and after)
+        String updateMsg = String.format("{\"type\":\"block\",\"x\":%d,\"y\":%d,\"val\":%d,\"prev\":%d,\"ver\":%d}",
+                gx, gy, val, version[0], version[1]);
+        broadcastAt(cx, cy, updateMsg, Protocol.block(gx, gy, val, version[0], version[1]), null);
     }
 
-    private static double fade(double t) {
-        return t * t * t * (t * (t * 6 - 15) + 10);
+    // Static helper to broadcast (through each client's send queue)
+    public static void broadcast(String msg) {
+        if (serverInstance == null) {
+            return;
+        }
+        for (WebSocket conn : serverInstance.getConnections()) {
+            sender.send(conn, msg);
+        }
     }
 
-    private static double lerp(double t, double a, double b) {
-        return a + t * (b - a);
+    // Broadcast in each connection's negotiated protocol. A null frame means
+    // binary clients have no use for this message and are skipped.
+    public static void broadcast(String json, byte[] binaryFrame) {
+        if (serverInstance == null) {
+            return;
+        }
+        for (WebSocket conn : serverInstance.getConnections()) {
+            Session session = conn.getAttachment();
+            if (session == null || !conn.isOpen()) {
+                continue;
+            }
+            if (!session.binary) {
+                sender.send(conn, json);
+            } else if (binaryFrame != null) {
+                sender.send(conn, binaryFrame);
+            }
+        }
     }
 
-    private static double grad(int hash, double x, double y) {
-        int h = hash & 15;
-        @SuppressWarnings("unused")
-        double u = h < 8 ? x : y;
-        double v = h < 4 ? y : (h == 12 || h == 14 ? x : 0);
-        return ((h & 1) == 0 ? u : -u) + ((h & 2) == 0 ? v : -v);
+    // Like broadcast(json, frame), but only to sockets whose interest area covers
+    // chunk (cx, cy), queued as an edit of that chunk; except (may be null) is skipped.
+    public static void broadcastAt(int cx, int cy, String json, byte[] binaryFrame, WebSocket except) {
+        interest.forEachWatcher(cx, cy, conn -> {
+            Session session = conn.getAttachment();
+            if (conn == except || session == null || !conn.isOpen()) {
+                return;
+            }
+            if (!session.binary) {
+                sender.sendEdit(conn, cx, cy, json);
+            } else if (binaryFrame != null) {
+                sender.sendEdit(conn, cx, cy, binaryFrame);
+            }
+        });
     }
 }
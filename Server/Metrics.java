@@ -0,0 +1,213 @@
+package Server;
+
+import com.sun.net.httpserver.HttpHandler;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide metrics, exported in Prometheus text format on /metrics.
+ *
+ * Recording is lock-free and allocation-free: fixed arrays of atomics indexed by
+ * small int constants, {@link Histogram}s and LongAdders. Everything else
+ * (cache, edit buffer, tick, connections) is read through suppliers registered
+ * at startup, and only when the endpoint is scraped.
+ */
+public final class Metrics {
+    // Message types (index into the message metrics; JSON and binary share them)
+    public static final int MSG_POS = 0;
+    public static final int MSG_ACK = 1;
+    public static final int MSG_GET_CHUNK = 2;
+    public static final int MSG_GET_CHUNKS = 3;
+    public static final int MSG_SET_BLOCK = 4;
+    public static final int MSG_SAVE = 5;
+    public static final int MSG_GET_LOD = 6;
+    public static final int MSG_SET_BLOCKS = 7;
+    public static final int MSG_OTHER = 8;
+    private static final String[] MESSAGE_TYPES = { "pos", "ack", "getChunk", "getChunks", "setBlock", "save",
+            "getLod", "setBlocks", "other" };
+
+    // DB operations timed at the call site
+    public static final int DB_CHUNK_READ = 0; // getChunkTiles / getOrGenerateChunk
+    public static final int DB_CHUNK_BULK_READ = 1; // getChunkTilesBulk, per store bulk read (one IN (...) query with SQLite)
+    public static final int DB_CHUNK_INSERT = 2; // Generated chunk write (dense storage)
+    public static final int DB_EDIT_FLUSH = 3; // setBlock edits, one transaction per flush
+    public static final int DB_SAVE = 4; // saveDataInternal
+    private static final String[] DB_OPS = { "chunk_read", "chunk_bulk_read", "chunk_insert", "edit_flush", "save" };
+
+    private static final AtomicLongArray messages = new AtomicLongArray(MESSAGE_TYPES.length * 2);
+    private static final Histogram[] messageLatency = histograms(MESSAGE_TYPES.length);
+    private static final Histogram[] dbLatency = histograms(DB_OPS.length);
+    private static final LongAdder outboundBytes = new LongAdder();
+    private static final LongAdder outboundFrames = new LongAdder();
+
+    // World generation progress (WorldPreGenerator)
+    public static final AtomicLong genChunksTotal = new AtomicLong();
+    public static final AtomicLong genChunksDone = new AtomicLong();
+
+    private static final class Sampled {
+        final String name;
+        final String help;
+        final String type; // gauge or counter
+        final LongSupplier value;
+
+        Sampled(String name, String help, String type, LongSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    private static final class Registered {
+        final String name;
+        final String help;
+        final String label; // e.g. phase="flush", or null
+        final Histogram histogram;
+
+        Registered(String name, String help, String label, Histogram histogram) {
+            this.name = name;
+            this.help = help;
+            this.label = label;
+            this.histogram = histogram;
+        }
+    }
+
+    private static final List<Sampled> sampled = new CopyOnWriteArrayList<>();
+    private static final List<Registered> registered = new CopyOnWriteArrayList<>();
+
+    private Metrics() {
+    }
+
+    // --- Recording (hot path) ---
+
+    public static void recordMessage(int type, boolean binary, long nanos) {
+        messages.incrementAndGet(type * 2 + (binary ? 1 : 0));
+        messageLatency[type].record(nanos);
+    }
+
+    public static void recordDb(int op, long nanos) {
+        dbLatency[op].record(nanos);
+    }
+
+    public static void recordOutbound(int bytes) {
+        outboundBytes.add(bytes);
+        outboundFrames.increment();
+    }
+
+    // --- Registration (startup) ---
+
+    public static void gauge(String name, String help, LongSupplier value) {
+        sampled.add(new Sampled(name, help, "gauge", value));
+    }
+
+    public static void counter(String name, String help, LongSupplier value) {
+        sampled.add(new Sampled(name, help, "counter", value));
+    }
+
+    /** Exports an existing histogram (in seconds); label is a Prometheus label pair or null. */
+    public static void histogram(String name, String help, String label, Histogram histogram) {
+        registered.add(new Registered(name, help, label, histogram));
+    }
+
+    // --- Export ---
+
+    /** The /metrics endpoint (Prometheus scrape). */
+    public static HttpHandler handler() {
+        return exchange -> {
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        };
+    }
+
+    /** All metrics in Prometheus text exposition format 0.0.4. */
+    public static String render() {
+        StringBuilder sb = new StringBuilder(16 * 1024);
+
+        header(sb, "tyls_messages_total", "WebSocket messages received, by type and protocol", "counter");
+        for (int t = 0; t < MESSAGE_TYPES.length; t++) {
+            for (int bin = 0; bin < 2; bin++) {
+                sb.append("tyls_messages_total{type=\"").append(MESSAGE_TYPES[t]).append("\",proto=\"")
+                        .append(bin == 1 ? "bin" : "json").append("\"} ").append(messages.get(t * 2 + bin))
+                        .append('\n');
+            }
+        }
+
+        header(sb, "tyls_message_seconds", "Time spent handling a WebSocket message, by type", "histogram");
+        for (int t = 0; t < MESSAGE_TYPES.length; t++) {
+            histogramLines(sb, "tyls_message_seconds", "type=\"" + MESSAGE_TYPES[t] + "\"", messageLatency[t]);
+        }
+
+        header(sb, "tyls_db_seconds", "Database call duration, by operation", "histogram");
+        for (int op = 0; op < DB_OPS.length; op++) {
+            histogramLines(sb, "tyls_db_seconds", "op=\"" + DB_OPS[op] + "\"", dbLatency[op]);
+        }
+
+        header(sb, "tyls_outbound_bytes_total", "Bytes sent on WebSocket connections (payload)", "counter");
+        sb.append("tyls_outbound_bytes_total ").append(outboundBytes.sum()).append('\n');
+        header(sb, "tyls_outbound_frames_total", "Frames sent on WebSocket connections", "counter");
+        sb.append("tyls_outbound_frames_total ").append(outboundFrames.sum()).append('\n');
+
+        header(sb, "tyls_generation_chunks_total", "Chunks the current/last world generation run has to write",
+                "gauge");
+        sb.append("tyls_generation_chunks_total ").append(genChunksTotal.get()).append('\n');
+        header(sb, "tyls_generation_chunks_done", "Chunks written by the current/last world generation run",
+                "gauge");
+        sb.append("tyls_generation_chunks_done ").append(genChunksDone.get()).append('\n');
+
+        for (Sampled s : sampled) {
+            header(sb, s.name, s.help, s.type);
+            sb.append(s.name).append(' ').append(s.value.getAsLong()).append('\n');
+        }
+
+        String lastName = null;
+        for (Registered r : registered) {
+            if (!r.name.equals(lastName)) {
+                header(sb, r.name, r.help, "histogram");
+                lastName = r.name;
+            }
+            histogramLines(sb, r.name, r.label, r.histogram);
+        }
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String name, String help, String type) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    // Cumulative buckets, _sum and _count, in seconds
+    private static void histogramLines(StringBuilder sb, String name, String label, Histogram h) {
+        long[] bounds = h.getBounds();
+        long[] counts = h.getBucketCounts();
+        String prefix = label == null ? "" : label + ",";
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            sb.append(name).append("_bucket{").append(prefix).append("le=\"")
+                    .append(i < bounds.length ? Double.toString(bounds[i] / 1e9) : "+Inf").append("\"} ")
+                    .append(cumulative).append('\n');
+        }
+        String braces = label == null ? "" : "{" + label + "}";
+        sb.append(name).append("_sum").append(braces).append(' ').append(h.getSumNanos() / 1e9).append('\n');
+        // Buckets and count are read separately; report the bucket total so the two agree
+        sb.append(name).append("_count").append(braces).append(' ').append(cumulative).append('\n');
+    }
+
+    private static Histogram[] histograms(int n) {
+        Histogram[] out = new Histogram[n];
+        for (int i = 0; i < n; i++) {
+            out[i] = new Histogram();
+        }
+        return out;
+    }
+}
@@ -0,0 +1,910 @@
+package Server;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.handshake.ServerHandshake;
+import org.java_websocket.server.WebSocketServer;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Partitioned world: the front process clients connect to.
+ *
+ * The chunk plane is split as {@link Partitioning} says, and every partition is
+ * a separate {@link Main} process ({@code -Dtyls.partition=N}) on loopback with
+ * its own world database and chunk store, which serves and edits only the
+ * chunks it owns. Partition N listens on ports base + 2N (WebSocket) and
+ * base + 2N + 1 (HTTP, its own /metrics); by default the router starts them
+ * itself, as world.p&lt;N&gt;.db / regions.p&lt;N&gt;, logging to partition-&lt;N&gt;.log.
+ *
+ * The router speaks the normal protocol (JSON or binary) on the usual ports.
+ * For each client it keeps one connection to every partition its interest area
+ * touches (the last getChunks rectangle plus the interest radius around its
+ * last pos), and routes:
+ *
+ * <ul>
+ * <li>getChunk, setBlock, getLod: to the owner of the chunk (page centre)</li>
+ * <li>getChunks: to every touched partition, which send only their own chunks</li>
+ * <li>setBlocks: to every partition its edits touch, which apply only their own chunks</li>
+ * <li>pos: to every touched partition, so players are known across borders and
+ * each partition fans out its edits to everyone looking at them: an edit near a
+ * border reaches the players on both sides</li>
+ * <li>save: to every partition owning one of its chunks, plus home; the replies
+ * are merged into one saveAck</li>
+ * </ul>
+ *
+ * A player's home is the partition their pos lies in; only the home's position
+ * snapshots are passed on. When pos crosses a border the router hands the
+ * player over with a route message: the new home restarts the snapshot diff
+ * from the empty state, numbered above the last snapshot the client got.
+ * Everything else from the partitions goes through this process's own
+ * {@link SendScheduler}, so priorities and backpressure hold end to end.
+ *
+ * Run: {@code java -cp "build:lib/*" Server.PartitionRouter}, with
+ * -Dtyls.partitionSplitsX / -Dtyls.partitionSplitsY (default: two partitions
+ * split at x = 0), -Dtyls.partitionBasePort=N (default 8100),
+ * -Dtyls.partitionJvmArgs="-Xmx2g ..." for the partition JVMs, and
+ * -Dtyls.spawnPartitions=false to start the partitions by hand instead. Other
+ * tyls.* properties are passed on to the partitions.
+ */
+public final class PartitionRouter {
+    private static final int HTTP_PORT = Integer.getInteger("tyls.httpPort", 8001);
+    private static final int WS_PORT = Integer.getInteger("tyls.wsPort", 8002);
+    private static final int BASE_PORT = Integer.getInteger("tyls.partitionBasePort", 8100);
+    private static final int VIEW_RADIUS = Integer.getInteger("tyls.viewRadius", 32);
+    private static final int CHUNK_PX = 16 * TerrainGenerator.CHUNK_SIZE; // Client world units per chunk
+    private static final int CLOSE_PARTITION_DOWN = 1011;
+
+    // Set by the router for each partition; not passed through from its own command line
+    private static final String[] OWN_PROPERTIES = { "tyls.partition", "tyls.partitionBasePort",
+            "tyls.partitionJvmArgs", "tyls.spawnPartitions", "tyls.dbFile", "tyls.regionDir", "tyls.httpPort",
+            "tyls.wsPort", "tyls.partitionSplitsX", "tyls.partitionSplitsY" };
+
+    private static final Partitioning partitions = Partitioning.fromProperties();
+    private static final List<Process> children = new ArrayList<>();
+    private static volatile boolean ready = false;
+
+    // Outbound queues of the router's own clients (same settings as a single server)
+    private static final SendScheduler sender = new SendScheduler(Long.getLong("tyls.sendBudgetBytes", 256 * 1024),
+            Long.getLong("tyls.maxSendBacklogBytes", 4 * 1024 * 1024), Long.getLong("tyls.slowClientMs", 10_000));
+
+    private static final Map<WebSocket, Player> players = new ConcurrentHashMap<>();
+
+    // Counters
+    private static final AtomicInteger openUpstreams = new AtomicInteger();
+    private static long handoffs = 0;
+
+    private PartitionRouter() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("Partitioned world: " + partitions);
+        if (Boolean.parseBoolean(System.getProperty("tyls.spawnPartitions", "true"))) {
+            spawnPartitions();
+        }
+
+        RouterServer wsServer = new RouterServer(WS_PORT);
+        wsServer.start();
+        startHttpServer(wsServer);
+
+        for (int p = 0; p < partitions.count(); p++) {
+            waitForPartition(p);
+        }
+        ready = true;
+
+        System.out.println("");
+        System.out.println("========================================");
+        System.out.println("  tyls.io Partition Router Ready!");
+        System.out.println("  HTTP:       http://localhost:" + HTTP_PORT);
+        System.out.println("  WebSocket:  ws://localhost:" + WS_PORT);
+        System.out.println("  Partitions: " + partitions.count() + " on ports " + BASE_PORT + ".."
+                + (BASE_PORT + 2 * partitions.count() - 1));
+        System.out.println("========================================");
+
+        // Only the send queues need a tick here; the partitions run the game
+        TickScheduler ticker = new TickScheduler(Integer.getInteger("tyls.tps", 20),
+                Integer.getInteger("tyls.maxCatchUpTicks", 5));
+        ticker.register("send", () -> sender.tick(wsServer.getConnections()));
+        ticker.run();
+    }
+
+    // --- Partition processes ---
+
+    // Starts one Main per partition with this JVM's classpath and tyls.* properties
+    private static void spawnPartitions() throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        String dbFile = System.getProperty("tyls.dbFile", "world.db");
+        String regionDir = System.getProperty("tyls.regionDir", "regions");
+        for (int p = 0; p < partitions.count(); p++) {
+            List<String> cmd = new ArrayList<>();
+            cmd.add(java);
+            for (String arg : System.getProperty("tyls.partitionJvmArgs", "").trim().split("\\s+")) {
+                if (!arg.isEmpty()) {
+                    cmd.add(arg);
+                }
+            }
+            cmd.add("-cp");
+            cmd.add(System.getProperty("java.class.path"));
+            for (String name : System.getProperties().stringPropertyNames()) {
+                if (name.startsWith("tyls.") && !List.of(OWN_PROPERTIES).contains(name)) {
+                    cmd.add("-D" + name + "=" + System.getProperty(name));
+                }
+            }
+            cmd.add("-Dtyls.partitionSplitsX=" + System.getProperty("tyls.partitionSplitsX", "0"));
+            cmd.add("-Dtyls.partitionSplitsY=" + System.getProperty("tyls.partitionSplitsY", ""));
+            cmd.add("-Dtyls.partition=" + p);
+            cmd.add("-Dtyls.wsPort=" + wsPort(p));
+            cmd.add("-Dtyls.httpPort=" + (wsPort(p) + 1));
+            cmd.add("-Dtyls.dbFile=" + partitionFile(dbFile, p));
+            cmd.add("-Dtyls.regionDir=" + regionDir + ".p" + p);
+            cmd.add("Server.Main");
+
+            File log = new File("partition-" + p + ".log");
+            children.add(new ProcessBuilder(cmd).redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.appendTo(log)).start());
+            System.out.println("Started partition " + p + " (" + boundsText(p) + "), log " + log);
+        }
+
+        // Partitions flush their edit buffers on SIGTERM
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (Process child : children) {
+                child.destroy();
+            }
+            for (Process child : children) {
+                try {
+                    child.waitFor(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "partition-shutdown"));
+    }
+
+    // world.db -> world.p1.db
+    private static String partitionFile(String name, int p) {
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) + ".p" + p + name.substring(dot) : name + ".p" + p;
+    }
+
+    private static int wsPort(int p) {
+        return BASE_PORT + 2 * p;
+    }
+
+    private static String boundsText(int p) {
+        int[] b = partitions.bounds(p);
+        return "chunks x " + bound(b[0]) + ".." + bound(b[2]) + ", y " + bound(b[1]) + ".." + bound(b[3]);
+    }
+
+    private static String bound(int v) {
+        return v == Integer.MIN_VALUE ? "-inf" : v == Integer.MAX_VALUE ? "+inf" : String.valueOf(v);
+    }
+
+    // Blocks until the partition accepts connections (it refuses them with 1013 while generating)
+    private static void waitForPartition(int p) throws InterruptedException {
+        long lastNotice = 0;
+        while (true) {
+            if (p < children.size() && !children.get(p).isAlive()) {
+                System.err.println("Partition " + p + " exited (see partition-" + p + ".log)");
+                System.exit(1);
+            }
+            if (probe(p)) {
+                System.out.println("Partition " + p + " ready on port " + wsPort(p));
+                return;
+            }
+            if (System.currentTimeMillis() - lastNotice > 10_000) {
+                System.out.println("Waiting for partition " + p + "...");
+                lastNotice = System.currentTimeMillis();
+            }
+            Thread.sleep(500);
+        }
+    }
+
+    // True if the partition greets a connection
+    private static boolean probe(int p) {
+        CompletableFuture<Boolean> greeted = new CompletableFuture<>();
+        WebSocketClient client = new WebSocketClient(URI.create("ws://127.0.0.1:" + wsPort(p) + "/")) {
+            @Override
+            public void onOpen(ServerHandshake handshake) {
+            }
+
+            @Override
+            public void onMessage(String message) {
+                greeted.complete(true);
+            }
+
+            @Override
+            public void onClose(int code, String reason, boolean remote) {
+                greeted.complete(false);
+            }
+
+            @Override
+            public void onError(Exception ex) {
+                greeted.complete(false);
+            }
+        };
+        try {
+            client.connect();
+            return greeted.get(10, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            return false;
+        } finally {
+            client.close();
+        }
+    }
+
+    // --- HTTP: static files and the router's own /metrics ---
+
+    private static void startHttpServer(RouterServer wsServer) throws IOException {
+        Metrics.gauge("tyls_connections", "Open WebSocket connections", () -> wsServer.getConnections().size());
+        Metrics.gauge("tyls_router_upstreams", "Open router-to-partition connections", openUpstreams::get);
+        Metrics.counter("tyls_router_handoffs_total", "Players handed over to another partition",
+                PartitionRouter::getHandoffs);
+        Metrics.gauge("tyls_send_queued_bytes", "Bytes waiting in outbound queues (last tick)",
+                sender::getQueuedBytes);
+        Metrics.counter("tyls_send_deferred_total", "Frames queued for a later tick", sender::getFramesDeferred);
+        Metrics.counter("tyls_send_snapshots_superseded_total", "Unsent snapshots replaced by a newer one",
+                sender::getSnapshotsSuperseded);
+        Metrics.counter("tyls_send_chunk_frames_dropped_total", "Queued chunk frames dropped after leaving the view",
+                sender::getChunkFramesDropped);
+        Metrics.counter("tyls_send_slow_disconnects_total", "Clients disconnected for a send backlog",
+                sender::getSlowDisconnects);
+
+        HttpServer httpServer = HttpServer.create(new InetSocketAddress(HTTP_PORT), 0);
+        httpServer.createContext("/metrics", Metrics.handler());
+        httpServer.createContext("/", new StaticAssets(Paths.get(".").toAbsolutePath().normalize(),
+                Boolean.getBoolean("tyls.production")));
+        httpServer.setExecutor(StaticAssets.newExecutor());
+        httpServer.start();
+        System.out.println("HTTP Server started on port: " + HTTP_PORT);
+    }
+
+    private static synchronized long getHandoffs() {
+        return handoffs;
+    }
+
+    private static synchronized void countHandoff() {
+        handoffs++;
+    }
+
+    // --- Client side ---
+
+    /** Accepts clients and routes their messages to the partitions. */
+    public static class RouterServer extends WebSocketServer {
+        // One reusable tokenizer per socket worker thread
+        private final ThreadLocal<JsonReader> readers = ThreadLocal.withInitial(JsonReader::new);
+
+        public RouterServer(int port) {
+            super(new InetSocketAddress(port));
+            setReuseAddr(true);
+        }
+
+        @Override
+        public void onOpen(WebSocket conn, ClientHandshake handshake) {
+            if (!ready) {
+                conn.close(1013, "Server is starting its partitions... please wait.");
+                return;
+            }
+            System.out.println("New connection: " + conn.getRemoteSocketAddress());
+            Session session = new Session(Protocol.wantsBinary(handshake.getResourceDescriptor()), VIEW_RADIUS);
+            conn.setAttachment(session);
+            players.put(conn, new Player(conn, session));
+            sender.send(conn, Protocol.hello(session));
+        }
+
+        @Override
+        public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+            System.out.println("Closed connection: " + conn.getRemoteSocketAddress());
+            Player player = players.remove(conn);
+            if (player != null) {
+                player.close();
+            }
+        }
+
+        @Override
+        public void onMessage(WebSocket conn, String message) {
+            long start = System.nanoTime();
+            int metric = Metrics.MSG_OTHER;
+            Player player = players.get(conn);
+            try {
+                JsonReader msg = readers.get();
+                if (player == null || !msg.reset(message)) {
+                    return;
+                }
+                int type = msg.find("type");
+                if (msg.valueEquals(type, "pos")) {
+                    metric = Metrics.MSG_POS;
+                    float px = msg.getFloat("x", Float.NaN);
+                    float py = msg.getFloat("y", Float.NaN);
+                    if (!Float.isNaN(px) && !Float.isNaN(py)) {
+                        player.pos(px, py, message);
+                    }
+                } else if (msg.valueEquals(type, "ack")) {
+                    metric = Metrics.MSG_ACK;
+                    player.ack(msg.getInt("seq", 0), message);
+                } else if (msg.valueEquals(type, "getChunk")) {
+                    metric = Metrics.MSG_GET_CHUNK;
+                    long[] keys = chunkKeys(message, msg);
+                    if (keys.length == 1) {
+                        player.toOwner((int) (keys[0] >> 32), (int) keys[0], message);
+                    }
+                } else if (msg.valueEquals(type, "getChunks")) {
+                    metric = Metrics.MSG_GET_CHUNKS;
+                    if (msg.has("r")) {
+                        int cx = msg.getInt("cx", 0);
+                        int cy = msg.getInt("cy", 0);
+                        int r = msg.getInt("r", 0);
+                        player.getChunks(cx - r, cy - r, cx + r, cy + r, message);
+                    } else {
+                        player.getChunks(msg.getInt("x0", 0), msg.getInt("y0", 0), msg.getInt("x1", -1),
+                                msg.getInt("y1", -1), message);
+                    }
+                } else if (msg.valueEquals(type, "setBlock")) {
+                    metric = Metrics.MSG_SET_BLOCK;
+                    int gx = msg.getInt("x", Integer.MIN_VALUE);
+                    int gy = msg.getInt("y", Integer.MIN_VALUE);
+                    if (gx != Integer.MIN_VALUE && gy != Integer.MIN_VALUE) {
+                        player.toOwner(Math.floorDiv(gx, TerrainGenerator.CHUNK_SIZE),
+                                Math.floorDiv(gy, TerrainGenerator.CHUNK_SIZE), message);
+                    }
+                } else if (msg.valueEquals(type, "setBlocks")) {
+                    metric = Metrics.MSG_SET_BLOCKS;
+                    BlockEdits edits = BlockEdits.parse(message, msg);
+                    if (edits == null) {
+                        sender.send(conn, BlockEdits.REJECTED);
+                    } else {
+                        player.toOwners(edits, message);
+                    }
+                } else if (msg.valueEquals(type, "save")) {
+                    metric = Metrics.MSG_SAVE;
+                    player.save(chunkKeys(message, msg), message);
+                } else if (msg.valueEquals(type, "getLod")) {
+                    metric = Metrics.MSG_GET_LOD;
+                    player.getLod(msg.getInt("level", -1), msg.getInt("x", Integer.MIN_VALUE),
+                            msg.getInt("y", Integer.MIN_VALUE), message);
+                }
+            } catch (Exception e) {
+                System.err.println("Error routing message: " + message);
+                e.printStackTrace();
+            } finally {
+                Metrics.recordMessage(metric, false, System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public void onMessage(WebSocket conn, ByteBuffer buf) {
+            long start = System.nanoTime();
+            int metric = Metrics.MSG_OTHER;
+            Player player = players.get(conn);
+            try {
+                if (player == null) {
+                    return;
+                }
+                byte[] frame = new byte[buf.remaining()];
+                buf.get(frame);
+                ByteBuffer in = ByteBuffer.wrap(frame);
+                switch (in.get()) {
+                    case Protocol.GET_CHUNK:
+                        metric = Metrics.MSG_GET_CHUNK;
+                        player.toOwner(in.getInt(), in.getInt(), frame);
+                        break;
+                    case Protocol.SET_BLOCK:
+                        metric = Metrics.MSG_SET_BLOCK;
+                        player.toOwner(Math.floorDiv(in.getInt(), TerrainGenerator.CHUNK_SIZE),
+                                Math.floorDiv(in.getInt(), TerrainGenerator.CHUNK_SIZE), frame);
+                        break;
+                    case Protocol.SET_BLOCKS: {
+                        metric = Metrics.MSG_SET_BLOCKS;
+                        BlockEdits edits = BlockEdits.parse(in);
+                        if (edits == null) {
+                            sender.send(conn, BlockEdits.REJECTED);
+                        } else {
+                            player.toOwners(edits, frame);
+                        }
+                        break;
+                    }
+                    case Protocol.GET_CHUNKS:
+                        metric = Metrics.MSG_GET_CHUNKS;
+                        player.getChunks(in.getInt(), in.getInt(), in.getInt(), in.getInt(), frame);
+                        break;
+                    case Protocol.POS:
+                        metric = Metrics.MSG_POS;
+                        player.pos(in.getFloat(), in.getFloat(), frame);
+                        break;
+                    case Protocol.ACK:
+                        metric = Metrics.MSG_ACK;
+                        player.ack(in.getInt(), frame);
+                        break;
+                    case Protocol.GET_LOD:
+                        metric = Metrics.MSG_GET_LOD;
+                        player.getLod(in.get() & 0xFF, in.getInt(), in.getInt(), frame);
+                        break;
+                    default:
+                        // Unknown frame type, ignore
+                }
+            } catch (BufferUnderflowException e) {
+                System.err.println("Truncated binary frame from " + conn.getRemoteSocketAddress());
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                Metrics.recordMessage(metric, true, System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public void onError(WebSocket conn, Exception ex) {
+            ex.printStackTrace();
+        }
+
+        @Override
+        public void onStart() {
+            System.out.println("WebSocket Server started on port: " + getPort());
+        }
+    }
+
+    // ChunkCache keys of a message: its own "key":"x,y" (getChunk, chunk), else the "key" of
+    // each object in its "list" (chunks) or "chunks" (save) array. msg is reset on json
+    static long[] chunkKeys(String json, JsonReader msg) {
+        long[] keys = new long[4];
+        int n = 0;
+        int key = msg.find("key");
+        if (key != -1) {
+            return addKey(json, msg, key, keys, 0) == 1 ? Arrays.copyOf(keys, 1) : new long[0];
+        }
+        int array = msg.find("list");
+        if (array == -1) {
+            array = msg.find("chunks");
+        }
+        if (array == -1 || msg.kindOf(array) != JsonReader.ARRAY) {
+            return new long[0];
+        }
+        JsonReader walker = new JsonReader();
+        JsonReader entry = new JsonReader();
+        walker.walk(json, msg.valueStart(array) + 1, msg.valueEnd(array) - 1);
+        for (int kind = walker.next(); kind != JsonReader.END; kind = walker.next()) {
+            if (kind != JsonReader.OBJECT) {
+                continue;
+            }
+            int start = walker.start();
+            if (!walker.skipNested() || !entry.reset(json, start, walker.end())) {
+                break;
+            }
+            int field = entry.find("key");
+            if (field != -1) {
+                if (n == keys.length) {
+                    keys = Arrays.copyOf(keys, n * 2);
+                }
+                n = addKey(json, entry, field, keys, n);
+            }
+        }
+        return Arrays.copyOf(keys, n);
+    }
+
+    // Appends the "x,y" string field as keys[n] if it parses; returns the new count
+    private static int addKey(String json, JsonReader reader, int field, long[] keys, int n) {
+        if (reader.kindOf(field) != JsonReader.STRING) {
+            return n;
+        }
+        int start = reader.valueStart(field);
+        int end = reader.valueEnd(field);
+        int comma = json.indexOf(',', start);
+        if (comma == -1 || comma >= end) {
+            return n;
+        }
+        int cx = JsonReader.parseInt(json, start, comma, Integer.MIN_VALUE);
+        int cy = JsonReader.parseInt(json, comma + 1, end, Integer.MIN_VALUE);
+        if (cx == Integer.MIN_VALUE || cy == Integer.MIN_VALUE) {
+            return n;
+        }
+        keys[n] = ChunkCache.key(cx, cy);
+        return n + 1;
+    }
+
+    // Chunk keys of a binary S_CHUNKS or S_CHUNKS_V frame
+    private static long[] chunkKeys(byte[] frame) {
+        ByteBuffer in = ByteBuffer.wrap(frame, 1, frame.length - 1);
+        boolean versioned = frame[0] == Protocol.S_CHUNKS_V;
+        long[] keys = new long[in.getShort() & 0xFFFF];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = ChunkCache.key(in.getInt(), in.getInt());
+            int len;
+            if (!versioned) {
+                len = in.getShort() & 0xFFFF;
+            } else {
+                in.getLong();
+                int kind = in.get();
+                len = kind == Protocol.V_FULL ? in.getShort() & 0xFFFF
+                        : kind == Protocol.V_DELTAS ? 2 * (in.getShort() & 0xFFFF) : 0;
+            }
+            in.position(in.position() + len);
+        }
+        return keys;
+    }
+
+    // --- One client and its partition connections ---
+
+    // A save waiting for the replies of the partitions it went to
+    private static final class PendingSave {
+        final boolean[] waiting = new boolean[partitions.count()];
+        int left = 0;
+        long count = 0;
+        long unchanged = 0;
+        String error;
+    }
+
+    /** Routing state of one client; guarded by its own monitor. */
+    private static final class Player {
+        final WebSocket conn;
+        final Session session;
+        final Upstream[] upstreams = new Upstream[partitions.count()];
+        int home = -1; // Partition the player stands in; -1 before the first pos
+        int seqFloor = 0; // Snapshots up to here came from an earlier home
+        int maxSeq = 0; // Newest snapshot passed on to the client
+        Object lastPos; // Replayed to newly connected partitions
+        Object lastGetChunks;
+        int[] viewRect; // Last getChunks rectangle
+        final ArrayDeque<PendingSave> saves = new ArrayDeque<>();
+        boolean closed = false;
+
+        Player(WebSocket conn, Session session) {
+            this.conn = conn;
+            this.session = session;
+        }
+
+        synchronized void pos(float px, float py, Object frame) {
+            int cx = Math.floorDiv((int) Math.floor(px), CHUNK_PX);
+            int cy = Math.floorDiv((int) Math.floor(py), CHUNK_PX);
+            session.setPosition(px, py, cx, cy);
+            int newHome = partitions.owner(cx, cy);
+            if (newHome != home) {
+                // Handoff: the old home stops sending snapshots, the new one restarts above the last
+                int oldHome = home;
+                home = newHome;
+                seqFloor = maxSeq;
+                if (oldHome >= 0 && upstreams[oldHome] != null) {
+                    upstreams[oldHome].forward(route(oldHome)); // "home":0 now
+                    countHandoff();
+                }
+                if (upstreams[home] != null) {
+                    upstreams[home].forward(route(home));
+                }
+            }
+            connect(); // Replays the previous pos to partitions that just came into range
+            lastPos = frame;
+            forwardAll(frame);
+        }
+
+        synchronized void ack(int seq, Object frame) {
+            if (seq > seqFloor && home >= 0 && upstreams[home] != null) {
+                upstreams[home].forward(frame); // Acks of an earlier home's snapshots mean nothing here
+            }
+        }
+
+        synchronized void getChunks(int x0, int y0, int x1, int y1, Object frame) {
+            if (x1 < x0 || y1 < y0) {
+                return;
+            }
+            session.setViewRect(x0, y0, x1, y1);
+            viewRect = new int[] { x0, y0, x1, y1 };
+            connect();
+            lastGetChunks = frame;
+            forwardAll(frame);
+        }
+
+        synchronized void toOwner(int cx, int cy, Object frame) {
+            upstream(partitions.owner(cx, cy)).forward(frame);
+        }
+
+        // To every partition the edits touch; each applies only its own chunks
+        synchronized void toOwners(BlockEdits edits, Object frame) {
+            for (int p = 0; p < upstreams.length; p++) {
+                if (edits.touches(partitions, p)) {
+                    upstream(p).forward(frame);
+                }
+            }
+        }
+
+        synchronized void getLod(int level, int px, int py, Object frame) {
+            if (!LodPyramid.isValidPage(level, px, py)) {
+                return;
+            }
+            int span = LodPyramid.PAGE_SIZE * LodPyramid.chunksPerCell(level);
+            toOwner(px * span + span / 2, py * span + span / 2, frame);
+        }
+
+        // To the owners of its chunks and the home partition (player position)
+        synchronized void save(long[] keys, String message) {
+            PendingSave save = new PendingSave();
+            save.waiting[home >= 0 ? home : partitions.owner(0, 0)] = true;
+            for (long k : keys) {
+                save.waiting[partitions.owner((int) (k >> 32), (int) k)] = true;
+            }
+            saves.addLast(save);
+            for (int p = 0; p < save.waiting.length; p++) {
+                if (save.waiting[p]) {
+                    save.left++;
+                    upstream(p).forward(message);
+                }
+            }
+        }
+
+        // Partition p answered its oldest save; complete saves are acked in order. False if none was waiting.
+        synchronized boolean saveReply(int p, long count, long unchanged, String error) {
+            PendingSave save = null;
+            for (PendingSave s : saves) {
+                if (s.waiting[p]) {
+                    save = s;
+                    break;
+                }
+            }
+            if (save == null) {
+                return false;
+            }
+            save.waiting[p] = false;
+            save.left--;
+            save.count += count;
+            save.unchanged += unchanged;
+            if (error != null && save.error == null) {
+                save.error = error;
+            }
+            while (!saves.isEmpty() && saves.peekFirst().left == 0) {
+                PendingSave done = saves.pollFirst();
+                if (done.error != null) {
+                    sender.send(conn, "{\"type\":\"error\", \"message\":\"" + done.error + "\"}");
+                } else {
+                    sender.send(conn, "{\"type\":\"saveAck\", \"count\":" + done.count + ", \"unchanged\":"
+                            + done.unchanged + "}");
+                }
+            }
+            return true;
+        }
+
+        // A snapshot from partition p: passed on only from home, which numbers it above seqFloor
+        synchronized boolean snapshot(int p, int seq) {
+            if (p != home || seq <= seqFloor) {
+                return false;
+            }
+            maxSeq = Math.max(maxSeq, seq);
+            return true;
+        }
+
+        // Opens connections to partitions the interest area now touches, closes the rest
+        private void connect() {
+            int r = session.getViewRadius();
+            for (int p = 0; p < upstreams.length; p++) {
+                boolean wanted = p == home || (session.hasPosition() && partitions.intersects(p,
+                        session.getChunkX() - r, session.getChunkY() - r, session.getChunkX() + r,
+                        session.getChunkY() + r))
+                        || (viewRect != null
+                                && partitions.intersects(p, viewRect[0], viewRect[1], viewRect[2], viewRect[3]));
+                if (wanted) {
+                    upstream(p);
+                } else if (upstreams[p] != null) {
+                    Upstream u = upstreams[p];
+                    upstreams[p] = null;
+                    u.close();
+                }
+            }
+        }
+
+        // The connection to partition p, opened on first use with the player's state replayed
+        private Upstream upstream(int p) {
+            if (upstreams[p] == null && !closed) {
+                Upstream u = new Upstream(this, p);
+                u.forward(route(p));
+                if (lastPos != null) {
+                    u.forward(lastPos);
+                }
+                if (lastGetChunks != null) {
+                    u.forward(lastGetChunks);
+                }
+                upstreams[p] = u;
+                u.connect();
+            }
+            return upstreams[p];
+        }
+
+        private String route(int p) {
+            return "{\"type\":\"route\",\"id\":" + session.id + ",\"home\":" + (p == home ? 1 : 0) + ",\"seq\":"
+                    + seqFloor + "}";
+        }
+
+        private void forwardAll(Object frame) {
+            for (Upstream u : upstreams) {
+                if (u != null) {
+                    u.forward(frame);
+                }
+            }
+        }
+
+        synchronized void close() {
+            closed = true;
+            for (int p = 0; p < upstreams.length; p++) {
+                if (upstreams[p] != null) {
+                    Upstream u = upstreams[p];
+                    upstreams[p] = null;
+                    u.close();
+                }
+            }
+        }
+
+        // Partition p's connection closed by the partition: the client cannot be served
+        synchronized void upstreamLost(Upstream u) {
+            if (upstreams[u.partition] == u && !closed) {
+                System.err.println("Lost partition " + u.partition + " for " + conn.getRemoteSocketAddress());
+                conn.close(CLOSE_PARTITION_DOWN, "Partition " + u.partition + " unavailable");
+            }
+        }
+    }
+
+    /** The router's connection to one partition on behalf of one client. */
+    private static final class Upstream extends WebSocketClient {
+        final Player player;
+        final int partition;
+        private final JsonReader reader = new JsonReader(); // This connection's read thread only
+        private List<Object> pending = new ArrayList<>(); // Frames sent before the socket opened; null once open
+
+        Upstream(Player player, int partition) {
+            super(URI.create("ws://127.0.0.1:" + wsPort(partition) + "/"
+                    + (player.session.binary ? "?proto=bin" : "")));
+            this.player = player;
+            this.partition = partition;
+        }
+
+        // Sends now, or once connected (in order)
+        void forward(Object frame) {
+            synchronized (this) {
+                if (pending != null) {
+                    pending.add(frame);
+                    return;
+                }
+            }
+            send(frame);
+        }
+
+        private void send(Object frame) {
+            try {
+                if (frame instanceof String) {
+                    send((String) frame);
+                } else {
+                    send((byte[]) frame);
+                }
+            } catch (RuntimeException e) {
+                // Closed meanwhile; onClose deals with it
+            }
+        }
+
+        @Override
+        public void onOpen(ServerHandshake handshake) {
+            openUpstreams.incrementAndGet();
+            synchronized (this) {
+                for (Object frame : pending) {
+                    send(frame);
+                }
+                pending = null;
+            }
+        }
+
+        @Override
+        public void onMessage(String message) {
+            WebSocket conn = player.conn;
+            JsonReader msg = reader;
+            if (!msg.reset(message)) {
+                return;
+            }
+            int type = msg.find("type");
+            if (msg.valueEquals(type, "snapshot")) {
+                if (player.snapshot(partition, msg.getInt("seq", 0))) {
+                    sender.sendSnapshot(conn, message);
+                }
+            } else if (msg.valueEquals(type, "block")) {
+                sender.sendEdit(conn, Math.floorDiv(msg.getInt("x", 0), TerrainGenerator.CHUNK_SIZE),
+                        Math.floorDiv(msg.getInt("y", 0), TerrainGenerator.CHUNK_SIZE), message);
+            } else if (msg.valueEquals(type, "blocks")) {
+                sender.sendEdit(conn, msg.getInt("cx", 0), msg.getInt("cy", 0), message);
+            } else if (msg.valueEquals(type, "chunk") || msg.valueEquals(type, "chunks")) {
+                long[] keys = chunkKeys(message, msg);
+                if (keys.length > 0) {
+                    sender.sendChunks(conn, (int) (keys[0] >> 32), (int) keys[0], keys, message);
+                }
+            } else if (msg.valueEquals(type, "lod")) {
+                int level = msg.getInt("level", 0);
+                int span = LodPyramid.PAGE_SIZE * LodPyramid.chunksPerCell(level);
+                sender.sendChunks(conn, msg.getInt("x", 0) * span + span / 2, msg.getInt("y", 0) * span + span / 2,
+                        null, message);
+            } else if (msg.valueEquals(type, "saveAck")) {
+                if (!player.saveReply(partition, msg.getInt("count", 0), msg.getInt("unchanged", 0), null)) {
+                    sender.send(conn, message);
+                }
+            } else if (msg.valueEquals(type, "error")) {
+                String error = msg.getRaw("message");
+                if (!player.saveReply(partition, 0, 0, error != null ? error : "Save failed")) {
+                    sender.send(conn, message);
+                }
+            } else if (!msg.valueEquals(type, "hello")) {
+                sender.send(conn, message); // The router greeted the client itself
+            }
+        }
+
+        @Override
+        public void onMessage(ByteBuffer buf) {
+            WebSocket conn = player.conn;
+            byte[] frame = new byte[buf.remaining()];
+            buf.get(frame);
+            ByteBuffer in = ByteBuffer.wrap(frame);
+            try {
+                switch (in.get()) {
+                    case Protocol.S_SNAPSHOT:
+                        if (player.snapshot(partition, in.getInt())) {
+                            sender.sendSnapshot(conn, frame);
+                        }
+                        break;
+                    case Protocol.S_BLOCK:
+                        sender.sendEdit(conn, Math.floorDiv(in.getInt(), TerrainGenerator.CHUNK_SIZE),
+                                Math.floorDiv(in.getInt(), TerrainGenerator.CHUNK_SIZE), frame);
+                        break;
+                    case Protocol.S_BLOCKS:
+                        sender.sendEdit(conn, in.getInt(), in.getInt(), frame);
+                        break;
+                    case Protocol.S_CHUNK: {
+                        int cx = in.getInt();
+                        int cy = in.getInt();
+                        sender.sendChunks(conn, cx, cy, new long[] { ChunkCache.key(cx, cy) }, frame);
+                        break;
+                    }
+                    case Protocol.S_CHUNKS:
+                    case Protocol.S_CHUNKS_V: {
+                        long[] keys = chunkKeys(frame);
+                        if (keys.length > 0) {
+                            sender.sendChunks(conn, (int) (keys[0] >> 32), (int) keys[0], keys, frame);
+                        }
+                        break;
+                    }
+                    case Protocol.S_LOD: {
+                        int span = LodPyramid.PAGE_SIZE * LodPyramid.chunksPerCell(in.get() & 0xFF);
+                        sender.sendChunks(conn, in.getInt() * span + span / 2, in.getInt() * span + span / 2, null,
+                                frame);
+                        break;
+                    }
+                    default:
+                        sender.send(conn, frame);
+                }
+            } catch (BufferUnderflowException e) {
+                System.err.println("Truncated binary frame from partition " + partition);
+            }
+        }
+
+        @Override
+        public void onClose(int code, String reason, boolean remote) {
+            boolean wasOpen;
+            synchronized (this) {
+                wasOpen = pending == null;
+                pending = null;
+            }
+            if (wasOpen) {
+                openUpstreams.decrementAndGet();
+            }
+            player.upstreamLost(this);
+        }
+
+        @Override
+        public void onError(Exception ex) {
+            System.err.println("Partition " + partition + " connection error: " + ex.getMessage());
+        }
+    }
+}
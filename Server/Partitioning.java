@@ -0,0 +1,79 @@
+package Server;
+
+import java.util.Arrays;
+
+/**
+ * Split of the (unbounded) chunk plane into rectangular partitions, each served
+ * by its own server process (see PartitionRouter).
+ *
+ * The layout is a grid given by the chunk coordinates where a new column or
+ * row starts: {@code -Dtyls.partitionSplitsX=-256,0,256} and
+ * {@code -Dtyls.partitionSplitsY=0} make 4 x 2 partitions. The outer ones are
+ * open towards infinity, so every chunk has exactly one owner. Partition
+ * {@code ix + iy * columns} is column ix, row iy. The router and every
+ * partition process must be started with the same splits.
+ */
+public final class Partitioning {
+    private final int[] splitsX; // Sorted; column i starts at splitsX[i - 1] (column 0 is open)
+    private final int[] splitsY;
+
+    public Partitioning(int[] splitsX, int[] splitsY) {
+        this.splitsX = splitsX.clone();
+        this.splitsY = splitsY.clone();
+        Arrays.sort(this.splitsX);
+        Arrays.sort(this.splitsY);
+    }
+
+    /** The layout from -Dtyls.partitionSplitsX / -Dtyls.partitionSplitsY (default: x = 0, no y split). */
+    public static Partitioning fromProperties() {
+        return new Partitioning(parse(System.getProperty("tyls.partitionSplitsX", "0")),
+                parse(System.getProperty("tyls.partitionSplitsY", "")));
+    }
+
+    private static int[] parse(String list) {
+        return Arrays.stream(list.split(",")).map(String::trim).filter(s -> !s.isEmpty())
+                .mapToInt(Integer::parseInt).distinct().toArray();
+    }
+
+    public int count() {
+        return (splitsX.length + 1) * (splitsY.length + 1);
+    }
+
+    /** Partition owning chunk (cx, cy). */
+    public int owner(int cx, int cy) {
+        return index(splitsX, cx) + index(splitsY, cy) * (splitsX.length + 1);
+    }
+
+    // Number of splits at or below v: the column (row) holding v
+    private static int index(int[] splits, int v) {
+        int i = Arrays.binarySearch(splits, v);
+        return i >= 0 ? i + 1 : -i - 1;
+    }
+
+    /** Inclusive chunk bounds {x0, y0, x1, y1}; open sides are Integer.MIN_VALUE / MAX_VALUE. */
+    public int[] bounds(int partition) {
+        int ix = partition % (splitsX.length + 1);
+        int iy = partition / (splitsX.length + 1);
+        return new int[] {
+                ix == 0 ? Integer.MIN_VALUE : splitsX[ix - 1],
+                iy == 0 ? Integer.MIN_VALUE : splitsY[iy - 1],
+                ix == splitsX.length ? Integer.MAX_VALUE : splitsX[ix] - 1,
+                iy == splitsY.length ? Integer.MAX_VALUE : splitsY[iy] - 1 };
+    }
+
+    public boolean contains(int partition, int cx, int cy) {
+        return owner(cx, cy) == partition;
+    }
+
+    /** True if the inclusive chunk rectangle overlaps the partition. */
+    public boolean intersects(int partition, int x0, int y0, int x1, int y1) {
+        int[] b = bounds(partition);
+        return x0 <= b[2] && x1 >= b[0] && y0 <= b[3] && y1 >= b[1];
+    }
+
+    @Override
+    public String toString() {
+        return count() + " partitions (x splits " + Arrays.toString(splitsX) + ", y splits "
+                + Arrays.toString(splitsY) + ")";
+    }
+}
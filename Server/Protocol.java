@@ -0,0 +1,131 @@
+package Server;
+
+import org.java_websocket.WebSocket;
+import java.nio.ByteBuffer;
+
+/**
+ * Opt-in binary WebSocket protocol.
+ *
+ * A client asks for it by connecting to {@code ws://host:port/?proto=bin}. The
+ * server confirms with a JSON {@code {"type":"hello","proto":"bin","id":N}} text
+ * frame; only then does the client switch to binary frames. Clients that never
+ * ask keep the JSON protocol, and JSON text frames (e.g. "save") are accepted on
+ * either.
+ *
+ * Every frame is {@code [u8 type][payload]}, big-endian:
+ *
+ * <pre>
+ * C->S 0x01 GET_CHUNK  i32 cx, i32 cy [, i64 heldVersion]
+ * C->S 0x02 SET_BLOCK  i32 x, i32 y, u8 val
+ * C->S 0x03 POS        f32 x, f32 y
+ * C->S 0x04 GET_CHUNKS i32 x0, y0, x1, y1 [, i32 ex0, ey0, ex1, ey1  (rect minus optional exclusion)
+ *                      [, u16 count, count x (i32 cx, i32 cy, i64 heldVersion)]]
+ * C->S 0x05 ACK        u32 snapshotSeq
+ * C->S 0x06 GET_LOD    u8 level, i32 px, i32 py  (LodPyramid page)
+ * C->S 0x07 SET_BLOCKS u16 n, n x (i32 x, i32 y, u8 val) [, u16 m, m x (u8 kind, i32 x0, y0, x1, y1, u8 from, u8 val)]
+ *                      kind 1 fill, 2 replace (only tiles equal to from), others rejected; edits first, then ops in order; see BlockEdits
+ * S->C 0x81 CHUNK      i32 cx, i32 cy, ChunkCodec bytes (rest of frame)
+ * S->C 0x82 BLOCK      i32 x, i32 y, u8 val, i64 prevVersion, i64 version
+ * S->C 0x84 CHUNKS     u16 count, count x (i32 cx, i32 cy, u16 len, ChunkCodec bytes)
+ * S->C 0x85 SNAPSHOT   u32 seq, u32 baseSeq, u16 count, count x (i32 playerId, u8 kind, payload)
+ *                      kind 0 absolute: i32 qx, i32 qy; 1 delta vs base: i16 dx, i16 dy; 2 removed
+ * S->C 0x86 LOD        u8 level, i32 px, i32 py, ChunkCodec bytes of the 16 x 16 cells
+ * S->C 0x87 CHUNKS_V   u16 count, count x (i32 cx, i32 cy, i64 version, u8 kind, payload)
+ *                      kind 0 full: u16 len, ChunkCodec bytes; 1 unchanged; 2 deltas: u16 n, n x (u8 tile, u8 val)
+ * S->C 0x88 BLOCKS     i32 cx, i32 cy, i64 prevVersion, i64 version, u16 n, n x (u8 tile, u8 val)
+ *                      (all tiles one SET_BLOCKS changed in that chunk)
+ * </pre>
+ *
+ * Chunk versions (see ChunkVersions): a request that carries held versions
+ * (GET_CHUNK with one, GET_CHUNKS with the list, even an empty one) is answered
+ * with CHUNKS_V, so a chunk the client still has is sent as "unchanged" or as
+ * the tiles changed since. A BLOCK whose prevVersion is the client's version of
+ * the chunk brings it to version; otherwise the client's copy has an unknown
+ * version from then on.
+ *
+ * Snapshot positions are in 1/{@link #POS_QUANT} px. baseSeq 0 means the empty
+ * state; otherwise entries apply to the client's copy of snapshot baseSeq and
+ * unlisted players keep their baseline position (see SnapshotBroadcaster).
+ */
+public final class Protocol {
+    // Client -> Server
+    public static final byte GET_CHUNK = 0x01;
+    public static final byte SET_BLOCK = 0x02;
+    public static final byte POS = 0x03;
+    public static final byte GET_CHUNKS = 0x04;
+    public static final byte ACK = 0x05;
+    public static final byte GET_LOD = 0x06;
+    public static final byte SET_BLOCKS = 0x07;
+
+    // Server -> Client
+    public static final byte S_CHUNK = (byte) 0x81;
+    public static final byte S_BLOCK = (byte) 0x82;
+    public static final byte S_CHUNKS = (byte) 0x84; // 0x83 was the per-message POS relay
+    public static final byte S_SNAPSHOT = (byte) 0x85;
+    public static final byte S_LOD = (byte) 0x86;
+    public static final byte S_CHUNKS_V = (byte) 0x87;
+    public static final byte S_BLOCKS = (byte) 0x88;
+
+    // CHUNKS_V entry kinds
+    public static final int V_FULL = 0;
+    public static final int V_UNCHANGED = 1;
+    public static final int V_DELTAS = 2;
+
+    public static final int POS_QUANT = 4; // Snapshot position units per pixel
+
+    private Protocol() {
+    }
+
+    /** Sends a text frame, counted in Metrics (length in chars; the protocol is ASCII). */
+    public static void send(WebSocket conn, String text) {
+        conn.send(text);
+        Metrics.recordOutbound(text.length());
+    }
+
+    /** Sends a binary frame, counted in Metrics. */
+    public static void send(WebSocket conn, byte[] frame) {
+        conn.send(frame);
+        Metrics.recordOutbound(frame.length);
+    }
+
+    /** True if the handshake asked for the binary protocol. */
+    public static boolean wantsBinary(String resourceDescriptor) {
+        if (resourceDescriptor == null) {
+            return false;
+        }
+        int q = resourceDescriptor.indexOf('?');
+        return q != -1 && resourceDescriptor.indexOf("proto=bin", q) != -1;
+    }
+
+    public static String hello(Session session) {
+        return "{\"type\":\"hello\",\"proto\":\"" + (session.binary ? "bin" : "json") + "\",\"id\":" + session.id + "}";
+    }
+
+    public static byte[] chunk(int cx, int cy, byte[] encoded) {
+        ByteBuffer buf = ByteBuffer.allocate(9 + encoded.length);
+        buf.put(S_CHUNK).putInt(cx).putInt(cy).put(encoded);
+        return buf.array();
+    }
+
+    public static byte[] lod(int level, int px, int py, byte[] encoded) {
+        ByteBuffer buf = ByteBuffer.allocate(10 + encoded.length);
+        buf.put(S_LOD).put((byte) level).putInt(px).putInt(py).put(encoded);
+        return buf.array();
+    }
+
+    public static byte[] block(int x, int y, int val, long prevVersion, long version) {
+        ByteBuffer buf = ByteBuffer.allocate(26);
+        buf.put(S_BLOCK).putInt(x).putInt(y).put((byte) val).putLong(prevVersion).putLong(version);
+        return buf.array();
+    }
+
+    /** changed: (tile << 8 | value) per tile. */
+    public static byte[] blocks(int cx, int cy, long prevVersion, long version, int[] changed) {
+        ByteBuffer buf = ByteBuffer.allocate(27 + 2 * changed.length);
+        buf.put(S_BLOCKS).putInt(cx).putInt(cy).putLong(prevVersion).putLong(version).putShort((short) changed.length);
+        for (int c : changed) {
+            buf.put((byte) (c >> 8)).put((byte) c);
+        }
+        return buf.array();
+    }
+}
@@ -0,0 +1,373 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Chunks in region files: one file per {@link #REGION_SIZE} x
+ * {@link #REGION_SIZE} chunks, {@code r.<rx>.<ry>.dat} in one directory.
+ *
+ * A file starts with an offset table, one {@code (i32 sector, i32 length)} entry
+ * per chunk in row-major order (length 0: not stored), followed by
+ * {@link #SECTOR_BYTES}-byte sectors holding the ChunkCodec bytes. The whole
+ * file is mapped with a {@link MappedByteBuffer}, so a read is two table loads
+ * and one copy: no query, no syscall.
+ *
+ * Reads are lock-free in the common case: an optimistic {@link StampedLock}
+ * read, validated after the copy and retried under the read lock if a write
+ * overlapped. Writes come from the database writer thread (batches are queued
+ * there, so they stay ordered with the metadata they carry) and hold the
+ * region's write lock. A chunk that still fits its sectors is rewritten in
+ * place; otherwise it moves to the first free run, and the file (and mapping)
+ * doubles when there is none. Free sectors are found from the table on open.
+ * Each batch forces the regions it wrote to disk before its chunk versions and
+ * metadata commit to SQLite, so after a crash SQLite never refers to chunk
+ * bytes that were lost.
+ *
+ * Regions without a file are remembered as absent, so reads of never-stored
+ * (generated) terrain cost no filesystem calls either.
+ */
+public class RegionChunkStore implements ChunkStore {
+    static final int REGION_SIZE = 32; // Chunks per region side
+    static final int SECTOR_BYTES = 64;
+    private static final int ENTRIES = REGION_SIZE * REGION_SIZE;
+    private static final int HEADER_SECTORS = ENTRIES * 8 / SECTOR_BYTES;
+    private static final int INITIAL_SECTORS = HEADER_SECTORS + 256;
+    private static final Pattern FILE_NAME = Pattern.compile("r\\.(-?\\d+)\\.(-?\\d+)\\.dat");
+
+    // One mapped region file
+    private static final class Region {
+        final FileChannel channel;
+        final StampedLock lock = new StampedLock();
+        final BitSet used = new BitSet(); // Writer only, under the write lock
+        volatile MappedByteBuffer map;
+
+        Region(FileChannel channel, MappedByteBuffer map) {
+            this.channel = channel;
+            this.map = map;
+        }
+    }
+
+    private static final Region ABSENT = new Region(null, null);
+    private static final byte[] INVALID = new byte[0]; // Torn optimistic read
+
+    private final Path dir;
+    private final Database db; // Writer thread and metadata
+    private final int tileCount;
+    private final ConcurrentHashMap<Long, Region> regions = new ConcurrentHashMap<>();
+
+    public RegionChunkStore(Path dir, Database db, int tileCount) throws IOException {
+        this.dir = dir;
+        this.db = db;
+        this.tileCount = tileCount;
+        Files.createDirectories(dir);
+    }
+
+    @Override
+    public byte[] read(int cx, int cy) throws IOException {
+        long start = System.nanoTime();
+        try {
+            byte[] encoded = readEncoded(cx, cy);
+            return encoded == null ? null : ChunkCodec.decode(encoded, tileCount);
+        } finally {
+            Metrics.recordDb(Metrics.DB_CHUNK_READ, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void read(long[] keys, int count, byte[][] out) throws IOException {
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            byte[] encoded = readEncoded((int) (keys[i] >> 32), (int) keys[i]);
+            out[i] = encoded == null ? null : ChunkCodec.decode(encoded, tileCount);
+        }
+        Metrics.recordDb(Metrics.DB_CHUNK_BULK_READ, System.nanoTime() - start);
+    }
+
+    private byte[] readEncoded(int cx, int cy) throws IOException {
+        Region r = region(Math.floorDiv(cx, REGION_SIZE), Math.floorDiv(cy, REGION_SIZE), false);
+        if (r == ABSENT) {
+            return null;
+        }
+        int entry = entry(cx, cy);
+        long stamp = r.lock.tryOptimisticRead();
+        byte[] data = copy(r.map, entry);
+        if (r.lock.validate(stamp) && data != INVALID) {
+            return data;
+        }
+        stamp = r.lock.readLock();
+        try {
+            data = copy(r.map, entry);
+        } finally {
+            r.lock.unlockRead(stamp);
+        }
+        if (data == INVALID) {
+            throw new IOException("Corrupt region entry for chunk " + cx + "," + cy);
+        }
+        return data;
+    }
+
+    // Stored bytes of a table entry, null if empty, INVALID if the entry is out of bounds
+    private static byte[] copy(MappedByteBuffer map, int entry) {
+        int sector = map.getInt(entry * 8);
+        int length = map.getInt(entry * 8 + 4);
+        if (length == 0) {
+            return null;
+        }
+        if (length < 0 || sector < HEADER_SECTORS || (long) sector * SECTOR_BYTES + length > map.capacity()) {
+            return INVALID;
+        }
+        byte[] data = new byte[length];
+        map.get(sector * SECTOR_BYTES, data);
+        return data;
+    }
+
+    @Override
+    public CompletableFuture<Integer> write(Batch batch) {
+        return db.write(c -> {
+            long start = System.nanoTime();
+            batch.prepare();
+            // Group by region so each file is locked once
+            Map<Long, List<Batch.Write>> byRegion = new HashMap<>();
+            for (Batch.Write w : batch.writes) {
+                byRegion.computeIfAbsent(ChunkCache.key(Math.floorDiv(w.cx, REGION_SIZE),
+                        Math.floorDiv(w.cy, REGION_SIZE)), k -> new ArrayList<>()).add(w);
+            }
+            try {
+                List<Region> touched = new ArrayList<>(byRegion.size());
+                for (Map.Entry<Long, List<Batch.Write>> e : byRegion.entrySet()) {
+                    Region r = apply(e.getKey(), e.getValue());
+                    if (r != ABSENT) {
+                        touched.add(r);
+                    }
+                }
+                // On disk before SQLite commits versions and metadata that refer to them
+                for (Region r : touched) {
+                    r.map.force();
+                }
+            } catch (IOException e) {
+                throw new SQLException("Region write failed", e);
+            }
+            SqliteChunkStore.writeVersions(c, batch.versions); // Only after the chunks they refer to
+            SqliteChunkStore.writeMetadata(c, batch.metadata);
+            Metrics.recordDb(batch.metric, System.nanoTime() - start);
+            return batch.size();
+        });
+    }
+
+    // Writer thread; returns the region written (ABSENT if there was nothing to delete)
+    private Region apply(long key, List<Batch.Write> writes) throws IOException {
+        boolean onlyDeletes = true;
+        for (Batch.Write w : writes) {
+            onlyDeletes &= w.mode == Batch.DELETE;
+        }
+        Region r = region((int) (key >> 32), (int) key, !onlyDeletes);
+        if (r == ABSENT) {
+            return r; // Nothing stored there to delete
+        }
+        long stamp = r.lock.writeLock();
+        try {
+            for (Batch.Write w : writes) {
+                MappedByteBuffer map = r.map;
+                int entry = entry(w.cx, w.cy);
+                int sector = map.getInt(entry * 8);
+                int length = map.getInt(entry * 8 + 4);
+                int oldSectors = sectorsFor(length);
+                if (w.mode == Batch.PUT_IF_ABSENT && length != 0) {
+                    continue;
+                }
+                if (w.mode == Batch.DELETE) {
+                    r.used.clear(sector, sector + oldSectors);
+                    map.putInt(entry * 8, 0).putInt(entry * 8 + 4, 0);
+                    continue;
+                }
+
+                int needed = sectorsFor(w.data.length);
+                if (needed <= oldSectors) {
+                    r.used.clear(sector + needed, sector + oldSectors); // Shrunk: give back the tail
+                } else {
+                    r.used.clear(sector, sector + oldSectors);
+                    sector = allocate(r, needed);
+                    map = r.map; // May have grown
+                }
+                map.put(sector * SECTOR_BYTES, w.data);
+                map.putInt(entry * 8, sector).putInt(entry * 8 + 4, w.data.length);
+            }
+        } finally {
+            r.lock.unlockWrite(stamp);
+        }
+        return r;
+    }
+
+    // First free run of n sectors, growing the file when there is none (write lock held)
+    private static int allocate(Region r, int n) throws IOException {
+        int start = r.used.nextClearBit(HEADER_SECTORS);
+        while (true) {
+            int end = r.used.nextSetBit(start);
+            if (end == -1 || end - start >= n) {
+                break;
+            }
+            start = r.used.nextClearBit(end);
+        }
+        long capacity = r.map.capacity() / SECTOR_BYTES;
+        if (start + n > capacity) {
+            long size = capacity;
+            while (start + n > size) {
+                size *= 2;
+            }
+            r.map = r.channel.map(FileChannel.MapMode.READ_WRITE, 0, size * SECTOR_BYTES); // Extends the file
+        }
+        r.used.set(start, start + n);
+        return start;
+    }
+
+    private Region region(int rx, int ry, boolean create) throws IOException {
+        long key = ChunkCache.key(rx, ry);
+        Region r = regions.get(key);
+        if (r != null && (r != ABSENT || !create)) {
+            return r;
+        }
+        try {
+            return regions.compute(key, (k, current) -> {
+                if (current != null && (current != ABSENT || !create)) {
+                    return current;
+                }
+                Path file = dir.resolve("r." + rx + "." + ry + ".dat");
+                if (!create && !Files.exists(file)) {
+                    return ABSENT;
+                }
+                try {
+                    return open(file);
+                } catch (IOException e) {
+                    throw new RegionIoException(e);
+                }
+            });
+        } catch (RegionIoException e) {
+            throw (IOException) e.getCause();
+        }
+    }
+
+    private static Region open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long sectors = Math.max(INITIAL_SECTORS, (channel.size() + SECTOR_BYTES - 1) / SECTOR_BYTES);
+        Region r = new Region(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, sectors * SECTOR_BYTES));
+        for (int entry = 0; entry < ENTRIES; entry++) {
+            int sector = r.map.getInt(entry * 8);
+            int length = r.map.getInt(entry * 8 + 4);
+            if (length > 0 && sector >= HEADER_SECTORS && (long) sector * SECTOR_BYTES + length <= r.map.capacity()) {
+                r.used.set(sector, sector + sectorsFor(length));
+            }
+        }
+        return r;
+    }
+
+    // IOException out of ConcurrentHashMap.compute
+    private static final class RegionIoException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        RegionIoException(IOException cause) {
+            super(cause);
+        }
+    }
+
+    private static int entry(int cx, int cy) {
+        return Math.floorMod(cy, REGION_SIZE) * REGION_SIZE + Math.floorMod(cx, REGION_SIZE);
+    }
+
+    private static int sectorsFor(int length) {
+        return (length + SECTOR_BYTES - 1) / SECTOR_BYTES;
+    }
+
+    @Override
+    public boolean isEmpty() throws IOException {
+        boolean[] empty = { true };
+        forEachFile((rx, ry, r) -> {
+            for (int entry = 0; entry < ENTRIES && empty[0]; entry++) {
+                empty[0] = r.map.getInt(entry * 8 + 4) == 0;
+            }
+        });
+        return empty[0];
+    }
+
+    @Override
+    public void forEach(Visitor visitor) throws IOException {
+        forEachFile((rx, ry, r) -> {
+            for (int entry = 0; entry < ENTRIES; entry++) {
+                byte[] data = readEncoded(rx * REGION_SIZE + entry % REGION_SIZE,
+                        ry * REGION_SIZE + entry / REGION_SIZE);
+                if (data != null) {
+                    visitor.accept(rx * REGION_SIZE + entry % REGION_SIZE, ry * REGION_SIZE + entry / REGION_SIZE,
+                            data);
+                }
+            }
+        });
+    }
+
+    private interface RegionVisitor {
+        void accept(int rx, int ry, Region r) throws IOException;
+    }
+
+    private void forEachFile(RegionVisitor visitor) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "r.*.dat")) {
+            for (Path file : files) {
+                Matcher m = FILE_NAME.matcher(file.getFileName().toString());
+                if (m.matches()) {
+                    int rx = Integer.parseInt(m.group(1));
+                    int ry = Integer.parseInt(m.group(2));
+                    visitor.accept(rx, ry, region(rx, ry, false));
+                }
+            }
+        }
+    }
+
+    /** Drains queued batches, then flushes every mapping to disk and closes the files. */
+    @Override
+    public void close() {
+        try {
+            db.writeSync(c -> null);
+        } catch (SQLException e) {
+            System.err.println("Chunk store: " + e.getMessage());
+        }
+        for (Region r : regions.values()) {
+            if (r == ABSENT) {
+                continue;
+            }
+            long stamp = r.lock.writeLock();
+            try {
+                r.map.force();
+                r.channel.close();
+            } catch (IOException e) {
+                System.err.println("Chunk store: " + e.getMessage());
+            } finally {
+                r.lock.unlockWrite(stamp);
+            }
+        }
+        regions.clear();
+    }
+
+    /** Number of region files open. */
+    public int openRegions() {
+        int n = 0;
+        for (Region r : regions.values()) {
+            n += r == ABSENT ? 0 : 1;
+        }
+        return n;
+    }
+}
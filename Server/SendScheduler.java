@@ -0,0 +1,373 @@
+package Server;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-connection outbound queues with priorities and backpressure.
+ *
+ * Every frame for a client goes through its session's {@link Queue}, in one of
+ * three classes: {@link #BLOCK} (block edits, acks, errors; in order, never
+ * dropped), {@link #CHUNK} (chunk and LOD frames; nearest to the player's last
+ * pos first, dropped once all their chunks left the view) and {@link #POS}
+ * (position snapshots; an unsent one is replaced by the next, which is a diff
+ * against the client's acked baseline anyway).
+ *
+ * A connection may write {@link #budgetBytes} per tick, minus what is still
+ * sitting in the socket's own write buffer. While there is room, frames go out
+ * at once; otherwise they wait for {@link #tick}, which drains the queues by
+ * class. Chunk producers park via {@link #parkChunks} while a tick's worth of
+ * chunk frames is already queued, instead of buffering a whole view. A client
+ * whose backlog stays over {@link #maxBacklogBytes} for {@link #slowClientNanos}
+ * is disconnected.
+ *
+ * An edit to a chunk moves queued frames holding that chunk ahead of the edit.
+ * That does not cover a frame still being built (off the tick) when the edit is
+ * applied: it can be queued after the edit's block frame. Versioned chunk
+ * replies (see ChunkVersions) are labelled with a version no newer than their
+ * tiles, so the client sees such a reply is older than an edit it applied and
+ * fetches the chunk again; unversioned replies carry no such check.
+ */
+public class SendScheduler {
+    static final int BLOCK = 0;
+    static final int CHUNK = 1;
+    static final int POS = 2;
+    static final int CLOSE_TOO_SLOW = 1008;
+
+    // One queued frame
+    private static final class Frame {
+        final Object payload; // String (JSON) or byte[] (binary)
+        final int bytes;
+        final int cx; // Chunk frames: the chunk nearest to the player when built
+        final int cy;
+        final long[] keys; // Chunk frames: ChunkCache keys, to drop out-of-view frames; null: never dropped
+
+        Frame(Object payload, int cx, int cy, long[] keys) {
+            this.payload = payload;
+            this.bytes = payload instanceof String ? ((String) payload).length() : ((byte[]) payload).length;
+            this.cx = cx;
+            this.cy = cy;
+            this.keys = keys;
+        }
+
+        boolean contains(long key) {
+            if (keys != null) {
+                for (long k : keys) {
+                    if (k == key) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /** Outbound state of one client, guarded by its own monitor. */
+    public static final class Queue {
+        private final ArrayDeque<Frame> blocks = new ArrayDeque<>();
+        private final List<Frame> chunks = new ArrayList<>();
+        private Frame snapshot;
+        private long queuedBytes = 0;
+        private long chunkBytes = 0;
+        private long allowance = Long.MIN_VALUE; // Bytes this tick may still write; MIN_VALUE until first used
+        private long overSinceNanos = -1;
+        private boolean closed = false;
+        private final List<Runnable> parked = new ArrayList<>(); // Chunk producers waiting for room
+    }
+
+    private final long budgetBytes;
+    private final long maxBacklogBytes;
+    private final long slowClientNanos;
+
+    // Counters: LongAdders, bumped from socket and tick threads without a shared lock
+    private final LongAdder framesDeferred = new LongAdder();
+    private final LongAdder snapshotsSuperseded = new LongAdder();
+    private final LongAdder chunkFramesDropped = new LongAdder();
+    private final LongAdder slowDisconnects = new LongAdder();
+    private volatile long queuedBytes = 0; // All queues, as of the last tick
+
+    public SendScheduler(long budgetBytes, long maxBacklogBytes, long slowClientMs) {
+        this.budgetBytes = budgetBytes;
+        this.maxBacklogBytes = maxBacklogBytes;
+        this.slowClientNanos = slowClientMs * 1_000_000L;
+    }
+
+    /** Queues a BLOCK-class text frame. */
+    public void send(WebSocket conn, String json) {
+        offer(conn, BLOCK, new Frame(json, 0, 0, null), Long.MIN_VALUE);
+    }
+
+    /** Queues a BLOCK-class binary frame. */
+    public void send(WebSocket conn, byte[] frame) {
+        offer(conn, BLOCK, new Frame(frame, 0, 0, null), Long.MIN_VALUE);
+    }
+
+    /**
+     * Queues an edit of chunk (cx, cy), a String or byte[] frame. Queued frames
+     * holding that chunk are sent first.
+     */
+    public void sendEdit(WebSocket conn, int cx, int cy, Object frame) {
+        offer(conn, BLOCK, new Frame(frame, 0, 0, null), ChunkCache.key(cx, cy));
+    }
+
+    /**
+     * Queues a CHUNK-class frame (String or byte[]). (cx, cy) is its chunk nearest
+     * to the player; keys (may be null) are all its chunks.
+     */
+    public void sendChunks(WebSocket conn, int cx, int cy, long[] keys, Object frame) {
+        offer(conn, CHUNK, new Frame(frame, cx, cy, keys), Long.MIN_VALUE);
+    }
+
+    /** Queues a position snapshot (String or byte[]), replacing an unsent one. */
+    public void sendSnapshot(WebSocket conn, Object frame) {
+        offer(conn, POS, new Frame(frame, 0, 0, null), Long.MIN_VALUE);
+    }
+
+    /**
+     * True if a tick's worth of chunk frames is already queued for this client:
+     * resume is then run once there is room again (or dropped if it disconnects).
+     */
+    public boolean parkChunks(Session session, Runnable resume) {
+        Queue q = session.outbound;
+        synchronized (q) {
+            if (q.closed || q.chunkBytes < budgetBytes) {
+                return false;
+            }
+            q.parked.add(resume);
+            return true;
+        }
+    }
+
+    private void offer(WebSocket conn, int kind, Frame frame, long editKey) {
+        Session session = conn.getAttachment();
+        if (session == null) {
+            return;
+        }
+        Queue q = session.outbound;
+        boolean deferred;
+        synchronized (q) {
+            if (q.closed) {
+                return;
+            }
+            if (editKey != Long.MIN_VALUE) {
+                promoteChunk(q, editKey);
+            }
+            if (q.allowance == Long.MIN_VALUE) {
+                q.allowance = budgetBytes; // New connection, before its first tick
+            }
+            // Straight out if nothing of this or a higher class waits and the budget allows
+            boolean ahead = !q.blocks.isEmpty() || (kind >= CHUNK && !q.chunks.isEmpty())
+                    || (kind == POS && q.snapshot != null);
+            if (!ahead && frame.bytes <= q.allowance) {
+                q.allowance -= frame.bytes;
+                write(conn, q, frame);
+                return;
+            }
+            deferred = true;
+            if (kind == BLOCK) {
+                q.blocks.addLast(frame);
+            } else if (kind == CHUNK) {
+                q.chunks.add(frame);
+                q.chunkBytes += frame.bytes;
+            } else {
+                if (q.snapshot != null) {
+                    q.queuedBytes -= q.snapshot.bytes;
+                    deferred = false;
+                    snapshotsSuperseded.increment();
+                }
+                q.snapshot = frame;
+            }
+            q.queuedBytes += frame.bytes;
+        }
+        if (deferred) {
+            framesDeferred.increment();
+        }
+    }
+
+    // Moves queued chunk frames holding key into the BLOCK lane, ahead of the edit about to be queued
+    private static void promoteChunk(Queue q, long key) {
+        for (int i = 0; i < q.chunks.size(); i++) {
+            Frame f = q.chunks.get(i);
+            if (f.contains(key)) {
+                q.chunks.remove(i--);
+                q.chunkBytes -= f.bytes;
+                q.blocks.addLast(f);
+            }
+        }
+    }
+
+    /**
+     * Drains every queue within this tick's budget and disconnects clients that
+     * stayed over the backlog limit. Call from the tick thread only.
+     */
+    public void tick(Collection<WebSocket> connections) {
+        long now = System.nanoTime();
+        long total = 0;
+        for (WebSocket conn : connections) {
+            Session session = conn.getAttachment();
+            if (session == null) {
+                continue;
+            }
+            Queue q = session.outbound;
+            long buffered = buffered(conn);
+            List<Runnable> resume = null;
+            boolean tooSlow = false;
+            synchronized (q) {
+                if (q.closed) {
+                    continue;
+                }
+                if (!conn.isOpen()) {
+                    close(q);
+                    continue;
+                }
+                q.allowance = Math.max(0, budgetBytes - buffered);
+                drain(conn, session, q);
+                total += q.queuedBytes;
+
+                if (q.queuedBytes + buffered <= maxBacklogBytes) {
+                    q.overSinceNanos = -1;
+                } else if (q.overSinceNanos < 0) {
+                    q.overSinceNanos = now;
+                } else if (now - q.overSinceNanos > slowClientNanos) {
+                    tooSlow = true;
+                    close(q);
+                }
+                if (!q.closed && q.chunkBytes < budgetBytes && !q.parked.isEmpty()) {
+                    resume = new ArrayList<>(q.parked);
+                    q.parked.clear();
+                }
+            }
+            if (tooSlow) {
+                System.out.println("Disconnecting slow client: " + conn.getRemoteSocketAddress());
+                conn.close(CLOSE_TOO_SLOW, "Too slow: send backlog over limit");
+                slowDisconnects.increment();
+            }
+            if (resume != null) {
+                for (Runnable r : resume) {
+                    r.run();
+                }
+            }
+        }
+        queuedBytes = total;
+    }
+
+    // Under the queue's monitor: BLOCK lane in order, then the nearest chunk frame, then the snapshot
+    private void drain(WebSocket conn, Session session, Queue q) {
+        while (q.allowance > 0 && !q.closed) {
+            Frame next;
+            if (!q.blocks.isEmpty()) {
+                next = q.blocks.pollFirst();
+            } else if (!q.chunks.isEmpty()) {
+                next = nearestChunk(session, q);
+                if (next == null) {
+                    continue; // Dropped an out-of-view frame
+                }
+                q.chunkBytes -= next.bytes;
+            } else if (q.snapshot != null) {
+                next = q.snapshot;
+                q.snapshot = null;
+            } else {
+                return;
+            }
+            q.queuedBytes -= next.bytes;
+            q.allowance -= next.bytes; // May go negative: a frame larger than the budget still goes out
+            write(conn, q, next);
+        }
+    }
+
+    // Removes and returns the chunk frame nearest to the player; null after dropping one nobody wants
+    private Frame nearestChunk(Session session, Queue q) {
+        int best = 0;
+        if (session.hasPosition()) {
+            long bestDist = Long.MAX_VALUE;
+            int px = session.getChunkX();
+            int py = session.getChunkY();
+            for (int i = 0; i < q.chunks.size(); i++) {
+                Frame f = q.chunks.get(i);
+                long dx = f.cx - px;
+                long dy = f.cy - py;
+                if (dx * dx + dy * dy < bestDist) {
+                    bestDist = dx * dx + dy * dy;
+                    best = i;
+                }
+            }
+        }
+        Frame f = q.chunks.remove(best);
+        if (f.keys != null && !anyInView(session, f.keys)) {
+            q.chunkBytes -= f.bytes;
+            q.queuedBytes -= f.bytes;
+            chunkFramesDropped.increment();
+            return null;
+        }
+        return f;
+    }
+
+    private static boolean anyInView(Session session, long[] keys) {
+        for (long k : keys) {
+            if (session.inView((int) (k >> 32), (int) k)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void write(WebSocket conn, Queue q, Frame f) {
+        try {
+            if (f.payload instanceof String) {
+                Protocol.send(conn, (String) f.payload);
+            } else {
+                Protocol.send(conn, (byte[]) f.payload);
+            }
+        } catch (RuntimeException e) {
+            close(q); // Closed meanwhile
+        }
+    }
+
+    private static void close(Queue q) {
+        q.closed = true;
+        q.blocks.clear();
+        q.chunks.clear();
+        q.snapshot = null;
+        q.parked.clear();
+        q.queuedBytes = 0;
+        q.chunkBytes = 0;
+    }
+
+    // Bytes written to the socket but not yet flushed to the network
+    private long buffered(WebSocket conn) {
+        if (conn instanceof WebSocketImpl) {
+            long n = 0;
+            for (ByteBuffer b : ((WebSocketImpl) conn).outQueue) {
+                n += b.remaining();
+            }
+            return n;
+        }
+        return conn.hasBufferedData() ? budgetBytes : 0;
+    }
+
+    public long getFramesDeferred() {
+        return framesDeferred.sum();
+    }
+
+    public long getSnapshotsSuperseded() {
+        return snapshotsSuperseded.sum();
+    }
+
+    public long getChunkFramesDropped() {
+        return chunkFramesDropped.sum();
+    }
+
+    public long getSlowDisconnects() {
+        return slowDisconnects.sum();
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes;
+    }
+}
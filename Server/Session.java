@@ -0,0 +1,85 @@
+package Server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per-connection state, stored as the WebSocket attachment.
+ */
+public class Session {
+    private static final AtomicInteger NEXT_ID = new AtomicInteger(1);
+
+    public volatile int id; // Partition mode: the router's id for the player (see Main.onRoute)
+    public final boolean binary; // Negotiated at onOpen (see Protocol)
+
+    // Last reported position, in chunk coordinates (updated from pos messages)
+    private volatile boolean hasPosition = false;
+    private volatile int chunkX;
+    private volatile int chunkY;
+
+    // Same position in 1/Protocol.POS_QUANT px, packed as (qx << 32 | qy), for snapshots
+    private volatile long quantizedPosition;
+    final SnapshotBroadcaster.History snapshots = new SnapshotBroadcaster.History();
+
+    // Frames waiting to be written to this client (see SendScheduler)
+    final SendScheduler.Queue outbound = new SendScheduler.Queue();
+
+    // Latest requested view rectangle (inclusive, chunk coordinates). Chunk batches
+    // skip anything that has fallen outside it since they were queued.
+    private volatile int[] viewRect = null;
+
+    // Interest radius in chunks for block/pos fan-out (see InterestIndex), and the
+    // regions this session is registered in (guarded by this session's monitor)
+    private volatile int viewRadius;
+    int[] regions = null;
+
+    public Session(boolean binary, int defaultViewRadius) {
+        this.id = NEXT_ID.getAndIncrement();
+        this.binary = binary;
+        this.viewRadius = defaultViewRadius;
+    }
+
+    public void setPosition(float px, float py, int cx, int cy) {
+        this.quantizedPosition = ((long) Math.round(px * Protocol.POS_QUANT) << 32)
+                | (Math.round(py * Protocol.POS_QUANT) & 0xFFFFFFFFL);
+        this.chunkX = cx;
+        this.chunkY = cy;
+        this.hasPosition = true;
+    }
+
+    public long getQuantizedPosition() {
+        return quantizedPosition;
+    }
+
+    public boolean hasPosition() {
+        return hasPosition;
+    }
+
+    public int getChunkX() {
+        return chunkX;
+    }
+
+    public int getChunkY() {
+        return chunkY;
+    }
+
+    /** Also widens or narrows the interest radius to cover the requested rectangle. */
+    public void setViewRect(int x0, int y0, int x1, int y1) {
+        this.viewRect = new int[] { x0, y0, x1, y1 };
+        this.viewRadius = (Math.max(x1 - x0, y1 - y0) + 1) / 2 + 1;
+    }
+
+    public int getViewRadius() {
+        return viewRadius;
+    }
+
+    /** True if chunk (cx, cy) is within the interest radius of the last position. */
+    public boolean sees(int cx, int cy) {
+        int r = viewRadius;
+        return hasPosition && Math.abs(cx - chunkX) <= r && Math.abs(cy - chunkY) <= r;
+    }
+
+    public boolean inView(int cx, int cy) {
+        int[] r = viewRect;
+        return r == null || (cx >= r[0] && cx <= r[2] && cy >= r[1] && cy <= r[3]);
+    }
+}
@@ -0,0 +1,308 @@
+package Server;
+
+import org.java_websocket.WebSocket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Per-tick aggregated player position snapshots.
+ *
+ * pos messages only record the sender's latest position (quantized to
+ * 1/{@link Protocol#POS_QUANT} px). Once per server tick {@link #tick} works out,
+ * for every connection, which players it can see (via the {@link InterestIndex})
+ * and sends it a single snapshot frame. The snapshot is a diff against the
+ * newest snapshot the client has acknowledged: new players as absolute
+ * positions, moved players as small deltas, players that left view as removals.
+ * Players that have not moved since that baseline are omitted, and nothing is
+ * sent while the visible state is unchanged. Until an ack arrives the diff is
+ * against the empty state.
+ *
+ * The cost is one pass over visible (player, watcher) pairs per tick, however
+ * many pos messages clients send.
+ */
+public class SnapshotBroadcaster {
+    static final int HISTORY = 32; // Snapshots kept per client for use as a baseline (1.6 s at 20 TPS)
+
+    // Entry kinds
+    static final int ABSOLUTE = 0; // i32 qx, i32 qy
+    static final int DELTA = 1; // i16 dx, i16 dy against the baseline
+    static final int REMOVED = 2;
+
+    /** Snapshot history of one client; written by the tick thread, acked from socket threads. */
+    public static final class History {
+        private final int[] seqs = new int[HISTORY];
+        private final int[][] ids = new int[HISTORY][];
+        private final long[][] positions = new long[HISTORY][];
+        private int lastSent = 0;
+        private volatile int acked = 0;
+
+        // Partition mode: only the player's home partition sends snapshots. A new home
+        // restarts from the empty state, above the last seq sent by the previous home.
+        private volatile boolean home = true;
+        private int restartAbove = -1; // Pending restart, applied by the tick; guarded by this
+
+        /** Makes this the player's home partition (snapshots numbered above seqFloor) or not. */
+        public void rehome(boolean home, int seqFloor) {
+            synchronized (this) {
+                this.home = home;
+                restartAbove = home ? seqFloor : -1;
+            }
+        }
+
+        // Tick thread: applies a pending restart; true if there was one
+        private boolean restart() {
+            synchronized (this) {
+                if (restartAbove < 0) {
+                    return false;
+                }
+                lastSent = Math.max(lastSent, restartAbove);
+                acked = 0;
+                restartAbove = -1;
+                return true;
+            }
+        }
+
+        /** Records a client ack; stale or unknown sequence numbers are ignored. */
+        public void ack(int seq) {
+            synchronized (this) {
+                if (seq > acked && seq <= lastSent) {
+                    acked = seq;
+                }
+            }
+        }
+
+        private int slot(int seq) {
+            return seq % HISTORY;
+        }
+    }
+
+    private final InterestIndex interest;
+    private final SendScheduler sender;
+
+    // Counters
+    private long snapshotsSent = 0;
+    private long entriesSent = 0;
+
+    public SnapshotBroadcaster(InterestIndex interest, SendScheduler sender) {
+        this.interest = interest;
+        this.sender = sender;
+    }
+
+    /** Builds and sends this tick's snapshots. Call from the tick thread only. */
+    public void tick(Collection<WebSocket> connections) {
+        // Visible players per watcher, collected from each located player's chunk
+        Map<WebSocket, Visible> visible = new IdentityHashMap<>();
+        for (WebSocket player : connections) {
+            Session s = player.getAttachment();
+            if (s == null || !s.hasPosition()) {
+                continue;
+            }
+            int id = s.id;
+            long q = s.getQuantizedPosition();
+            interest.forEachWatcher(s.getChunkX(), s.getChunkY(), watcher -> {
+                if (watcher != player) {
+                    visible.computeIfAbsent(watcher, w -> new Visible()).add(id, q);
+                }
+            });
+        }
+
+        for (WebSocket conn : connections) {
+            Session session = conn.getAttachment();
+            if (session == null || !conn.isOpen()) {
+                continue;
+            }
+            Visible v = visible.get(conn);
+            if (v == null) {
+                v = Visible.EMPTY;
+            } else {
+                v.sortById();
+            }
+            send(conn, session, v);
+        }
+    }
+
+    private void send(WebSocket conn, Session session, Visible now) {
+        History h = session.snapshots;
+        if (!h.home) {
+            return;
+        }
+        boolean restarted = h.restart(); // New home: one full snapshot, even if empty
+        int acked = h.acked;
+
+        // The socket is ordered and reliable: nothing to send while the client's latest state is current
+        if (!restarted && (h.lastSent == 0 ? now.count == 0 : sameState(h, h.slot(h.lastSent), now))) {
+            return;
+        }
+
+        // Baseline: the acked snapshot if still in history, else the empty state
+        int base = acked != 0 && h.seqs[h.slot(acked)] == acked ? acked : 0;
+        int[] baseIds = base == 0 ? Visible.EMPTY.ids : h.ids[h.slot(base)];
+        long[] basePos = base == 0 ? Visible.EMPTY.positions : h.positions[h.slot(base)];
+        int baseCount = baseIds.length;
+
+        // Merge the two id-sorted lists into entries {id, kind, a, b}
+        int[] entries = new int[(now.count + baseCount) * 4];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < now.count || j < baseCount) {
+            int idNow = i < now.count ? now.ids[i] : Integer.MAX_VALUE;
+            int idBase = j < baseCount ? baseIds[j] : Integer.MAX_VALUE;
+            if (idNow < idBase) {
+                n = put(entries, n, idNow, ABSOLUTE, qx(now.positions[i]), qy(now.positions[i]));
+                i++;
+            } else if (idBase < idNow) {
+                n = put(entries, n, idBase, REMOVED, 0, 0);
+                j++;
+            } else {
+                long p = now.positions[i];
+                long b = basePos[j];
+                if (p != b) {
+                    int dx = qx(p) - qx(b);
+                    int dy = qy(p) - qy(b);
+                    if (dx == (short) dx && dy == (short) dy) {
+                        n = put(entries, n, idNow, DELTA, dx, dy);
+                    } else {
+                        n = put(entries, n, idNow, ABSOLUTE, qx(p), qy(p));
+                    }
+                }
+                i++;
+                j++;
+            }
+        }
+
+        int seq = h.lastSent + 1;
+        int slot = h.slot(seq);
+        h.seqs[slot] = seq;
+        h.ids[slot] = Arrays.copyOf(now.ids, now.count);
+        h.positions[slot] = Arrays.copyOf(now.positions, now.count);
+        synchronized (h) {
+            h.lastSent = seq;
+        }
+
+        // Queued; a snapshot still unsent at the next tick is replaced (both diff against the acked base)
+        if (session.binary) {
+            sender.sendSnapshot(conn, binaryFrame(seq, base, entries, n));
+        } else {
+            sender.sendSnapshot(conn, jsonFrame(seq, base, entries, n));
+        }
+        synchronized (this) {
+            snapshotsSent++;
+            entriesSent += n / 4;
+        }
+    }
+
+    private static boolean sameState(History h, int slot, Visible now) {
+        return Arrays.equals(h.ids[slot], 0, h.ids[slot].length, now.ids, 0, now.count)
+                && Arrays.equals(h.positions[slot], 0, h.positions[slot].length, now.positions, 0, now.count);
+    }
+
+    private static int put(int[] entries, int n, int id, int kind, int a, int b) {
+        entries[n] = id;
+        entries[n + 1] = kind;
+        entries[n + 2] = a;
+        entries[n + 3] = b;
+        return n + 4;
+    }
+
+    // S_SNAPSHOT: u32 seq, u32 base, u16 count, then per entry i32 id, u8 kind, payload
+    private static byte[] binaryFrame(int seq, int base, int[] entries, int n) {
+        int size = 11;
+        for (int k = 0; k < n; k += 4) {
+            size += 5 + (entries[k + 1] == ABSOLUTE ? 8 : entries[k + 1] == DELTA ? 4 : 0);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.put(Protocol.S_SNAPSHOT).putInt(seq).putInt(base).putShort((short) (n / 4));
+        for (int k = 0; k < n; k += 4) {
+            buf.putInt(entries[k]).put((byte) entries[k + 1]);
+            if (entries[k + 1] == ABSOLUTE) {
+                buf.putInt(entries[k + 2]).putInt(entries[k + 3]);
+            } else if (entries[k + 1] == DELTA) {
+                buf.putShort((short) entries[k + 2]).putShort((short) entries[k + 3]);
+            }
+        }
+        return buf.array();
+    }
+
+    // {"type":"snapshot","seq":7,"base":5,"q":4,"p":[[id,kind,a,b],...]} (REMOVED entries are [id,2])
+    private static String jsonFrame(int seq, int base, int[] entries, int n) {
+        StringBuilder sb = new StringBuilder(64 + n * 6);
+        sb.append("{\"type\":\"snapshot\",\"seq\":").append(seq).append(",\"base\":").append(base)
+                .append(",\"q\":").append(Protocol.POS_QUANT).append(",\"p\":[");
+        for (int k = 0; k < n; k += 4) {
+            if (k > 0) {
+                sb.append(',');
+            }
+            sb.append('[').append(entries[k]).append(',').append(entries[k + 1]);
+            if (entries[k + 1] != REMOVED) {
+                sb.append(',').append(entries[k + 2]).append(',').append(entries[k + 3]);
+            }
+            sb.append(']');
+        }
+        return sb.append("]}").toString();
+    }
+
+    private static int qx(long q) {
+        return (int) (q >> 32);
+    }
+
+    private static int qy(long q) {
+        return (int) q;
+    }
+
+    public synchronized long getSnapshotsSent() {
+        return snapshotsSent;
+    }
+
+    public synchronized long getEntriesSent() {
+        return entriesSent;
+    }
+
+    // Growable (id, quantized position) list for one watcher
+    private static final class Visible {
+        static final Visible EMPTY = new Visible(0);
+
+        int[] ids;
+        long[] positions;
+        int count = 0;
+
+        Visible() {
+            this(8);
+        }
+
+        Visible(int capacity) {
+            ids = new int[capacity];
+            positions = new long[capacity];
+        }
+
+        void add(int id, long q) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+                positions = Arrays.copyOf(positions, count * 2);
+            }
+            ids[count] = id;
+            positions[count] = q;
+            count++;
+        }
+
+        void sortById() {
+            long[] order = new long[count];
+            for (int k = 0; k < count; k++) {
+                order[k] = ((long) ids[k] << 32) | k;
+            }
+            Arrays.sort(order);
+            int[] sortedIds = new int[count];
+            long[] sortedPos = new long[count];
+            for (int k = 0; k < count; k++) {
+                int from = (int) order[k];
+                sortedIds[k] = ids[from];
+                sortedPos[k] = positions[from];
+            }
+            ids = sortedIds;
+            positions = sortedPos;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package Server;
+
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Chunks in the SQLite chunks table: {@code id TEXT "x,y"}, {@code data BLOB}
+ * (ChunkCodec; legacy worlds may still hold TEXT rows, see ChunkMigration).
+ *
+ * Reads use the {@link Database} reader pool, bulk reads one padded
+ * {@code IN (...)} query per {@link #BULK_QUERY_SIZE} keys. Batches run on the
+ * database writer thread, one transaction each.
+ */
+public class SqliteChunkStore implements ChunkStore {
+    // Rows fetched per multi-key query; the statement is padded to this size so it is prepared once
+    static final int BULK_QUERY_SIZE = 64;
+    private static final String BULK_SQL;
+    static {
+        StringBuilder sb = new StringBuilder("SELECT id, data FROM chunks WHERE id IN (?");
+        for (int i = 1; i < BULK_QUERY_SIZE; i++) {
+            sb.append(",?");
+        }
+        BULK_SQL = sb.append(')').toString();
+    }
+
+    private final Database db;
+    private final int tileCount;
+
+    public SqliteChunkStore(Database db, int tileCount) {
+        this.db = db;
+        this.tileCount = tileCount;
+    }
+
+    @Override
+    public byte[] read(int cx, int cy) throws IOException {
+        String key = cx + "," + cy;
+        try {
+            return db.read(c -> {
+                long start = System.nanoTime();
+                PreparedStatement pstmt = c.prepare("SELECT data FROM chunks WHERE id = ?");
+                pstmt.setString(1, key);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    return rs.next() ? ChunkCodec.decode(rs.getBytes("data"), tileCount) : null;
+                } finally {
+                    Metrics.recordDb(Metrics.DB_CHUNK_READ, System.nanoTime() - start);
+                }
+            });
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void read(long[] keys, int count, byte[][] out) throws IOException {
+        for (int start = 0; start < count; start += BULK_QUERY_SIZE) {
+            final int from = start;
+            final int to = Math.min(count, start + BULK_QUERY_SIZE);
+            try {
+                db.read(c -> {
+                    long queryStart = System.nanoTime();
+                    Map<String, Integer> wanted = new HashMap<>();
+                    PreparedStatement pstmt = c.prepare(BULK_SQL);
+                    for (int p = 0; p < BULK_QUERY_SIZE; p++) {
+                        // Pad unused parameters by repeating the first key
+                        int idx = Math.min(from + p, to - 1);
+                        String id = (int) (keys[idx] >> 32) + "," + (int) keys[idx];
+                        pstmt.setString(p + 1, id);
+                        wanted.put(id, idx);
+                    }
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        while (rs.next()) {
+                            Integer idx = wanted.get(rs.getString(1));
+                            if (idx != null) {
+                                out[idx] = ChunkCodec.decode(rs.getBytes(2), tileCount);
+                            }
+                        }
+                    }
+                    Metrics.recordDb(Metrics.DB_CHUNK_BULK_READ, System.nanoTime() - queryStart);
+                    return null;
+                });
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<Integer> write(Batch batch) {
+        return db.write(c -> {
+            long start = System.nanoTime();
+            batch.prepare();
+            PreparedStatement put = c.prepare("INSERT OR REPLACE INTO chunks(id, data) VALUES(?, ?)");
+            PreparedStatement putIfAbsent = c.prepare("INSERT OR IGNORE INTO chunks(id, data) VALUES(?, ?)");
+            PreparedStatement delete = c.prepare("DELETE FROM chunks WHERE id = ?");
+            // In the order added: each run of one kind goes out as one JDBC batch
+            PreparedStatement pending = null;
+            for (Batch.Write w : batch.writes) {
+                String id = w.cx + "," + w.cy;
+                PreparedStatement pstmt = w.mode == Batch.DELETE ? delete : w.mode == Batch.PUT ? put : putIfAbsent;
+                if (pending != null && pending != pstmt) {
+                    pending.executeBatch();
+                }
+                pending = pstmt;
+                pstmt.setString(1, id);
+                if (w.mode != Batch.DELETE) {
+                    pstmt.setBytes(2, w.data);
+                }
+                pstmt.addBatch();
+            }
+            if (pending != null) {
+                pending.executeBatch();
+            }
+            writeVersions(c, batch.versions);
+            writeMetadata(c, batch.metadata);
+            Metrics.recordDb(batch.metric, System.nanoTime() - start);
+            return batch.size();
+        });
+    }
+
+    // Chunk versions of a batch (see ChunkVersions), inside the caller's transaction
+    static void writeVersions(Database.DbConnection c, Map<Long, Long> versions) throws SQLException {
+        if (versions.isEmpty()) {
+            return;
+        }
+        PreparedStatement pstmt = c.prepare("INSERT OR REPLACE INTO chunk_versions(id, version) VALUES(?, ?)");
+        for (Map.Entry<Long, Long> entry : versions.entrySet()) {
+            pstmt.setLong(1, entry.getKey());
+            pstmt.setLong(2, entry.getValue());
+            pstmt.addBatch();
+        }
+        pstmt.executeBatch();
+    }
+
+    // Metadata rows of a batch, inside the caller's transaction
+    static void writeMetadata(Database.DbConnection c, Map<String, String> metadata) throws SQLException {
+        if (metadata.isEmpty()) {
+            return;
+        }
+        PreparedStatement pstmt = c.prepare("INSERT OR REPLACE INTO metadata(key, value) VALUES(?, ?)");
+        for (Map.Entry<String, String> entry : metadata.entrySet()) {
+            pstmt.setString(1, entry.getKey());
+            pstmt.setString(2, entry.getValue());
+            pstmt.addBatch();
+        }
+        pstmt.executeBatch();
+    }
+
+    // An existence probe; count(*) walks the whole table
+    @Override
+    public boolean isEmpty() throws IOException {
+        try {
+            return db.read(c -> {
+                try (ResultSet rs = c.prepare("SELECT 1 FROM chunks LIMIT 1").executeQuery()) {
+                    return !rs.next();
+                }
+            });
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    // Walks the table in rowid order, a page at a time; legacy TEXT rows are re-encoded
+    @Override
+    public void forEach(Visitor visitor) throws IOException {
+        long[] lastRowId = { 0 };
+        while (true) {
+            int n;
+            try {
+                n = db.read(c -> {
+                    PreparedStatement pstmt = c.prepare(
+                            "SELECT rowid, id, data FROM chunks WHERE rowid > ? ORDER BY rowid LIMIT 2000");
+                    pstmt.setLong(1, lastRowId[0]);
+                    int rows = 0;
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        while (rs.next()) {
+                            rows++;
+                            lastRowId[0] = rs.getLong(1);
+                            String id = rs.getString(2);
+                            byte[] data = rs.getBytes(3);
+                            int comma = id.indexOf(',');
+                            if (comma == -1 || data == null) {
+                                continue;
+                            }
+                            if (ChunkCodec.isLegacyText(data)) {
+                                byte[] tiles = ChunkCodec.decode(data, tileCount);
+                                if (tiles == null) {
+                                    continue; // Malformed row
+                                }
+                                data = ChunkCodec.encode(tiles);
+                            }
+                            try {
+                                visitor.accept(Integer.parseInt(id.substring(0, comma)),
+                                        Integer.parseInt(id.substring(comma + 1)), data);
+                            } catch (IOException e) {
+                                throw new SQLException(e);
+                            }
+                        }
+                    }
+                    return rows;
+                });
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+            if (n == 0) {
+                return;
+            }
+        }
+    }
+
+    /** The database stays open: it also holds the metadata. */
+    @Override
+    public void close() {
+        try {
+            db.writeSync(c -> null); // Drain queued batches
+        } catch (SQLException e) {
+            System.err.println("Chunk store: " + e.getMessage());
+        }
+    }
+}
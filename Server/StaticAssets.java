@@ -0,0 +1,363 @@
+package Server;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Static file handler for the HTTP server (frontend, textures, fonts, config).
+ *
+ * Files are held in memory after the first request together with a gzipped
+ * variant (compressible types only) and a strong ETag. A cached entry is
+ * reloaded when the file's modification time or size changes, so edits show up
+ * without a restart. Conditional requests (If-None-Match) get 304.
+ *
+ * Development mode sends {@code Cache-Control: no-cache}, so browsers
+ * revalidate every load (cheap, thanks to the ETag). Production mode
+ * (-Dtyls.production=true) checks files for changes at most once per
+ * {@link #PRODUCTION_CHECK_NANOS}. It also lets browsers keep hashed assets
+ * for a year: names like {@code app.3f9a1c2b.js} or URLs with a {@code ?v=}
+ * query. Anything else still revalidates.
+ */
+public class StaticAssets implements HttpHandler {
+    static final long MAX_CACHED_FILE_BYTES = 16L * 1024 * 1024; // Larger files are streamed from disk
+    private static final long PRODUCTION_CHECK_NANOS = 2_000_000_000L;
+    private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+    private static final Pattern HASHED_NAME = Pattern.compile(".*[.-][0-9a-fA-F]{8,}\\.[A-Za-z0-9]+$");
+
+    // MIME type mapping
+    private static final Map<String, String> MIME_TYPES = new HashMap<>();
+    static {
+        MIME_TYPES.put(".html", "text/html");
+        MIME_TYPES.put(".js", "application/javascript");
+        MIME_TYPES.put(".css", "text/css");
+        MIME_TYPES.put(".json", "application/json");
+        MIME_TYPES.put(".png", "image/png");
+        MIME_TYPES.put(".jpg", "image/jpeg");
+        MIME_TYPES.put(".gif", "image/gif");
+        MIME_TYPES.put(".svg", "image/svg+xml");
+        MIME_TYPES.put(".ttf", "font/ttf");
+        MIME_TYPES.put(".woff", "font/woff");
+        MIME_TYPES.put(".woff2", "font/woff2");
+        MIME_TYPES.put(".wasm", "application/wasm");
+        MIME_TYPES.put(".mp3", "audio/mpeg");
+        MIME_TYPES.put(".ogg", "audio/ogg");
+        MIME_TYPES.put(".wav", "audio/wav");
+        MIME_TYPES.put(".ico", "image/x-icon");
+    }
+
+    /**
+     * HTTP server executor: a virtual thread per request where the JDK has them
+     * (21+), else a pool, so concurrent page loads do not queue behind the single
+     * default dispatcher thread.
+     */
+    static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            int threads = Integer.getInteger("tyls.httpThreads",
+                    Math.max(8, Runtime.getRuntime().availableProcessors() * 4));
+            AtomicInteger n = new AtomicInteger();
+            return Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "http-" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /** One cached file; replaced as a whole when the file changes. */
+    private static final class Asset {
+        final long modified;
+        final long size;
+        final String type;
+        final byte[] body;
+        final byte[] gzip; // null when not worth compressing
+        final String etag;
+        final String gzipEtag;
+        volatile long checkedNanos;
+
+        Asset(long modified, long size, String type, byte[] body, byte[] gzip, String etag) {
+            this.modified = modified;
+            this.size = size;
+            this.type = type;
+            this.body = body;
+            this.gzip = gzip;
+            this.etag = "\"" + etag + "\"";
+            this.gzipEtag = "\"" + etag + "-gz\""; // Strong ETags differ per encoding
+            this.checkedNanos = System.nanoTime();
+        }
+    }
+
+    private final Path root;
+    private final boolean production;
+    private final ConcurrentHashMap<Path, Asset> cache = new ConcurrentHashMap<>();
+
+    public StaticAssets(Path root, boolean production) {
+        this.root = root;
+        this.production = production;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        Headers out = exchange.getResponseHeaders();
+
+        // Handle CORS preflight
+        if ("OPTIONS".equalsIgnoreCase(method)) {
+            out.add("Access-Control-Allow-Origin", "*");
+            out.add("Access-Control-Allow-Methods", "GET, HEAD, OPTIONS");
+            out.add("Access-Control-Allow-Headers", "*");
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+            return;
+        }
+        boolean head = "HEAD".equalsIgnoreCase(method);
+        if (!head && !"GET".equalsIgnoreCase(method)) {
+            sendError(exchange, 405, "Method Not Allowed");
+            return;
+        }
+
+        String path = exchange.getRequestURI().getPath();
+
+        // Default to index
+        if (path.equals("/")) {
+            path = "/Frontend/index.html";
+        }
+
+        // Security: Block path traversal
+        if (path.contains("..")) {
+            sendError(exchange, 403, "Forbidden");
+            return;
+        }
+
+        // Security: Block access to server source and lib
+        String lowerPath = path.toLowerCase();
+        if (lowerPath.startsWith("/server/") || lowerPath.startsWith("/lib/") ||
+                lowerPath.startsWith("/.git")) {
+            sendError(exchange, 403, "Forbidden");
+            return;
+        }
+
+        // Resolve file
+        Path filePath = root.resolve(path.substring(1)).normalize();
+
+        // Ensure resolved path is still within project root
+        if (!filePath.startsWith(root)) {
+            sendError(exchange, 403, "Forbidden");
+            return;
+        }
+
+        Asset asset;
+        try {
+            asset = lookup(filePath);
+        } catch (IOException e) {
+            asset = null; // Deleted or unreadable between the check and the read
+        }
+        if (asset == null) {
+            if (Files.isRegularFile(filePath)) {
+                stream(exchange, filePath, head); // Too large to cache
+            } else {
+                sendError(exchange, 404, "Not Found: " + path);
+            }
+            return;
+        }
+
+        boolean gzip = asset.gzip != null && acceptsGzip(exchange.getRequestHeaders());
+        String etag = gzip ? asset.gzipEtag : asset.etag;
+        out.add("Content-Type", asset.type);
+        out.add("Access-Control-Allow-Origin", "*");
+        out.add("Cache-Control", cacheControl(filePath, exchange.getRequestURI().getRawQuery()));
+        out.add("ETag", etag);
+        if (asset.gzip != null) {
+            out.add("Vary", "Accept-Encoding");
+        }
+
+        if (matches(exchange.getRequestHeaders().getFirst("If-None-Match"), asset)) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+
+        byte[] body = gzip ? asset.gzip : asset.body;
+        if (gzip) {
+            out.add("Content-Encoding", "gzip");
+        }
+        if (head) {
+            out.add("Content-Length", String.valueOf(body.length));
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+            return;
+        }
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    /** Number of files currently cached. */
+    public int size() {
+        return cache.size();
+    }
+
+    // Cached asset for a file, (re)loaded if it changed; null if missing, a directory or too large
+    private Asset lookup(Path file) throws IOException {
+        Asset asset = cache.get(file);
+        long now = System.nanoTime();
+        if (asset != null && production && now - asset.checkedNanos < PRODUCTION_CHECK_NANOS) {
+            return asset;
+        }
+
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            cache.remove(file);
+            return null;
+        }
+        if (!attrs.isRegularFile() || attrs.size() > MAX_CACHED_FILE_BYTES) {
+            cache.remove(file);
+            return null;
+        }
+        long modified = attrs.lastModifiedTime().toMillis();
+        if (asset != null && asset.modified == modified && asset.size == attrs.size()) {
+            asset.checkedNanos = now;
+            return asset;
+        }
+
+        // Concurrent loads of the same file are harmless: both produce the same entry
+        asset = load(file, modified, attrs.size());
+        cache.put(file, asset);
+        return asset;
+    }
+
+    private static Asset load(Path file, long modified, long size) throws IOException {
+        byte[] body = Files.readAllBytes(file);
+        String type = mimeType(file);
+
+        byte[] gzip = null;
+        if (compressible(type)) {
+            gzip = gzip(body);
+            if (gzip.length >= body.length - body.length / 10) {
+                gzip = null; // Less than 10% saved
+            }
+        }
+        return new Asset(modified, size, type, body, gzip, hash(body));
+    }
+
+    private static String mimeType(Path file) {
+        String fileName = file.getFileName().toString();
+        String ext = fileName.contains(".") ? fileName.substring(fileName.lastIndexOf('.')) : "";
+        return MIME_TYPES.getOrDefault(ext.toLowerCase(), "application/octet-stream");
+    }
+
+    private String cacheControl(Path file, String query) {
+        if (production && (HASHED_NAME.matcher(file.getFileName().toString()).matches()
+                || (query != null && (query.startsWith("v=") || query.contains("&v="))))) {
+            return IMMUTABLE;
+        }
+        return "no-cache"; // Always revalidate; a matching ETag makes that a 304
+    }
+
+    private static boolean matches(String ifNoneMatch, Asset asset) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            String t = tag.trim();
+            if (t.startsWith("W/")) {
+                t = t.substring(2); // Weak comparison is allowed for If-None-Match
+            }
+            if (t.equals("*") || t.equals(asset.etag) || t.equals(asset.gzipEtag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean acceptsGzip(Headers request) {
+        String accept = request.getFirst("Accept-Encoding");
+        if (accept == null) {
+            return false;
+        }
+        for (String coding : accept.split(",")) {
+            String c = coding.trim().toLowerCase();
+            if (c.equals("gzip") || (c.startsWith("gzip;") && !c.replace(" ", "").endsWith("q=0"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean compressible(String type) {
+        return type.startsWith("text/") || type.equals("application/javascript") || type.equals("application/json")
+                || type.equals("image/svg+xml") || type.equals("application/wasm") || type.equals("font/ttf");
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 3 + 64);
+        try (GZIPOutputStream gz = new GZIPOutputStream(bytes) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION); // Once per file change, so spend the time
+            }
+        }) {
+            gz.write(data);
+        }
+        return bytes.toByteArray();
+    }
+
+    // 128 bits of SHA-256, base64url
+    private static String hash(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(digest, 16));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JDK has SHA-256
+        }
+    }
+
+    // Uncached path for very large files
+    private static void stream(HttpExchange exchange, Path file, boolean head) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", mimeType(file));
+        exchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+        exchange.getResponseHeaders().add("Cache-Control", "no-cache");
+        if (head) {
+            exchange.getResponseHeaders().add("Content-Length", String.valueOf(Files.size(file)));
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+            return;
+        }
+        exchange.sendResponseHeaders(200, Files.size(file));
+        try (OutputStream os = exchange.getResponseBody()) {
+            Files.copy(file, os);
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int code, String message) throws IOException {
+        byte[] resp = message.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(code, resp.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(resp);
+        }
+    }
+}
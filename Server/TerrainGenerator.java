@@ -0,0 +1,198 @@
+package Server;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Perlin terrain for one world seed.
+ *
+ * The permutation table is built once in the constructor and never written
+ * again, so one instance can be shared by any number of threads.
+ *
+ * Chunks are evaluated a whole 16 x 16 tile block (or a row of chunks) at a
+ * time. The lattice column, fraction and fade value depend only on a tile's x,
+ * so they are computed once per column. Likewise for y once per tile row. The
+ * corner hashes are looked up once per lattice cell rather than per tile (a
+ * chunk spans at most 2 x 2 cells).
+ *
+ * Every tile still goes through the same double operations, in the same
+ * order, as the original per-tile getNoise. Output is therefore bit-identical,
+ * and existing worlds and sparse-storage comparisons are unaffected.
+ */
+public class TerrainGenerator implements WorldPreGenerator.ChunkSource {
+    static final int CHUNK_SIZE = 16;
+    static final int TILES_PER_CHUNK = CHUNK_SIZE * CHUNK_SIZE;
+    private static final double FREQUENCY = 0.04; // Noise units per tile (tuned for visible variation in LOD)
+
+    // Block IDs
+    private static final byte WATER = 0;
+    private static final byte DIRT = 1;
+    private static final byte GRASS = 2;
+    private static final byte SAND = 3;
+
+    private final int[] p = new int[512];
+
+    public TerrainGenerator(int seed) {
+        int[] permutation = new int[256];
+        Random r = new Random(seed);
+
+        for (int i = 0; i < 256; i++)
+            permutation[i] = i;
+        // Shuffle
+        for (int i = 0; i < 256; i++) {
+            int j = r.nextInt(256);
+            int temp = permutation[i];
+            permutation[i] = permutation[j];
+            permutation[j] = temp;
+        }
+
+        for (int i = 0; i < 512; i++) {
+            p[i] = permutation[i % 256];
+        }
+    }
+
+    /** Flat row-major tile array of chunk (cx, cy). */
+    @Override
+    public byte[] generate(int cx, int cy) {
+        byte[] tiles = new byte[TILES_PER_CHUNK];
+        if (isSpawn(cx, cy)) {
+            Arrays.fill(tiles, DIRT);
+            return tiles;
+        }
+        Axis columns = new Axis(cx);
+        Axis rows = new Axis(cy);
+        fill(tiles, columns, rows);
+        return tiles;
+    }
+
+    /** Chunks (cx0, cy) .. (cx0 + count - 1, cy); the tile-row terms are shared by all of them. */
+    @Override
+    public byte[][] generateRow(int cx0, int cy, int count) {
+        byte[][] out = new byte[count][];
+        Axis rows = new Axis(cy);
+        Axis columns = new Axis(cx0);
+        for (int i = 0; i < count; i++) {
+            int cx = cx0 + i;
+            byte[] tiles = new byte[TILES_PER_CHUNK];
+            if (isSpawn(cx, cy)) {
+                Arrays.fill(tiles, DIRT);
+            } else {
+                columns.set(cx);
+                fill(tiles, columns, rows);
+            }
+            out[i] = tiles;
+        }
+        return out;
+    }
+
+    /** A single noise sample in [-1, 1] at noise-space (x, y); same function generate() evaluates per tile. */
+    public double noise(double x, double y) {
+        // Find unit cube that contains point
+        int X = (int) Math.floor(x) & 255;
+        int Y = (int) Math.floor(y) & 255;
+
+        // Find relative x,y of point in cube
+        x -= Math.floor(x);
+        y -= Math.floor(y);
+
+        // Compute fade curves for x,y
+        double u = fade(x);
+        double v = fade(y);
+
+        // Hash coordinates of the 4 cube corners
+        int A = p[X] + Y, AA = p[A], AB = p[A + 1];
+        int B = p[X + 1] + Y, BA = p[B], BB = p[B + 1];
+
+        // Add blended results from 4 corners
+        return lerp(v, lerp(u, grad(p[AA], x, y), grad(p[BA], x - 1, y)),
+                lerp(u, grad(p[AB], x, y - 1), grad(p[BB], x - 1, y - 1)));
+    }
+
+    // Safe spawn zone in center (int arithmetic, as it always was)
+    private static boolean isSpawn(int cx, int cy) {
+        return Math.sqrt(cx * cx + cy * cy) < 2;
+    }
+
+    private void fill(byte[] tiles, Axis columns, Axis rows) {
+        int[] p = this.p;
+        int i = 0;
+        for (int ty = 0; ty < CHUNK_SIZE; ty++) {
+            int Y = rows.cell[ty];
+            double y = rows.frac[ty];
+            double y1 = rows.fracMinus1[ty];
+            double v = rows.fade[ty];
+
+            int cellX = -1;
+            int h00 = 0, h10 = 0, h01 = 0, h11 = 0;
+            for (int tx = 0; tx < CHUNK_SIZE; tx++) {
+                int X = columns.cell[tx];
+                if (X != cellX) {
+                    int A = p[X] + Y;
+                    int B = p[X + 1] + Y;
+                    h00 = p[p[A]];
+                    h01 = p[p[A + 1]];
+                    h10 = p[p[B]];
+                    h11 = p[p[B + 1]];
+                    cellX = X;
+                }
+                double x = columns.frac[tx];
+                double x1 = columns.fracMinus1[tx];
+                double u = columns.fade[tx];
+                double val = lerp(v, lerp(u, grad(h00, x, y), grad(h10, x1, y)),
+                        lerp(u, grad(h01, x, y1), grad(h11, x1, y1)));
+                tiles[i++] = classify(val);
+            }
+        }
+    }
+
+    // Density based on noise (low = dense): 0=Water, 1=Dirt, 2=Grass, 3=Sand
+    private static byte classify(double val) {
+        if (val < -0.3) {
+            return WATER;
+        } else if (val < 0.1) {
+            return DIRT;
+        } else if (val < 0.4) {
+            return GRASS;
+        }
+        return SAND;
+    }
+
+    private static double fade(double t) {
+        return t * t * t * (t * (t * 6 - 15) + 10);
+    }
+
+    private static double lerp(double t, double a, double b) {
+        return a + t * (b - a);
+    }
+
+    private static double grad(int hash, double x, double y) {
+        int h = hash & 15;
+        double u = h < 8 ? x : y;
+        double v = h < 4 ? y : (h == 12 || h == 14 ? x : 0);
+        return ((h & 1) == 0 ? u : -u) + ((h & 2) == 0 ? v : -v);
+    }
+
+    // Per-tile terms along one axis of a chunk: lattice cell, fraction, fraction - 1, fade
+    private static final class Axis {
+        final int[] cell = new int[CHUNK_SIZE];
+        final double[] frac = new double[CHUNK_SIZE];
+        final double[] fracMinus1 = new double[CHUNK_SIZE];
+        final double[] fade = new double[CHUNK_SIZE];
+
+        Axis(int chunk) {
+            set(chunk);
+        }
+
+        void set(int chunk) {
+            for (int t = 0; t < CHUNK_SIZE; t++) {
+                // Same expression as the per-tile sampler: the int tile coordinate times the frequency
+                double c = (chunk * CHUNK_SIZE + t) * FREQUENCY;
+                double f = Math.floor(c);
+                cell[t] = (int) f & 255;
+                frac[t] = c - f;
+                fracMinus1[t] = frac[t] - 1;
+                fade[t] = TerrainGenerator.fade(frac[t]);
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package Server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fixed-step server tick with named phases.
+ *
+ * Phases run in registration order once per tick on the thread that calls
+ * {@link #run()}. Ticks are scheduled against absolute deadlines and the thread
+ * parks until the next one is due. A tick that takes longer than the period is
+ * an overrun; a late loop runs up to maxCatchUpTicks back-to-back ticks and then
+ * drops the rest of the backlog (counted as skipped) instead of spiraling.
+ *
+ * Every phase and the whole tick are timed into {@link Histogram}s. Nothing is
+ * printed from the tick itself: a monitor thread reports overruns and skipped
+ * ticks at most once per report interval, and only when they happened.
+ */
+public class TickScheduler {
+    /** A registered phase and its duration histogram. */
+    public static final class Phase {
+        public final String name;
+        public final Histogram histogram = new Histogram();
+        private final Runnable body;
+
+        Phase(String name, Runnable body) {
+            this.name = name;
+            this.body = body;
+        }
+    }
+
+    private final int tps;
+    private final long periodNanos;
+    private final int maxCatchUpTicks;
+    private final List<Phase> phases = new ArrayList<>();
+    private final Histogram tickHistogram = new Histogram();
+    private volatile boolean running = false;
+    private boolean started = false; // Under this monitor
+    private boolean stopped = false; // Under this monitor
+    private final CountDownLatch exited = new CountDownLatch(1);
+
+    // Counters
+    private final AtomicLong ticks = new AtomicLong();
+    private final AtomicLong overruns = new AtomicLong();
+    private final AtomicLong skippedTicks = new AtomicLong();
+    private final AtomicLong phaseErrors = new AtomicLong();
+
+    public TickScheduler(int tps, int maxCatchUpTicks) {
+        this.tps = tps;
+        this.periodNanos = 1_000_000_000L / tps;
+        this.maxCatchUpTicks = Math.max(1, maxCatchUpTicks);
+    }
+
+    /** Adds a phase; call before {@link #run()}. */
+    public synchronized TickScheduler register(String name, Runnable body) {
+        if (running) {
+            throw new IllegalStateException("Phases must be registered before the scheduler starts");
+        }
+        phases.add(new Phase(name, body));
+        return this;
+    }
+
+    /** Runs ticks on the calling thread until {@link #stop()}. */
+    public void run() {
+        Phase[] order;
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            order = phases.toArray(new Phase[0]);
+            started = true;
+            running = true;
+        }
+        ScheduledExecutorService monitor = startMonitor(10);
+
+        try {
+            long next = System.nanoTime();
+            while (running) {
+                long now = System.nanoTime();
+                if (now < next) {
+                    LockSupport.parkNanos(next - now);
+                    continue;
+                }
+
+                // Too far behind: run what catch-up allows and drop the rest of the backlog
+                long behind = (now - next) / periodNanos;
+                if (behind >= maxCatchUpTicks) {
+                    skippedTicks.addAndGet(behind - (maxCatchUpTicks - 1));
+                    next = now - (maxCatchUpTicks - 1) * periodNanos;
+                }
+
+                tick(order);
+                next += periodNanos;
+            }
+        } finally {
+            monitor.shutdownNow();
+            exited.countDown();
+        }
+    }
+
+    public synchronized void stop() {
+        stopped = true;
+        running = false;
+    }
+
+    /**
+     * Stops the loop and waits up to timeoutMillis for the tick in progress to
+     * finish. True once no tick runs any more (also if the loop never started).
+     */
+    public boolean stopAndWait(long timeoutMillis) throws InterruptedException {
+        synchronized (this) {
+            stop();
+            if (!started) {
+                return true;
+            }
+        }
+        return exited.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void tick(Phase[] order) {
+        long start = System.nanoTime();
+        long phaseStart = start;
+        for (Phase phase : order) {
+            try {
+                phase.body.run();
+            } catch (RuntimeException e) {
+                // Rare; one bad phase must not stop the others
+                phaseErrors.incrementAndGet();
+                e.printStackTrace();
+            }
+            long end = System.nanoTime();
+            phase.histogram.record(end - phaseStart);
+            phaseStart = end;
+        }
+        long duration = phaseStart - start;
+        tickHistogram.record(duration);
+        ticks.incrementAndGet();
+        if (duration > periodNanos) {
+            overruns.incrementAndGet();
+        }
+    }
+
+    private ScheduledExecutorService startMonitor(long intervalSeconds) {
+        ScheduledExecutorService monitor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "tick-monitor");
+            t.setDaemon(true);
+            return t;
+        });
+        long[] last = new long[2]; // overruns, skipped at the previous report
+        monitor.scheduleAtFixedRate(() -> {
+            long o = overruns.get();
+            long s = skippedTicks.get();
+            if (o != last[0] || s != last[1]) {
+                System.err.println("Tick: " + (o - last[0]) + " overruns, " + (s - last[1]) + " skipped ticks in the last "
+                        + intervalSeconds + "s (p99 tick " + p99Text() + ", budget " + periodNanos / 1000 + " us)");
+                last[0] = o;
+                last[1] = s;
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        return monitor;
+    }
+
+    // "<= N us", or ">= N us" (the last bound) when the p99 is in the overflow bucket
+    private String p99Text() {
+        long p99 = tickHistogram.quantileUpperBound(0.99);
+        if (p99 == Long.MAX_VALUE) {
+            long[] bounds = tickHistogram.getBounds();
+            return ">= " + bounds[bounds.length - 1] / 1000 + " us";
+        }
+        return "<= " + p99 / 1000 + " us";
+    }
+
+    public int getTps() {
+        return tps;
+    }
+
+    public long getPeriodNanos() {
+        return periodNanos;
+    }
+
+    /** Registered phases, in execution order. */
+    public synchronized List<Phase> getPhases() {
+        return new ArrayList<>(phases);
+    }
+
+    public Histogram getTickHistogram() {
+        return tickHistogram;
+    }
+
+    public long getTicks() {
+        return ticks.get();
+    }
+
+    public long getOverruns() {
+        return overruns.get();
+    }
+
+    public long getSkippedTicks() {
+        return skippedTicks.get();
+    }
+
+    public long getPhaseErrors() {
+        return phaseErrors.get();
+    }
+}
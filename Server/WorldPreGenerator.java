@@ -0,0 +1,205 @@
+package Server;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Parallel, resumable world pre-generation of a rectangle of chunks (the whole
+ * world, or one partition's share of it).
+ *
+ * Chunk rows are generated on a fork/join pool (one leaf task per row, all cores
+ * by default, -Dtyls.genThreads=N) and each finished row is handed to the single
+ * chunk store as one batch. The same batch advances the {@code pregen_next_row}
+ * checkpoint in the metadata table to the first row that is not yet committed,
+ * so a killed generation resumes from there; rows past the checkpoint that did
+ * commit are written again as put-if-absent.
+ *
+ * Rows are handed to the pool in windows of a few rows per thread, which keeps
+ * the checkpoint close behind the work actually done.
+ */
+public class WorldPreGenerator {
+    public static final String CHECKPOINT_KEY = "pregen_next_row";
+
+    /** Produces the flat tile array for one chunk. Must be safe to call from many threads. */
+    public interface ChunkSource {
+        byte[] generate(int cx, int cy);
+
+        /** Chunks (cx0, cy) .. (cx0 + count - 1, cy); sources that batch rows override this. */
+        default byte[][] generateRow(int cx0, int cy, int count) {
+            byte[][] out = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                out[i] = generate(cx0 + i, cy);
+            }
+            return out;
+        }
+    }
+
+    private static final long REPORT_INTERVAL_NANOS = 2_000_000_000L;
+
+    private final ChunkStore store;
+    private final ChunkSource source;
+    private final int x0;
+    private final int y0;
+    private final int columns;
+    private final int rows;
+    private final int threads;
+
+    // Rows committed so far; only touched on the writer thread
+    private boolean[] committed;
+    private int nextRow;
+
+    private final AtomicLong chunksWritten = new AtomicLong();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private Semaphore inFlight;
+
+    /** Generates chunks (x0, y0) .. (x1, y1), inclusive; an empty rectangle generates nothing. */
+    public WorldPreGenerator(ChunkStore store, ChunkSource source, int x0, int y0, int x1, int y1, int threads) {
+        this.store = store;
+        this.source = source;
+        this.x0 = x0;
+        this.y0 = y0;
+        this.columns = Math.max(0, x1 - x0 + 1);
+        this.rows = columns == 0 ? 0 : Math.max(0, y1 - y0 + 1);
+        this.threads = Math.max(1, threads);
+    }
+
+    /** Number of chunk rows to generate; a checkpoint equal to this means generation finished. */
+    public int rowCount() {
+        return rows;
+    }
+
+    /**
+     * Generates rows [startRow, rowCount()) and blocks until they are committed.
+     * Returns the number of chunks written.
+     */
+    public long run(int startRow) {
+        long total = (long) Math.max(0, rows - startRow) * columns;
+        committed = new boolean[rows];
+        nextRow = startRow;
+        int maxInFlight = threads * 2;
+        inFlight = new Semaphore(maxInFlight);
+        Metrics.genChunksTotal.set(total);
+        Metrics.genChunksDone.set(0);
+
+        System.out.println("Generating rows " + startRow + ".." + (rows - 1) + " (" + total + " chunks) on "
+                + threads + " threads");
+
+        long start = System.nanoTime();
+        long lastReport = start;
+        long lastReported = 0;
+        int window = threads * 4;
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            for (int lo = startRow; lo < rows && failure.get() == null; lo += window) {
+                pool.invoke(new Rows(lo, Math.min(rows, lo + window)));
+
+                long now = System.nanoTime();
+                if (now - lastReport >= REPORT_INTERVAL_NANOS) {
+                    long done = chunksWritten.get();
+                    double rate = (done - lastReported) * 1e9 / (now - lastReport);
+                    System.out.print("\rProgress: " + (int) (done * 100 / Math.max(1, total)) + "% (" + done + "/"
+                            + total + ") " + (long) rate + " chunks/s   ");
+                    lastReport = now;
+                    lastReported = done;
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        // Wait for the writer to commit everything still queued
+        inFlight.acquireUninterruptibly(maxInFlight);
+        Throwable e = failure.get();
+        if (e != null) {
+            throw new CompletionException(e);
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long written = chunksWritten.get();
+        System.out.println("\rProgress: 100% - Done! " + written + " chunks in " + String.format("%.1f", seconds)
+                + "s (" + (long) (written / Math.max(seconds, 1e-9)) + " chunks/s)");
+        return written;
+    }
+
+    // Splits a range of rows down to one leaf per row
+    private final class Rows extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int lo;
+        private final int hi;
+
+        Rows(int lo, int hi) {
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new Rows(lo, mid), new Rows(mid, hi));
+                return;
+            }
+            if (failure.get() != null) {
+                return;
+            }
+
+            int row = lo;
+            int cy = y0 + row;
+            byte[][] data = source.generateRow(x0, cy, columns);
+            for (int i = 0; i < columns; i++) {
+                data[i] = ChunkCodec.encode(data[i]);
+            }
+
+            try {
+                ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                    @Override
+                    public boolean block() throws InterruptedException {
+                        inFlight.acquire();
+                        return true;
+                    }
+
+                    @Override
+                    public boolean isReleasable() {
+                        return inFlight.tryAcquire();
+                    }
+                });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure.compareAndSet(null, e);
+                return;
+            }
+            writeRow(row, cy, data);
+        }
+    }
+
+    // One batch per row: the chunks plus the advanced checkpoint
+    private void writeRow(int row, int cy, byte[][] data) {
+        ChunkStore.Batch batch = new ChunkStore.Batch(Metrics.DB_CHUNK_INSERT).fillOnWriter(b -> {
+            for (int i = 0; i < data.length; i++) {
+                b.putIfAbsent(x0 + i, cy, data[i]);
+            }
+            // Writer thread: rows commit in this order, so the checkpoint can be worked out here
+            committed[row] = true;
+            int next = nextRow;
+            while (next < rows && committed[next]) {
+                next++;
+            }
+            if (next != nextRow) {
+                b.metadata(CHECKPOINT_KEY, String.valueOf(next));
+                nextRow = next;
+            }
+        });
+        store.write(batch).whenComplete((ignored, e) -> {
+            if (e == null) {
+                chunksWritten.addAndGet(data.length);
+                Metrics.genChunksDone.addAndGet(data.length);
+            } else {
+                failure.compareAndSet(null, e); // Stops the run; the checkpoint in the DB is still valid
+            }
+            inFlight.release();
+        });
+    }
+}
@@ -0,0 +1,211 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Offline tool: rebuilds a world from a chain of {@link WorldSnapshots} files,
+ * one full snapshot followed by incrementals, each starting at the watermark
+ * the one before it ended at.
+ *
+ * {@code java -cp "build:lib/*" Server.WorldSnapshotRestore <target.db> <snapshot|dir>...}
+ *
+ * Given a directory, the newest full snapshot in it and the incrementals
+ * chained on it are used. The target must not hold chunks yet (restore into a
+ * new file, then swap it in with the server stopped); its chunk store is chosen
+ * by -Dtyls.chunkStore / -Dtyls.regionDir as for a new world.
+ *
+ * Clients may still hold chunk versions from the lost run, which went on after
+ * the last snapshot. So every restored chunk gets one fresh version, and the
+ * version counter restarts {@link #VERSION_GAP} above everything the snapshots
+ * had reserved (and whatever the target recorded), which makes clients fetch
+ * restored chunks whole rather than trust an old copy.
+ */
+public final class WorldSnapshotRestore {
+    static final long VERSION_GAP = 1L << 40; // Edits the lost run may have made after the last snapshot
+    private static final int BATCH_SIZE = 1024; // Chunks per write batch
+
+    private WorldSnapshotRestore() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: WorldSnapshotRestore <target.db> <snapshot file|directory>...");
+            System.exit(2);
+        }
+        List<Path> chain;
+        try {
+            chain = chain(args);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        Database db = new Database("jdbc:sqlite:" + args[0], 2);
+        int status = 0;
+        try {
+            Main.createSchema(db);
+            String kind = System.getProperty("tyls.chunkStore", "sqlite");
+            ChunkStore store = "region".equals(kind)
+                    ? new RegionChunkStore(Paths.get(System.getProperty("tyls.regionDir", "regions")), db,
+                            TerrainGenerator.TILES_PER_CHUNK)
+                    : new SqliteChunkStore(db, TerrainGenerator.TILES_PER_CHUNK);
+            try {
+                long[] restored = restore(db, store, "region".equals(kind) ? "region" : "sqlite", chain);
+                System.out.println("Applied " + restored[0] + " chunk writes and " + restored[1] + " deletes from "
+                        + chain.size() + " snapshots in " + (System.currentTimeMillis() - startTime)
+                        + " ms; chunk versions restart at " + restored[2]);
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                status = 1;
+            } finally {
+                store.close();
+            }
+        } finally {
+            db.close();
+            if (status != 0) {
+                System.exit(status);
+            }
+        }
+    }
+
+    /**
+     * Applies chain (full snapshot first) to an empty store. Returns {chunk writes,
+     * deletes, first version handed out after the restore}.
+     */
+    static long[] restore(Database db, ChunkStore store, String storeKind, List<Path> chain)
+            throws IOException, SQLException {
+        if (!store.isEmpty()) {
+            throw new IOException("The target already holds chunks; restore into a new world file");
+        }
+        long reserved = Math.max(0, readReserved(db));
+        for (Path file : chain) {
+            reserved = Math.max(reserved, WorldSnapshots.header(file).reserved);
+        }
+        long version = reserved + VERSION_GAP;
+
+        long[] restored = { 0, 0 }; // chunks, deleted
+        Map<String, String> metadata = new LinkedHashMap<>();
+        ChunkStore.Batch[] batch = { new ChunkStore.Batch(Metrics.DB_CHUNK_INSERT) };
+        Set<Long> inBatch = new HashSet<>();
+        for (Path file : chain) {
+            WorldSnapshots.read(file, new WorldSnapshots.Visitor() {
+                @Override
+                public void metadata(String key, String value) {
+                    metadata.put(key, value);
+                }
+
+                @Override
+                public void chunk(int cx, int cy, byte[] encoded) throws IOException {
+                    // A chunk a later snapshot of the chain writes again starts a new batch
+                    if (batch[0].size() >= BATCH_SIZE || !inBatch.add(ChunkCache.key(cx, cy))) {
+                        store.writeSync(batch[0]);
+                        batch[0] = new ChunkStore.Batch(Metrics.DB_CHUNK_INSERT);
+                        inBatch.clear();
+                        inBatch.add(ChunkCache.key(cx, cy));
+                    }
+                    if (encoded == null) {
+                        batch[0].delete(cx, cy);
+                        restored[1]++;
+                    } else {
+                        batch[0].put(cx, cy, encoded);
+                        restored[0]++;
+                    }
+                    batch[0].version(cx, cy, version);
+                }
+            });
+            System.out.println("  applied " + file.getFileName());
+        }
+        ChunkStore.Batch last = batch[0];
+        for (Map.Entry<String, String> m : metadata.entrySet()) {
+            if (!WorldSnapshots.LOCAL_KEYS.contains(m.getKey())) {
+                last.metadata(m.getKey(), m.getValue());
+            }
+        }
+        store.writeSync(last.metadata("chunk_store", storeKind)
+                .metadata("chunk_format", String.valueOf(ChunkCodec.VERSION))
+                .metadata(ChunkVersions.RESERVED_KEY, String.valueOf(version + 1)));
+        return new long[] { restored[0], restored[1], version + 1 };
+    }
+
+    // The snapshot files to apply, in order; a directory stands for its newest full chain
+    private static List<Path> chain(String[] args) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            Path p = Paths.get(args[i]);
+            if (Files.isDirectory(p)) {
+                files.addAll(newestChain(p));
+            } else {
+                files.add(p);
+            }
+        }
+        WorldSnapshots.Header previous = null;
+        for (Path file : files) {
+            WorldSnapshots.Header h = WorldSnapshots.header(file);
+            if (previous == null && h.kind != WorldSnapshots.FULL) {
+                throw new IOException(file + " is incremental; the chain must start with a full snapshot");
+            }
+            if (previous != null && h.kind == WorldSnapshots.INCREMENTAL && h.since != previous.watermark) {
+                throw new IOException(file + " starts at version " + (h.since + 1) + " but the snapshot before it ends at "
+                        + previous.watermark);
+            }
+            previous = h;
+        }
+        return files;
+    }
+
+    private static List<Path> newestChain(Path dir) throws IOException {
+        List<Path> all = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.snap")) {
+            files.forEach(all::add);
+        }
+        Map<Path, WorldSnapshots.Header> headers = new LinkedHashMap<>();
+        for (Path file : all) {
+            headers.put(file, WorldSnapshots.header(file));
+        }
+        all.sort(Comparator.comparingLong((Path f) -> headers.get(f).time));
+        int start = -1;
+        for (int i = 0; i < all.size(); i++) {
+            if (headers.get(all.get(i)).kind == WorldSnapshots.FULL) {
+                start = i;
+            }
+        }
+        if (start == -1) {
+            throw new IOException("No full snapshot in " + dir);
+        }
+        List<Path> chain = new ArrayList<>();
+        chain.add(all.get(start));
+        for (int i = start + 1; i < all.size(); i++) {
+            WorldSnapshots.Header h = headers.get(all.get(i));
+            if (h.kind == WorldSnapshots.INCREMENTAL && h.since == headers.get(chain.get(chain.size() - 1)).watermark) {
+                chain.add(all.get(i));
+            }
+        }
+        return chain;
+    }
+
+    private static long readReserved(Database db) throws SQLException {
+        return db.read(c -> {
+            PreparedStatement pstmt = c.prepare("SELECT value FROM metadata WHERE key = ?");
+            pstmt.setString(1, ChunkVersions.RESERVED_KEY);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? Long.parseLong(rs.getString(1)) : 0L;
+            }
+        });
+    }
+}
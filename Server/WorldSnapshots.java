@@ -0,0 +1,479 @@
+package Server;
+
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Online world snapshots: full or incremental copies of the stored chunks and
+ * the metadata, written to a compact file while the game keeps running.
+ * {@link WorldSnapshotRestore} turns a chain of them back into a world.
+ *
+ * A snapshot runs on its own thread and only reads: chunks through the chunk
+ * store's read path (the SQLite reader pool or the region files), never the
+ * database writer, so edits and saves go on meanwhile. It covers the world up
+ * to a version watermark, {@link ChunkVersions#persistedThrough}: an
+ * incremental snapshot holds every chunk whose chunk_versions row is above the
+ * previous snapshot's watermark (a chunk deleted back to generated terrain as a
+ * delete mark), a full one every stored chunk. Chunks are read after the
+ * watermark, so each is at least as new as it; an edit committing during the
+ * run may be only partly included and is taken again by the next snapshot.
+ * Chunks stored as generated terrain carry no version and are only in full
+ * snapshots; generation is deterministic, so they come back either way.
+ *
+ * Triggered every tyls.snapshotIntervalSec seconds from the tick (0: off), or
+ * by POST /admin/snapshot[?full=1] from loopback. Every tyls.snapshotFullEvery
+ * incrementals the next one is full. The last watermark is kept in metadata,
+ * so the chain continues across restarts.
+ *
+ * File (gzip): magic "TYLSSNAP", u8 format, u8 kind (0 full, 1 incremental),
+ * i64 since (-1 for full), i64 watermark, i64 reserved versions, i64 time (ms),
+ * then records: 'M' utf key, utf value | 'C' i32 cx, i32 cy, u16 n, n bytes
+ * (ChunkCodec) | 'D' i32 cx, i32 cy (generated terrain) | 'E' i64 chunks.
+ * It is written to a .tmp file and renamed once complete.
+ */
+public class WorldSnapshots {
+    static final byte[] MAGIC = "TYLSSNAP".getBytes(StandardCharsets.US_ASCII);
+    static final int FORMAT = 1;
+    static final int FULL = 0;
+    static final int INCREMENTAL = 1;
+    static final String WATERMARK_KEY = "snapshot_watermark";
+    static final String INCREMENTALS_KEY = "snapshot_incrementals";
+    // Metadata that belongs to one copy of the world, not to its contents
+    static final Set<String> LOCAL_KEYS = Set.of("chunk_store", "chunk_format", ChunkVersions.RESERVED_KEY,
+            WATERMARK_KEY, INCREMENTALS_KEY);
+
+    private static final int PAGE_SIZE = 1024; // Changed chunks looked up and read per step
+
+    /** What one snapshot wrote; file is null if an incremental one had nothing to write. */
+    public static final class Report {
+        public final Path file;
+        public final int kind;
+        public final long since;
+        public final long watermark;
+        public final long chunks;
+        public final long deleted;
+        public final long bytes;
+        public final long millis;
+
+        Report(Path file, int kind, long since, long watermark, long chunks, long deleted, long bytes, long millis) {
+            this.file = file;
+            this.kind = kind;
+            this.since = since;
+            this.watermark = watermark;
+            this.chunks = chunks;
+            this.deleted = deleted;
+            this.bytes = bytes;
+            this.millis = millis;
+        }
+
+        public String toJson() {
+            return "{\"file\":" + (file == null ? "null" : "\"" + file.getFileName() + "\"") + ",\"kind\":\""
+                    + (kind == FULL ? "full" : "incremental")
+                    + "\",\"since\":" + since + ",\"watermark\":" + watermark + ",\"chunks\":" + chunks
+                    + ",\"deleted\":" + deleted + ",\"bytes\":" + bytes + ",\"ms\":" + millis + "}";
+        }
+
+        @Override
+        public String toString() {
+            if (file == null) {
+                return "Nothing to snapshot: no chunk changed after version " + since;
+            }
+            return (kind == FULL ? "Full" : "Incremental") + " snapshot " + file.getFileName() + ": " + chunks
+                    + " chunks, " + deleted + " deleted, " + bytes / 1024 + " KB in " + millis + " ms (versions "
+                    + (since + 1) + ".." + watermark + ")";
+        }
+    }
+
+    private final Database db;
+    private final ChunkStore store;
+    private final ChunkVersions versions;
+    private final Path dir;
+    private final long intervalNanos;
+    private final int fullEvery;
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "snapshot");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    private CompletableFuture<Report> running; // Under this monitor
+    private long nextDueNanos; // Tick thread only
+
+    // Chain state (snapshot thread, read back from metadata on first use)
+    private long watermark = -1; // -1: no snapshot yet, next one is full
+    private int incrementals = 0;
+    private boolean loaded = false;
+
+    // Counters
+    private long taken = 0;
+    private long failures = 0;
+    private Report last;
+
+    public WorldSnapshots(Database db, ChunkStore store, ChunkVersions versions, Path dir, long intervalSec,
+            int fullEvery) {
+        this.db = db;
+        this.store = store;
+        this.versions = versions;
+        this.dir = dir;
+        this.intervalNanos = intervalSec * 1_000_000_000L;
+        this.fullEvery = fullEvery;
+        this.nextDueNanos = System.nanoTime() + intervalNanos;
+    }
+
+    /** Tick phase: starts a snapshot when one is due (never waits for it). */
+    public void tick() {
+        if (intervalNanos <= 0 || System.nanoTime() - nextDueNanos < 0) {
+            return;
+        }
+        nextDueNanos = System.nanoTime() + intervalNanos;
+        start(false);
+    }
+
+    /** Starts a snapshot, or returns null if one is still running. */
+    public synchronized CompletableFuture<Report> start(boolean full) {
+        if (running != null && !running.isDone()) {
+            return null;
+        }
+        running = CompletableFuture.supplyAsync(() -> {
+            try {
+                Report r = take(full);
+                if (r.file != null) {
+                    System.out.println(r);
+                    synchronized (this) {
+                        taken++;
+                        last = r;
+                    }
+                }
+                return r;
+            } catch (IOException | SQLException e) {
+                synchronized (this) {
+                    failures++;
+                }
+                System.err.println("Snapshot failed: " + e.getMessage());
+                throw new IllegalStateException(e);
+            }
+        }, worker);
+        return running;
+    }
+
+    // Snapshot thread
+    private Report take(boolean forceFull) throws IOException, SQLException {
+        long startTime = System.nanoTime();
+        if (!loaded) {
+            String w = readMetadata(WATERMARK_KEY);
+            String n = readMetadata(INCREMENTALS_KEY);
+            watermark = w != null ? Long.parseLong(w) : -1;
+            incrementals = n != null ? Integer.parseInt(n) : 0;
+            loaded = true;
+        }
+        boolean full = forceFull || watermark < 0 || incrementals >= fullEvery;
+        long since = full ? -1 : watermark;
+        long upTo = versions.persistedThrough(); // Before any chunk is read
+        long reserved = versions.reservedUpTo();
+        if (!full && upTo == since) {
+            return new Report(null, INCREMENTAL, since, upTo, 0, 0, 0, (System.nanoTime() - startTime) / 1_000_000);
+        }
+
+        Files.createDirectories(dir);
+        String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date());
+        Path file = dir.resolve("world-" + stamp + (full ? "-full-" : "-incr-" + (since + 1) + "-") + upTo + ".snap");
+        Path tmp = dir.resolve(file.getFileName() + ".tmp");
+        long[] counts = new long[2]; // chunks, deleted
+        try (FileOutputStream fos = new FileOutputStream(tmp.toFile());
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(new GZIPOutputStream(fos, 64 * 1024), 64 * 1024))) {
+            out.write(MAGIC);
+            out.writeByte(FORMAT);
+            out.writeByte(full ? FULL : INCREMENTAL);
+            out.writeLong(since);
+            out.writeLong(upTo);
+            out.writeLong(reserved);
+            out.writeLong(System.currentTimeMillis());
+            for (Map.Entry<String, String> m : readAllMetadata().entrySet()) {
+                out.writeByte('M');
+                out.writeUTF(m.getKey());
+                out.writeUTF(m.getValue());
+            }
+            if (full) {
+                store.forEach((cx, cy, encoded) -> {
+                    writeChunk(out, cx, cy, encoded);
+                    counts[0]++;
+                });
+            } else {
+                writeChanged(out, since, counts);
+            }
+            out.writeByte('E');
+            out.writeLong(counts[0] + counts[1]);
+            out.flush();
+            fos.getChannel().force(true);
+        } catch (IOException | SQLException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+
+        watermark = upTo;
+        incrementals = full ? 0 : incrementals + 1;
+        db.write(c -> {
+            Map<String, String> chain = new LinkedHashMap<>();
+            chain.put(WATERMARK_KEY, String.valueOf(watermark));
+            chain.put(INCREMENTALS_KEY, String.valueOf(incrementals));
+            SqliteChunkStore.writeMetadata(c, chain);
+            return null;
+        });
+        return new Report(file, full ? FULL : INCREMENTAL, since, upTo, counts[0], counts[1], Files.size(file),
+                (System.nanoTime() - startTime) / 1_000_000);
+    }
+
+    // Chunks whose version is above since: one page of chunk_versions ids (by id, a
+    // short read each), then one bulk store read for the page
+    private void writeChanged(DataOutputStream out, long since, long[] counts) throws IOException, SQLException {
+        long[] keys = new long[PAGE_SIZE];
+        byte[][] tiles = new byte[PAGE_SIZE][];
+        long after = Long.MIN_VALUE;
+        while (true) {
+            final long from = after;
+            int n = db.read(c -> {
+                PreparedStatement pstmt = c.prepare(
+                        "SELECT id FROM chunk_versions WHERE id > ? AND version > ? ORDER BY id LIMIT " + PAGE_SIZE);
+                pstmt.setLong(1, from);
+                pstmt.setLong(2, since);
+                int rows = 0;
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        keys[rows++] = rs.getLong(1);
+                    }
+                }
+                return rows;
+            });
+            if (n == 0) {
+                return;
+            }
+            after = keys[n - 1];
+            Arrays.fill(tiles, null);
+            store.read(keys, n, tiles);
+            for (int i = 0; i < n; i++) {
+                int cx = (int) (keys[i] >> 32);
+                int cy = (int) keys[i];
+                if (tiles[i] == null) {
+                    out.writeByte('D');
+                    out.writeInt(cx);
+                    out.writeInt(cy);
+                    counts[1]++;
+                } else {
+                    writeChunk(out, cx, cy, ChunkCodec.encode(tiles[i]));
+                    counts[0]++;
+                }
+            }
+        }
+    }
+
+    private static void writeChunk(DataOutputStream out, int cx, int cy, byte[] encoded) throws IOException {
+        out.writeByte('C');
+        out.writeInt(cx);
+        out.writeInt(cy);
+        out.writeShort(encoded.length);
+        out.write(encoded);
+    }
+
+    private Map<String, String> readAllMetadata() throws SQLException {
+        return db.read(c -> {
+            Map<String, String> rows = new LinkedHashMap<>();
+            try (ResultSet rs = c.prepare("SELECT key, value FROM metadata").executeQuery()) {
+                while (rs.next()) {
+                    if (!LOCAL_KEYS.contains(rs.getString(1)) && rs.getString(2) != null) {
+                        rows.put(rs.getString(1), rs.getString(2));
+                    }
+                }
+            }
+            return rows;
+        });
+    }
+
+    private String readMetadata(String key) throws SQLException {
+        return db.read(c -> {
+            PreparedStatement pstmt = c.prepare("SELECT value FROM metadata WHERE key = ?");
+            pstmt.setString(1, key);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? rs.getString(1) : null;
+            }
+        });
+    }
+
+    // --- Admin route ---
+
+    /** POST /admin/snapshot[?full=1], loopback only: takes a snapshot and answers with its report. */
+    public HttpHandler handler() {
+        return exchange -> {
+            int status;
+            String body;
+            if (!exchange.getRemoteAddress().getAddress().isLoopbackAddress()) {
+                status = 403;
+                body = "{\"error\":\"loopback only\"}";
+            } else if (!"POST".equals(exchange.getRequestMethod())) {
+                status = 405;
+                body = "{\"error\":\"POST to take a snapshot\"}";
+            } else {
+                String query = exchange.getRequestURI().getQuery();
+                CompletableFuture<Report> snapshot = start(query != null && query.contains("full=1"));
+                if (snapshot == null) {
+                    status = 409;
+                    body = "{\"error\":\"a snapshot is already running\"}";
+                } else {
+                    try {
+                        status = 200;
+                        body = snapshot.join().toJson();
+                    } catch (RuntimeException e) {
+                        status = 500;
+                        body = "{\"error\":\"snapshot failed, see the server log\"}";
+                    }
+                }
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(bytes);
+            }
+        };
+    }
+
+    // --- Reading ---
+
+    /** Header of a snapshot file. */
+    public static final class Header {
+        public final int kind;
+        public final long since;
+        public final long watermark;
+        public final long reserved;
+        public final long time;
+
+        Header(int kind, long since, long watermark, long reserved, long time) {
+            this.kind = kind;
+            this.since = since;
+            this.watermark = watermark;
+            this.reserved = reserved;
+            this.time = time;
+        }
+    }
+
+    /** Receives a snapshot's records in file order; encoded is null for a delete mark. */
+    public interface Visitor {
+        void metadata(String key, String value) throws IOException;
+
+        void chunk(int cx, int cy, byte[] encoded) throws IOException;
+    }
+
+    /** Opens a snapshot file positioned after its header. */
+    static DataInputStream open(Path file) throws IOException {
+        InputStream in = new GZIPInputStream(Files.newInputStream(file), 64 * 1024);
+        return new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+    }
+
+    static Header readHeader(DataInputStream in, Path file) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException(file + " is not a world snapshot");
+        }
+        int format = in.readUnsignedByte();
+        if (format != FORMAT) {
+            throw new IOException(file + ": unsupported snapshot format " + format);
+        }
+        return new Header(in.readUnsignedByte(), in.readLong(), in.readLong(), in.readLong(), in.readLong());
+    }
+
+    /** Reads a snapshot's header only. */
+    public static Header header(Path file) throws IOException {
+        try (DataInputStream in = open(file)) {
+            return readHeader(in, file);
+        }
+    }
+
+    /** Reads a whole snapshot; fails if it is truncated or corrupt (gzip CRC, record count). */
+    public static Header read(Path file, Visitor visitor) throws IOException {
+        try (DataInputStream in = open(file)) {
+            Header header = readHeader(in, file);
+            long records = 0;
+            while (true) {
+                int tag;
+                try {
+                    tag = in.readUnsignedByte();
+                } catch (EOFException e) {
+                    throw new IOException(file + " is truncated");
+                }
+                if (tag == 'M') {
+                    visitor.metadata(in.readUTF(), in.readUTF());
+                } else if (tag == 'C') {
+                    int cx = in.readInt();
+                    int cy = in.readInt();
+                    byte[] encoded = new byte[in.readUnsignedShort()];
+                    in.readFully(encoded);
+                    visitor.chunk(cx, cy, encoded);
+                    records++;
+                } else if (tag == 'D') {
+                    visitor.chunk(in.readInt(), in.readInt(), null);
+                    records++;
+                } else if (tag == 'E') {
+                    if (in.readLong() != records) {
+                        throw new IOException(file + ": record count mismatch");
+                    }
+                    in.transferTo(OutputStream.nullOutputStream()); // Lets gzip check its trailer
+                    return header;
+                } else {
+                    throw new IOException(file + ": bad record tag " + tag);
+                }
+            }
+        }
+    }
+
+    // --- Counters ---
+
+    public synchronized long getTaken() {
+        return taken;
+    }
+
+    public synchronized long getFailures() {
+        return failures;
+    }
+
+    public synchronized long getLastMillis() {
+        return last == null ? 0 : last.millis;
+    }
+
+    public synchronized long getLastBytes() {
+        return last == null ? 0 : last.bytes;
+    }
+
+    public synchronized long getLastChunks() {
+        return last == null ? 0 : last.chunks + last.deleted;
+    }
+}
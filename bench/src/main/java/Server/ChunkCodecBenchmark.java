@@ -0,0 +1,51 @@
+package Server;
+
+import org.openjdk.jmh.annotations.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chunk encodings: the text form JSON clients receive (toText, formerly
+ * chunkToString) and save, and the binary form stored in the database.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ChunkCodecBenchmark {
+    /** terrain: mixed generated terrain; uniform: a single-block chunk (spawn area). */
+    @Param({ "terrain", "uniform" })
+    public String chunk;
+
+    private byte[] tiles;
+    private byte[] encoded;
+    private String text;
+
+    @Setup
+    public void setup() {
+        tiles = "uniform".equals(chunk) ? Main.generateTiles(0, 0) : Main.generateTiles(137, -42);
+        encoded = ChunkCodec.encode(tiles);
+        text = ChunkCodec.toText(tiles);
+    }
+
+    @Benchmark
+    public String toText() {
+        return ChunkCodec.toText(tiles);
+    }
+
+    @Benchmark
+    public byte[] parseText() {
+        return ChunkCodec.parseText(text, tiles.length);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return ChunkCodec.encode(tiles);
+    }
+
+    @Benchmark
+    public byte[] decode() {
+        return ChunkCodec.decode(encoded, tiles.length);
+    }
+}
@@ -0,0 +1,87 @@
+package Server;
+
+import org.java_websocket.WebSocket;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A chunk request end to end: the socket handler parses the request, fetches
+ * the chunk (cache, else the temporary SQLite world) and encodes the reply,
+ * which a stub connection hands to the blackhole.
+ *
+ * Requests walk a 32 x 32 chunk area that fits the default cache, so this
+ * measures the cached path; {@link ChunkRequestColdBenchmark} shrinks the cache
+ * so every request reads the database.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ChunkRequestBenchmark {
+    private static final int AREA_CHUNKS = 32;
+
+    private TempWorld world;
+    private Main.GameWebSocketServer server;
+    private WebSocket jsonConn;
+    private WebSocket binaryConn;
+    private Blackhole sink;
+    private int i = 0;
+
+    @Setup(Level.Trial)
+    public void setup(Blackhole bh) throws IOException, SQLException {
+        world = TempWorld.open(0, 0, AREA_CHUNKS);
+        server = new Main.GameWebSocketServer(0); // Never started
+        sink = bh;
+        jsonConn = stubConnection(new Session(false, 32));
+        binaryConn = stubConnection(new Session(true, 32));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        world.close();
+    }
+
+    @Benchmark
+    public void binary() {
+        i++;
+        ByteBuffer frame = ByteBuffer.allocate(9);
+        frame.put(Protocol.GET_CHUNK).putInt(i % AREA_CHUNKS).putInt(i / AREA_CHUNKS % AREA_CHUNKS).flip();
+        server.onMessage(binaryConn, frame);
+    }
+
+    @Benchmark
+    public void json() {
+        i++;
+        server.onMessage(jsonConn, "{\"type\":\"getChunk\",\"key\":\"" + i % AREA_CHUNKS + ","
+                + i / AREA_CHUNKS % AREA_CHUNKS + "\"}");
+    }
+
+    // Only what the request path touches: the attachment, isOpen and send
+    private WebSocket stubConnection(Session session) {
+        return (WebSocket) Proxy.newProxyInstance(WebSocket.class.getClassLoader(), new Class<?>[] { WebSocket.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getAttachment":
+                            return session;
+                        case "isOpen":
+                            return true;
+                        case "send":
+                            sink.consume(args[0]);
+                            return null;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
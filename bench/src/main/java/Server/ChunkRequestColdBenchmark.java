@@ -0,0 +1,8 @@
+package Server;
+
+import org.openjdk.jmh.annotations.Fork;
+
+/** {@link ChunkRequestBenchmark} with the smallest chunk cache: every request is a SQLite read. */
+@Fork(value = 1, jvmArgsAppend = "-Dtyls.chunkCacheMb=0")
+public class ChunkRequestColdBenchmark extends ChunkRequestBenchmark {
+}
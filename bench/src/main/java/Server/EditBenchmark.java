@@ -0,0 +1,43 @@
+package Server;
+
+import org.openjdk.jmh.annotations.*;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The setBlock read-modify-write as the tick applies it: cached chunk lookup,
+ * tile write, edit buffer mark and the (watcher-less) block broadcast.
+ * Edits land in a 32 x 32 chunk area stored in a temporary database.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EditBenchmark {
+    private static final int AREA_CHUNKS = 32;
+    private static final int AREA_TILES = AREA_CHUNKS * 16;
+
+    private TempWorld world;
+    private int i = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, SQLException {
+        world = TempWorld.open(0, 0, AREA_CHUNKS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        world.close();
+    }
+
+    @Benchmark
+    public void setBlock() {
+        // Stride through the area so consecutive edits usually hit different chunks; kept
+        // non-negative, since a wrapped index would edit generated chunks outside the area
+        i = (i + 7919) & Integer.MAX_VALUE;
+        Main.setBlock(i % AREA_TILES, (i / AREA_TILES) % AREA_TILES, i & 3);
+    }
+}
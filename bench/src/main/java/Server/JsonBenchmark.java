@@ -0,0 +1,100 @@
+package Server;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON message parsing as the socket handlers do it (this replaced the
+ * extractJsonString helpers): type dispatch plus the fields each handler reads,
+ * on messages shaped like the ones the web client sends.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JsonBenchmark {
+    private static final String[] TYPES = { "pos", "ack", "getChunk", "getChunks", "setBlock", "save" };
+
+    private final String pos = "{\"type\":\"pos\",\"id\":\"p_4fz81k\",\"x\":1234.5625,\"y\":-987.25}";
+    private final String setBlock = "{\"type\":\"setBlock\",\"x\":1543,\"y\":-220,\"val\":2}";
+    private final String getChunks = "{\"type\":\"getChunks\",\"x0\":-5,\"y0\":-5,\"x1\":5,\"y1\":5}";
+    private String save; // 64 chunks in text form plus the player position
+
+    private final JsonReader msg = new JsonReader();
+    private final JsonReader walker = new JsonReader();
+    private final JsonReader entry = new JsonReader();
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder("{\"type\":\"save\",\"player\":{\"x\":1234.5,\"y\":-987.25},\"chunks\":[");
+        for (int i = 0; i < 64; i++) {
+            int cx = 100 + (i & 7);
+            int cy = 100 + (i >> 3);
+            sb.append(i == 0 ? "" : ",").append("{\"key\":\"").append(cx).append(',').append(cy)
+                    .append("\",\"data\":\"").append(ChunkCodec.toText(Main.generateTiles(cx, cy))).append("\"}");
+        }
+        save = sb.append("]}").toString();
+    }
+
+    @Benchmark
+    public void pos(Blackhole bh) {
+        dispatch(pos);
+        bh.consume(msg.getFloat("x", Float.NaN));
+        bh.consume(msg.getFloat("y", Float.NaN));
+    }
+
+    @Benchmark
+    public void setBlock(Blackhole bh) {
+        dispatch(setBlock);
+        bh.consume(msg.getInt("x", 0));
+        bh.consume(msg.getInt("y", 0));
+        bh.consume(msg.getInt("val", 0));
+    }
+
+    @Benchmark
+    public void getChunks(Blackhole bh) {
+        dispatch(getChunks);
+        bh.consume(msg.has("r"));
+        bh.consume(msg.getInt("x0", 0));
+        bh.consume(msg.getInt("y0", 0));
+        bh.consume(msg.getInt("x1", -1));
+        bh.consume(msg.getInt("y1", -1));
+    }
+
+    // The chunk walk of saveDataInternal, without the database
+    @Benchmark
+    public void save(Blackhole bh) {
+        dispatch(save);
+        int chunks = msg.find("chunks");
+        walker.walk(save, msg.valueStart(chunks) + 1, msg.valueEnd(chunks) - 1);
+        for (int kind = walker.next(); kind != JsonReader.END; kind = walker.next()) {
+            if (kind != JsonReader.OBJECT) {
+                continue;
+            }
+            int start = walker.start();
+            if (!walker.skipNested() || !entry.reset(save, start, walker.end())) {
+                break;
+            }
+            int key = entry.find("key");
+            int data = entry.find("data");
+            int comma = save.indexOf(',', entry.valueStart(key));
+            bh.consume(JsonReader.parseInt(save, entry.valueStart(key), comma, Integer.MIN_VALUE));
+            bh.consume(JsonReader.parseInt(save, comma + 1, entry.valueEnd(key), Integer.MIN_VALUE));
+            bh.consume(ChunkCodec.parseText(save, entry.valueStart(data), entry.valueEnd(data), 256));
+        }
+    }
+
+    private int dispatch(String message) {
+        msg.reset(message);
+        int type = msg.find("type");
+        for (int i = 0; i < TYPES.length; i++) {
+            if (msg.valueEquals(type, TYPES[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
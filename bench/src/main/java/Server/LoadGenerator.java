@@ -0,0 +1,754 @@
+package Server;
+
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.handshake.ServerHandshake;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.stream.Stream;
+
+/**
+ * Headless load generator: N bot players on one server, reporting latency per
+ * message type, throughput and the server's CPU and heap, so runs can be
+ * compared between builds.
+ *
+ * Each bot behaves like the browser client: it walks (random heading,
+ * tyls.load.speed px/s) and sends pos tyls.load.posHz times a second, asks for
+ * the chunks within tyls.load.renderDistance with getChunks whenever it enters
+ * a new chunk (the new square minus the old one), acks position snapshots, and
+ * drag-builds lines of setBlock edits next to itself at tyls.load.buildPerSec
+ * tiles a second. Bots start spread over tyls.load.spread x spread chunks
+ * around the origin and stay there, so they see each other. Latencies:
+ *
+ * <pre>
+ * pos        pos sent -> that position in another bot's snapshot (per watcher)
+ * getChunks  request sent -> its last chunk received (requests cut short by a
+ *            newer view are counted as cancelled, not timed)
+ * setBlock   edit sent -> the bot's own block message for it
+ * </pre>
+ *
+ * Without tyls.load.url a server is started for the run (same classpath) on a
+ * fresh sparse world in a temporary directory, deleted afterwards; extra JVM
+ * options for it go in tyls.load.serverOpts. Server CPU, heap, GC and tick
+ * overruns come from its /metrics (tyls.load.metricsUrl for a remote server).
+ * The first tyls.load.warmupSec seconds are not measured. tyls.load.out names
+ * a file for the final report as JSON.
+ *
+ * {@code java -Dtyls.load.players=200 -cp target/bench/benchmarks.jar Server.LoadGenerator}
+ */
+public final class LoadGenerator {
+    // Settings
+    private static final int PLAYERS = Integer.getInteger("tyls.load.players", 50);
+    private static final int SECONDS = Integer.getInteger("tyls.load.seconds", 60);
+    private static final int WARMUP_SEC = Integer.getInteger("tyls.load.warmupSec", 10);
+    private static final int REPORT_SEC = Integer.getInteger("tyls.load.reportSec", 10);
+    private static final int RENDER_DISTANCE = Integer.getInteger("tyls.load.renderDistance", 8);
+    private static final int POS_HZ = Integer.getInteger("tyls.load.posHz", 20);
+    private static final double SPEED = Double.parseDouble(System.getProperty("tyls.load.speed", "300"));
+    private static final double BUILD_PER_SEC = Double.parseDouble(System.getProperty("tyls.load.buildPerSec", "4"));
+    private static final int SPREAD = Integer.getInteger("tyls.load.spread", 32);
+    private static final boolean BINARY = Boolean.getBoolean("tyls.load.binary");
+    private static final String URL = System.getProperty("tyls.load.url");
+    private static final String METRICS_URL = System.getProperty("tyls.load.metricsUrl");
+    private static final String SERVER_OPTS = System.getProperty("tyls.load.serverOpts", "");
+    private static final String OUT = System.getProperty("tyls.load.out");
+
+    private static final int TILE_PX = 16; // Client world units per tile
+    private static final int CHUNK_PX = TILE_PX * TerrainGenerator.CHUNK_SIZE;
+    private static final int SENT_POSITIONS = 64; // Recent pos sends a bot remembers for matching
+
+    // 50 us .. ~30 s in 5% steps: fine enough for percentiles to compare between runs
+    private static final long[] BOUNDS;
+    static {
+        List<Long> bounds = new ArrayList<>();
+        for (double b = 50_000; b < 30e9; b *= 1.05) {
+            bounds.add((long) b);
+        }
+        BOUNDS = bounds.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    private static final String[] TYPES = { "pos", "getChunks", "setBlock" };
+    private static final int POS = 0;
+    private static final int GET_CHUNKS = 1;
+    private static final int SET_BLOCK = 2;
+
+    /** Latencies and counts of one message type over the measured window. */
+    private static final class Stat {
+        final Histogram latency = new Histogram(BOUNDS);
+        final LongAccumulator max = new LongAccumulator(Math::max, 0);
+        final AtomicLong sent = new AtomicLong();
+
+        private long[] reported; // Bucket counts at the last interval line
+
+        void record(long nanos) {
+            if (measuring) {
+                latency.record(nanos);
+                max.accumulate(nanos);
+            }
+        }
+
+        // Over the whole run, at most the largest sample (bounds are bucket upper ends)
+        String quantile(double q) {
+            long bound = latency.quantileUpperBound(q);
+            return ms(bound < 0 ? bound : Math.min(bound, max.get()));
+        }
+
+        // Since the previous call (interval lines)
+        String interval(double q) {
+            long[] counts = latency.getBucketCounts();
+            long[] diff = counts.clone();
+            long total = 0;
+            for (int i = 0; i < diff.length; i++) {
+                diff[i] -= reported == null ? 0 : reported[i];
+                total += diff[i];
+            }
+            reported = counts;
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < diff.length && total > 0; i++) {
+                seen += diff[i];
+                if (seen >= rank && diff[i] > 0) {
+                    return ms(i < BOUNDS.length ? Math.min(BOUNDS[i], max.get()) : Long.MAX_VALUE);
+                }
+            }
+            return ms(-1);
+        }
+    }
+
+    private static final Stat[] stats = { new Stat(), new Stat(), new Stat() };
+    private static final AtomicLong framesIn = new AtomicLong();
+    private static final AtomicLong bytesIn = new AtomicLong();
+    private static final AtomicLong cancelled = new AtomicLong();
+    private static final AtomicLong disconnects = new AtomicLong();
+    private static final Map<Integer, Bot> botsById = new ConcurrentHashMap<>();
+    private static volatile boolean measuring = false;
+    private static volatile boolean stopping = false;
+    private static final com.sun.management.OperatingSystemMXBean ownCpu = ManagementFactory
+            .getPlatformMXBean(com.sun.management.OperatingSystemMXBean.class);
+
+    private LoadGenerator() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path tempDir = null;
+        Process server = null;
+        String wsUrl = URL;
+        String metricsUrl = METRICS_URL;
+        if (wsUrl == null) {
+            tempDir = Files.createTempDirectory("tyls-load");
+            int httpPort = freePort();
+            int wsPort = freePort();
+            server = startServer(tempDir, httpPort, wsPort);
+            wsUrl = "ws://localhost:" + wsPort;
+            metricsUrl = "http://localhost:" + httpPort + "/metrics";
+        }
+        if (BINARY) {
+            wsUrl += "/?proto=bin";
+        }
+
+        ScheduledExecutorService clock = Executors.newScheduledThreadPool(
+                Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+                    Thread t = new Thread(r, "bot-step");
+                    t.setDaemon(true);
+                    return t;
+                });
+        List<Bot> bots = new ArrayList<>();
+        try {
+            System.out.println("Connecting " + PLAYERS + " players to " + wsUrl + " (" + (BINARY ? "binary" : "JSON")
+                    + ", render distance " + RENDER_DISTANCE + ", " + BUILD_PER_SEC + " edits/s each)");
+            Random random = new Random(1);
+            for (int i = 0; i < PLAYERS; i++) {
+                Bot bot = new Bot(new URI(wsUrl), random.nextLong());
+                if (!bot.connectBlocking(10, TimeUnit.SECONDS) || !bot.hello.await(10, TimeUnit.SECONDS) || !bot.isOpen()) {
+                    throw new IOException("Player " + i + " could not connect");
+                }
+                bots.add(bot);
+                long periodMs = 1000 / POS_HZ;
+                clock.scheduleAtFixedRate(bot::step, random.nextInt((int) periodMs), periodMs, TimeUnit.MILLISECONDS);
+            }
+
+            Thread.sleep(WARMUP_SEC * 1000L);
+            Map<String, Double> before = scrape(metricsUrl);
+            long start = System.nanoTime();
+            measuring = true;
+            long ownCpuBefore = ownCpu.getProcessCpuTime();
+            long framesBefore = framesIn.get();
+            long bytesBefore = bytesIn.get();
+            long[] sentBefore = new long[TYPES.length];
+            for (int t = 0; t < TYPES.length; t++) {
+                sentBefore[t] = stats[t].sent.get();
+            }
+            double heapMax = 0;
+            for (int elapsed = 0; elapsed < SECONDS; elapsed += REPORT_SEC) {
+                Thread.sleep(Math.min(REPORT_SEC, SECONDS - elapsed) * 1000L);
+                Map<String, Double> now = scrape(metricsUrl);
+                heapMax = Math.max(heapMax, now.getOrDefault("tyls_jvm_heap_used_bytes", 0.0));
+                System.out.printf("  %3ds  p99 this interval: pos %s ms, getChunks %s ms, setBlock %s ms; server heap %.0f MB%n",
+                        Math.min(elapsed + REPORT_SEC, SECONDS), stats[POS].interval(0.99),
+                        stats[GET_CHUNKS].interval(0.99), stats[SET_BLOCK].interval(0.99),
+                        now.getOrDefault("tyls_jvm_heap_used_bytes", 0.0) / (1 << 20));
+            }
+            measuring = false;
+            double seconds = (System.nanoTime() - start) / 1e9;
+            double ownCpuMs = (ownCpu.getProcessCpuTime() - ownCpuBefore) / 1e6;
+            Map<String, Double> after = scrape(metricsUrl);
+            report(seconds, ownCpuMs, before, after, heapMax, framesIn.get() - framesBefore, bytesIn.get() - bytesBefore,
+                    sentBefore);
+        } finally {
+            stopping = true;
+            clock.shutdownNow();
+            for (Bot bot : bots) {
+                bot.close();
+            }
+            if (server != null) {
+                server.destroy(); // Shutdown hook flushes and closes the world
+                server.waitFor(30, TimeUnit.SECONDS);
+                deleteTree(tempDir);
+            }
+        }
+    }
+
+    // --- Report ---
+
+    private static void report(double seconds, double ownCpuMs, Map<String, Double> before, Map<String, Double> after, double heapMax,
+            long frames, long bytes, long[] sentBefore) throws IOException {
+        double cpuMs = delta(before, after, "tyls_process_cpu_milliseconds_total");
+        double gcMs = delta(before, after, "tyls_jvm_gc_milliseconds_total");
+        heapMax = Math.max(heapMax, after.getOrDefault("tyls_jvm_heap_used_bytes", 0.0));
+        StringBuilder json = new StringBuilder("{\"players\":" + PLAYERS + ",\"binary\":" + BINARY
+                + ",\"renderDistance\":" + RENDER_DISTANCE + ",\"seconds\":" + Math.round(seconds) + ",\"latency\":{");
+
+        System.out.println();
+        System.out.printf("%-10s %10s %10s %10s %10s %10s %10s%n", "type", "sent/s", "timed", "p50 ms", "p99 ms",
+                "p99.9 ms", "max ms");
+        for (int t = 0; t < TYPES.length; t++) {
+            Stat s = stats[t];
+            double rate = (s.sent.get() - sentBefore[t]) / seconds;
+            String p50 = s.quantile(0.50);
+            String p99 = s.quantile(0.99);
+            String p999 = s.quantile(0.999);
+            String max = ms(s.latency.getCount() == 0 ? -1 : s.max.get());
+            System.out.printf("%-10s %10.1f %10d %10s %10s %10s %10s%n", TYPES[t], rate, s.latency.getCount(), p50, p99,
+                    p999, max);
+            json.append(t == 0 ? "" : ",").append('"').append(TYPES[t]).append("\":{\"sentPerSec\":")
+                    .append(String.format("%.1f", rate)).append(",\"count\":").append(s.latency.getCount())
+                    .append(",\"p50\":").append(p50).append(",\"p99\":").append(p99).append(",\"p999\":").append(p999)
+                    .append(",\"max\":").append(max).append('}');
+        }
+        System.out.println("(percentiles are bucket upper bounds, 5% resolution)");
+        System.out.printf("Received %.0f frames/s, %.1f KB/s; %d getChunks cancelled by a newer view, %d disconnects%n",
+                frames / seconds, bytes / seconds / 1024, cancelled.get(), disconnects.get());
+        if (!after.isEmpty()) {
+            System.out.printf("Server: CPU %.2f cores, GC %.1f%%, heap %.0f MB now / %.0f MB peak sampled / %.0f MB max,"
+                    + " tick overruns %.0f, slow-client drops %.0f%n",
+                    cpuMs / 1000 / seconds, gcMs / 10 / seconds, after.getOrDefault("tyls_jvm_heap_used_bytes", 0.0) / (1 << 20),
+                    heapMax / (1 << 20), after.getOrDefault("tyls_jvm_heap_max_bytes", 0.0) / (1 << 20),
+                    delta(before, after, "tyls_tick_overruns_total"),
+                    delta(before, after, "tyls_send_slow_disconnects_total"));
+        }
+        // Bots on the same machine take CPU from the server: read the numbers with this in mind
+        System.out.printf("Load generator: CPU %.2f cores of %d%n", ownCpuMs / 1000 / seconds,
+                Runtime.getRuntime().availableProcessors());
+        json.append("},\"framesPerSec\":").append(Math.round(frames / seconds)).append(",\"bytesPerSec\":")
+                .append(Math.round(bytes / seconds)).append(",\"cancelled\":").append(cancelled.get())
+                .append(",\"disconnects\":").append(disconnects.get()).append(",\"serverCpuCores\":")
+                .append(String.format("%.3f", cpuMs / 1000 / seconds)).append(",\"serverGcPercent\":")
+                .append(String.format("%.2f", gcMs / 10 / seconds)).append(",\"serverHeapPeakBytes\":")
+                .append(Math.round(heapMax)).append(",\"loadCpuCores\":")
+                .append(String.format("%.3f", ownCpuMs / 1000 / seconds)).append(",\"tickOverruns\":")
+                .append(Math.round(delta(before, after, "tyls_tick_overruns_total"))).append('}');
+        if (OUT != null) {
+            try (PrintWriter w = new PrintWriter(Files.newBufferedWriter(Path.of(OUT)))) {
+                w.println(json);
+            }
+            System.out.println("Wrote " + OUT);
+        }
+    }
+
+    private static String ms(long nanos) {
+        return nanos < 0 ? "-" : nanos == Long.MAX_VALUE ? "inf" : String.format("%.2f", nanos / 1e6);
+    }
+
+    private static double delta(Map<String, Double> before, Map<String, Double> after, String name) {
+        return after.getOrDefault(name, 0.0) - before.getOrDefault(name, 0.0);
+    }
+
+    // Unlabelled samples of a Prometheus text page; empty if it cannot be read
+    private static Map<String, Double> scrape(String url) {
+        Map<String, Double> values = new HashMap<>();
+        if (url == null) {
+            return values;
+        }
+        try {
+            HttpResponse<Stream<String>> response = HttpClient.newHttpClient().send(
+                    HttpRequest.newBuilder(URI.create(url)).timeout(Duration.ofSeconds(5)).build(),
+                    HttpResponse.BodyHandlers.ofLines());
+            response.body().filter(line -> !line.startsWith("#") && line.indexOf('{') < 0).forEach(line -> {
+                int space = line.indexOf(' ');
+                if (space > 0) {
+                    try {
+                        values.put(line.substring(0, space), Double.parseDouble(line.substring(space + 1).trim()));
+                    } catch (NumberFormatException e) {
+                        // Not a plain sample
+                    }
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("Could not read " + url + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return values;
+    }
+
+    // --- Local server ---
+
+    private static Process startServer(Path dir, int httpPort, int wsPort) throws IOException, InterruptedException {
+        List<String> cmd = new ArrayList<>();
+        cmd.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        for (String opt : SERVER_OPTS.trim().split("\\s+")) {
+            if (!opt.isEmpty()) {
+                cmd.add(opt);
+            }
+        }
+        cmd.addAll(List.of("-Dtyls.httpPort=" + httpPort, "-Dtyls.wsPort=" + wsPort, "-Dtyls.storage=sparse",
+                "-cp", absoluteClassPath(), "Server.Main"));
+        Path log = dir.resolve("server.log");
+        Process p = new ProcessBuilder(cmd).directory(dir.toFile()).redirectErrorStream(true)
+                .redirectOutput(log.toFile()).start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (System.nanoTime() < deadline) {
+            if (!p.isAlive()) {
+                throw new IOException("Server exited; see " + log);
+            }
+            if (Files.readString(log).contains("Server Ready!")) {
+                System.out.println("Started a server on a temporary world in " + dir);
+                return p;
+            }
+            Thread.sleep(100);
+        }
+        p.destroy();
+        throw new IOException("Server did not start within 60 s; see " + log);
+    }
+
+    // Ours, with relative entries resolved: the server runs in the temporary directory
+    private static String absoluteClassPath() {
+        StringBuilder sb = new StringBuilder();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (sb.length() > 0) {
+                sb.append(File.pathSeparatorChar);
+            }
+            sb.append(entry.endsWith("*") ? Path.of(entry.substring(0, entry.length() - 1)).toAbsolutePath() + "/*"
+                    : Path.of(entry).toAbsolutePath().toString());
+        }
+        return sb.toString();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void deleteTree(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path f : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(f);
+            }
+        }
+    }
+
+    // --- Bot ---
+
+    /** One simulated player; steps on the shared clock, receives on its socket thread. */
+    private static final class Bot extends WebSocketClient {
+        final CountDownLatch hello = new CountDownLatch(1);
+        private final Random random;
+        private final JsonReader reader = new JsonReader(); // Socket thread
+        private volatile int id = -1;
+
+        // Clock thread (steps of one bot never overlap)
+        private double x;
+        private double y;
+        private double heading;
+        private long lastStep;
+        private double buildBudget = 0;
+        private int dragX;
+        private int dragY;
+        private int dragDx;
+        private int dragDy;
+        private int dragLeft = 0;
+        private int dragVal;
+        private int[] view; // Chunk rect of the last getChunks {x0, y0, x1, y1}
+
+        // Pending measurements (guarded by this)
+        private final long[] sentPositions = new long[SENT_POSITIONS]; // qx << 32 | qy
+        private final long[] sentPositionTimes = new long[SENT_POSITIONS];
+        private int sentPositionNext = 0;
+        private final Map<Long, Long> pendingEdits = new HashMap<>(); // tile (x << 32 | y) -> sent
+        private final List<long[]> pendingRequests = new ArrayList<>(); // {sent, chunk keys...}, open requests
+        private final List<Set<Long>> pendingKeys = new ArrayList<>();
+
+        // Snapshot state (socket thread)
+        private final Map<Integer, Map<Integer, Long>> snapshots = new HashMap<>(); // seq -> player -> qx << 32 | qy
+        private final Map<Integer, Long> lastSeen = new HashMap<>(); // player -> position already timed
+
+        Bot(URI uri, long seed) {
+            super(uri);
+            random = new Random(seed);
+            x = (random.nextDouble() - 0.5) * SPREAD * CHUNK_PX;
+            y = (random.nextDouble() - 0.5) * SPREAD * CHUNK_PX;
+            heading = random.nextDouble() * 2 * Math.PI;
+        }
+
+        // --- Sending (clock thread) ---
+
+        void step() {
+            if (stopping || !isOpen()) {
+                return;
+            }
+            long now = System.nanoTime();
+            double dt = lastStep == 0 ? 0 : (now - lastStep) / 1e9;
+            lastStep = now;
+
+            // Walk, turning back towards the middle when outside the spread square
+            double half = SPREAD * CHUNK_PX / 2.0;
+            if (Math.abs(x) > half || Math.abs(y) > half) {
+                heading = Math.atan2(-y, -x);
+            } else if (random.nextDouble() < 0.05) {
+                heading += (random.nextDouble() - 0.5) * Math.PI;
+            }
+            x += Math.cos(heading) * SPEED * dt;
+            y += Math.sin(heading) * SPEED * dt;
+            int px = (int) Math.round(x);
+            int py = (int) Math.round(y);
+            sendPos(px, py);
+
+            int cx = Math.floorDiv(px, CHUNK_PX);
+            int cy = Math.floorDiv(py, CHUNK_PX);
+            if (view == null || cx - RENDER_DISTANCE != view[0] || cy - RENDER_DISTANCE != view[1]) {
+                int[] next = { cx - RENDER_DISTANCE, cy - RENDER_DISTANCE, cx + RENDER_DISTANCE, cy + RENDER_DISTANCE };
+                sendGetChunks(next, view);
+                view = next;
+            }
+
+            buildBudget += BUILD_PER_SEC * dt;
+            while (buildBudget >= 1) {
+                buildBudget--;
+                build(Math.floorDiv(px, TILE_PX), Math.floorDiv(py, TILE_PX));
+            }
+        }
+
+        private void sendPos(int px, int py) {
+            synchronized (this) {
+                sentPositions[sentPositionNext] = (long) px * Protocol.POS_QUANT << 32
+                        | ((long) py * Protocol.POS_QUANT & 0xFFFFFFFFL);
+                sentPositionTimes[sentPositionNext] = System.nanoTime();
+                sentPositionNext = (sentPositionNext + 1) % SENT_POSITIONS;
+            }
+            if (BINARY) {
+                send(ByteBuffer.allocate(9).put(Protocol.POS).putFloat(px).putFloat(py).flip());
+            } else {
+                send("{\"type\":\"pos\",\"x\":" + px + ",\"y\":" + py + "}");
+            }
+            stats[POS].sent.incrementAndGet();
+        }
+
+        // The square minus the previous one, like the browser client
+        private void sendGetChunks(int[] rect, int[] previous) {
+            Set<Long> keys = new HashSet<>();
+            for (int cy = rect[1]; cy <= rect[3]; cy++) {
+                for (int cx = rect[0]; cx <= rect[2]; cx++) {
+                    if (previous == null || cx < previous[0] || cx > previous[2] || cy < previous[1] || cy > previous[3]) {
+                        keys.add(ChunkCache.key(cx, cy));
+                    }
+                }
+            }
+            synchronized (this) {
+                // Chunks that left the view are dropped by the server: those requests never complete
+                for (int i = pendingKeys.size() - 1; i >= 0; i--) {
+                    for (long k : pendingKeys.get(i)) {
+                        int kx = (int) (k >> 32);
+                        int ky = (int) k;
+                        if (kx < rect[0] || kx > rect[2] || ky < rect[1] || ky > rect[3]) {
+                            pendingKeys.remove(i);
+                            pendingRequests.remove(i);
+                            cancelled.incrementAndGet();
+                            break;
+                        }
+                    }
+                }
+                pendingRequests.add(new long[] { System.nanoTime() });
+                pendingKeys.add(keys);
+            }
+            if (BINARY) {
+                ByteBuffer buf = ByteBuffer.allocate(1 + (previous != null ? 32 : 16)).put(Protocol.GET_CHUNKS);
+                for (int v : rect) {
+                    buf.putInt(v);
+                }
+                if (previous != null) {
+                    for (int v : previous) {
+                        buf.putInt(v);
+                    }
+                }
+                send(buf.flip());
+            } else {
+                StringBuilder sb = new StringBuilder("{\"type\":\"getChunks\",\"x0\":").append(rect[0]).append(",\"y0\":")
+                        .append(rect[1]).append(",\"x1\":").append(rect[2]).append(",\"y1\":").append(rect[3]);
+                if (previous != null) {
+                    sb.append(",\"ex0\":").append(previous[0]).append(",\"ey0\":").append(previous[1]).append(",\"ex1\":")
+                            .append(previous[2]).append(",\"ey1\":").append(previous[3]);
+                }
+                send(sb.append('}').toString());
+            }
+            stats[GET_CHUNKS].sent.incrementAndGet();
+        }
+
+        // Next tile of the current drag: a straight line of 8..23 tiles starting near the player
+        private void build(int tx, int ty) {
+            if (dragLeft == 0) {
+                dragX = tx + random.nextInt(7) - 3;
+                dragY = ty + random.nextInt(7) - 3;
+                int dir = random.nextInt(4);
+                dragDx = dir == 0 ? 1 : dir == 1 ? -1 : 0;
+                dragDy = dir == 2 ? 1 : dir == 3 ? -1 : 0;
+                dragLeft = 8 + random.nextInt(16);
+                dragVal = random.nextInt(4);
+            }
+            int ex = dragX;
+            int ey = dragY;
+            dragX += dragDx;
+            dragY += dragDy;
+            dragLeft--;
+            synchronized (this) {
+                pendingEdits.put((long) ex << 32 | (ey & 0xFFFFFFFFL), System.nanoTime());
+            }
+            if (BINARY) {
+                send(ByteBuffer.allocate(10).put(Protocol.SET_BLOCK).putInt(ex).putInt(ey).put((byte) dragVal).flip());
+            } else {
+                send("{\"type\":\"setBlock\",\"x\":" + ex + ",\"y\":" + ey + ",\"val\":" + dragVal + "}");
+            }
+            stats[SET_BLOCK].sent.incrementAndGet();
+        }
+
+        // --- Receiving (socket thread) ---
+
+        @Override
+        public void onOpen(ServerHandshake handshake) {
+        }
+
+        @Override
+        public void onMessage(String message) {
+            long now = System.nanoTime();
+            framesIn.incrementAndGet();
+            bytesIn.addAndGet(message.length());
+            if (!reader.reset(message)) {
+                return;
+            }
+            if (reader.stringEquals("type", "hello")) {
+                id = reader.getInt("id", -1);
+                botsById.put(id, this);
+                hello.countDown();
+            } else if (reader.stringEquals("type", "chunks") || reader.stringEquals("type", "chunk")) {
+                for (int at = message.indexOf("\"key\":\""); at >= 0; at = message.indexOf("\"key\":\"", at + 1)) {
+                    int start = at + 7;
+                    int comma = message.indexOf(',', start);
+                    int end = message.indexOf('"', start);
+                    chunkArrived(ChunkCache.key(JsonReader.parseInt(message, start, comma, 0),
+                            JsonReader.parseInt(message, comma + 1, end, 0)), now);
+                }
+            } else if (reader.stringEquals("type", "block")) {
+                blockArrived(reader.getInt("x", 0), reader.getInt("y", 0), now);
+            } else if (reader.stringEquals("type", "snapshot")) {
+                int field = reader.find("p");
+                int[] p = field < 0 ? new int[0] : numbers(message, reader.valueStart(field), reader.valueEnd(field));
+                List<int[]> entries = new ArrayList<>();
+                for (int i = 0; i + 1 < p.length;) {
+                    boolean removed = p[i + 1] == SnapshotBroadcaster.REMOVED;
+                    entries.add(removed ? new int[] { p[i], p[i + 1] } : new int[] { p[i], p[i + 1], p[i + 2], p[i + 3] });
+                    i += removed ? 2 : 4;
+                }
+                snapshotArrived(reader.getInt("seq", 0), reader.getInt("base", 0), entries, now);
+            }
+        }
+
+        @Override
+        public void onMessage(ByteBuffer buf) {
+            long now = System.nanoTime();
+            framesIn.incrementAndGet();
+            bytesIn.addAndGet(buf.remaining());
+            byte type = buf.get();
+            if (type == Protocol.S_CHUNKS) {
+                int n = buf.getShort() & 0xFFFF;
+                for (int i = 0; i < n; i++) {
+                    int cx = buf.getInt();
+                    int cy = buf.getInt();
+                    int len = buf.getShort() & 0xFFFF;
+                    buf.position(buf.position() + len);
+                    chunkArrived(ChunkCache.key(cx, cy), now);
+                }
+            } else if (type == Protocol.S_CHUNK) {
+                chunkArrived(ChunkCache.key(buf.getInt(), buf.getInt()), now);
+            } else if (type == Protocol.S_BLOCK) {
+                blockArrived(buf.getInt(), buf.getInt(), now);
+            } else if (type == Protocol.S_SNAPSHOT) {
+                int seq = buf.getInt();
+                int base = buf.getInt();
+                int n = buf.getShort() & 0xFFFF;
+                List<int[]> entries = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    int player = buf.getInt();
+                    int kind = buf.get();
+                    entries.add(kind == SnapshotBroadcaster.ABSOLUTE ? new int[] { player, kind, buf.getInt(), buf.getInt() }
+                            : kind == SnapshotBroadcaster.DELTA ? new int[] { player, kind, buf.getShort(), buf.getShort() }
+                                    : new int[] { player, kind });
+                }
+                snapshotArrived(seq, base, entries, now);
+            }
+        }
+
+        private void chunkArrived(long key, long now) {
+            synchronized (this) {
+                Iterator<Set<Long>> it = pendingKeys.iterator();
+                Iterator<long[]> times = pendingRequests.iterator();
+                while (it.hasNext()) {
+                    Set<Long> keys = it.next();
+                    long sent = times.next()[0];
+                    if (keys.remove(key) && keys.isEmpty()) {
+                        stats[GET_CHUNKS].record(now - sent);
+                        it.remove();
+                        times.remove();
+                    }
+                }
+            }
+        }
+
+        private void blockArrived(int x, int y, long now) {
+            Long sent;
+            synchronized (this) {
+                sent = pendingEdits.remove((long) x << 32 | (y & 0xFFFFFFFFL));
+            }
+            if (sent != null) {
+                stats[SET_BLOCK].record(now - sent);
+            }
+        }
+
+        // Rebuilds the snapshot from its base, times newly seen positions of other bots, and acks it
+        private void snapshotArrived(int seq, int base, List<int[]> entries, long now) {
+            Map<Integer, Long> baseline = base == 0 ? Map.of() : snapshots.get(base);
+            if (baseline == null) {
+                return; // Too old; the server moves on once we ack something newer
+            }
+            Map<Integer, Long> state = new HashMap<>(baseline);
+            for (int[] e : entries) {
+                if (e[1] == SnapshotBroadcaster.REMOVED) {
+                    state.remove(e[0]);
+                    continue;
+                }
+                long q;
+                if (e[1] == SnapshotBroadcaster.ABSOLUTE) {
+                    q = (long) e[2] << 32 | (e[3] & 0xFFFFFFFFL);
+                } else {
+                    long b = baseline.getOrDefault(e[0], 0L);
+                    q = (long) ((int) (b >> 32) + e[2]) << 32 | (((int) b + e[3]) & 0xFFFFFFFFL);
+                }
+                state.put(e[0], q);
+                Bot other = botsById.get(e[0]);
+                if (other != null && other != this && !Long.valueOf(q).equals(lastSeen.put(e[0], q))) {
+                    long sent = other.sentAt(q);
+                    if (sent != 0) {
+                        stats[POS].record(now - sent);
+                    }
+                }
+            }
+            snapshots.put(seq, state);
+            snapshots.keySet().removeIf(s -> s < base);
+            try {
+                if (BINARY) {
+                    send(ByteBuffer.allocate(5).put(Protocol.ACK).putInt(seq).flip());
+                } else {
+                    send("{\"type\":\"ack\",\"seq\":" + seq + "}");
+                }
+            } catch (WebsocketNotConnectedException e) {
+                // Closed meanwhile (end of run)
+            }
+        }
+
+        // When this bot sent position q (snapshot units), or 0 if no longer remembered
+        synchronized long sentAt(long q) {
+            for (int i = 1; i <= SENT_POSITIONS; i++) {
+                int slot = (sentPositionNext - i + SENT_POSITIONS) % SENT_POSITIONS;
+                if (sentPositions[slot] == q) {
+                    return sentPositionTimes[slot];
+                }
+            }
+            return 0;
+        }
+
+        // Integers of a JSON array section, in order, ignoring brackets
+        private static int[] numbers(String s, int from, int to) {
+            int[] out = new int[16];
+            int n = 0;
+            for (int i = from; i < to; i++) {
+                char c = s.charAt(i);
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    int end = i + 1;
+                    while (end < to && Character.isDigit(s.charAt(end))) {
+                        end++;
+                    }
+                    if (n == out.length) {
+                        out = Arrays.copyOf(out, n * 2);
+                    }
+                    out[n++] = JsonReader.parseInt(s, i, end, 0);
+                    i = end - 1;
+                }
+            }
+            return Arrays.copyOf(out, n);
+        }
+
+        @Override
+        public void onClose(int code, String reason, boolean remote) {
+            if (!stopping) {
+                disconnects.incrementAndGet();
+                System.err.println("Player " + id + " disconnected: " + code + " " + reason);
+            }
+            hello.countDown();
+        }
+
+        @Override
+        public void onError(Exception e) {
+            if (!stopping) {
+                System.err.println("Player " + id + ": " + e);
+            }
+        }
+    }
+}
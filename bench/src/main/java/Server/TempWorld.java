@@ -0,0 +1,39 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+
+/**
+ * A throwaway world database for benchmarks: opened through
+ * {@link Main#openDatabase} like the real server, filled with generated chunks,
+ * and deleted (with its WAL files) on close.
+ */
+final class TempWorld {
+    private final Path file;
+
+    private TempWorld(Path file) {
+        this.file = file;
+    }
+
+    /** Opens a fresh world and stores the size x size chunks starting at (cx0, cy0). */
+    static TempWorld open(int cx0, int cy0, int size) throws IOException, SQLException {
+        Path file = Files.createTempFile("tyls-bench", ".db");
+        Database db = Main.openDatabase("jdbc:sqlite:" + file);
+        for (int cy = cy0; cy < cy0 + size; cy++) {
+            for (int cx = cx0; cx < cx0 + size; cx++) {
+                Main.getChunkTiles(cx, cy); // Generates and queues the insert
+            }
+        }
+        db.writeSync(c -> null); // Inserts are queued on the writer; wait for them
+        return new TempWorld(file);
+    }
+
+    void close() throws IOException {
+        Main.closeDatabase();
+        for (String suffix : new String[] { "", "-wal", "-shm" }) {
+            Files.deleteIfExists(Path.of(file + suffix));
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package Server;
+
+import org.openjdk.jmh.annotations.*;
+import java.util.concurrent.TimeUnit;
+
+/** Terrain generation: a single noise sample, one chunk, and a row of chunks as pre-generation asks for it. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WorldGenBenchmark {
+    private static final int ROW_CHUNKS = 64;
+
+    private final TerrainGenerator terrain = new TerrainGenerator(12345);
+    private int i = 0;
+
+    @Benchmark
+    public double noise() {
+        i++;
+        return terrain.noise((i & 1023) * 0.04, (i >> 10 & 1023) * 0.04);
+    }
+
+    // Chunks away from the uniform spawn area, walking a 64 x 64 block of the world
+    @Benchmark
+    public byte[] generate() {
+        i++;
+        return terrain.generate(100 + (i & 63), 100 + (i >> 6 & 63));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROW_CHUNKS)
+    public byte[][] generateRow() {
+        i++;
+        return terrain.generateRow(100, 100 + (i & 63), ROW_CHUNKS);
+    }
+}
@@ -0,0 +1,36 @@
+package Server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+class BlockEditsTest {
+    private static BlockEdits parse(String json) {
+        JsonReader msg = new JsonReader();
+        return msg.reset(json) ? BlockEdits.parse(json, msg) : null;
+    }
+
+    @Test
+    void acceptsValuesInByteRange() {
+        BlockEdits edits = parse("{\"type\":\"setBlocks\",\"edits\":[1,2,0,3,4,255],\"fill\":[0,0,9,9,255],"
+                + "\"replace\":[0,0,9,9,0,7]}");
+        assertNotNull(edits);
+        assertEquals(4, edits.size());
+    }
+
+    @Test
+    void rejectsValuesOutsideByteRange() {
+        assertNull(parse("{\"type\":\"setBlocks\",\"fill\":[0,0,9,9,300]}"));
+        assertNull(parse("{\"type\":\"setBlocks\",\"fill\":[0,0,9,9,-1]}"));
+        assertNull(parse("{\"type\":\"setBlocks\",\"edits\":[1,2,256]}"));
+        assertNull(parse("{\"type\":\"setBlocks\",\"replace\":[0,0,9,9,300,1]}"));
+        assertNull(parse("{\"type\":\"setBlocks\",\"replace\":[0,0,9,9,1,-5]}"));
+    }
+
+    @Test
+    void coordinatesMayBeNegative() {
+        assertNotNull(parse("{\"type\":\"setBlocks\",\"edits\":[-1,-300,5],\"fill\":[-20,-20,-1,-1,3]}"));
+    }
+}
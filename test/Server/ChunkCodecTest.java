@@ -0,0 +1,51 @@
+package Server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+class ChunkCodecTest {
+    private static final int TILES = TerrainGenerator.TILES_PER_CHUNK;
+
+    // One chunk per encoding: uniform, bit-packed (noisy), run-length (stripes)
+    private static byte[][] samples() {
+        byte[] uniform = new byte[TILES];
+        Arrays.fill(uniform, (byte) 5);
+        byte[] packed = new byte[TILES];
+        for (int i = 0; i < TILES; i++) {
+            packed[i] = (byte) (i * 7 % 5);
+        }
+        byte[] rle = new byte[TILES];
+        for (int i = 0; i < TILES; i++) {
+            rle[i] = (byte) (i < TILES / 2 ? 1 : 200);
+        }
+        return new byte[][] { uniform, packed, rle };
+    }
+
+    @Test
+    void roundTrips() {
+        for (byte[] tiles : samples()) {
+            assertArrayEquals(tiles, ChunkCodec.decode(ChunkCodec.encode(tiles), TILES));
+        }
+    }
+
+    @Test
+    void truncatedBlobsDecodeToNull() {
+        for (byte[] tiles : samples()) {
+            byte[] encoded = ChunkCodec.encode(tiles);
+            for (int len = 1; len < encoded.length; len++) {
+                assertNull(ChunkCodec.decode(Arrays.copyOf(encoded, len), TILES), "length " + len);
+            }
+        }
+    }
+
+    @Test
+    void paletteIndexOutOfRangeDecodesToNull() {
+        byte[] rle = ChunkCodec.encode(samples()[2]);
+        rle[rle.length - 2] = (byte) 200; // Palette has 2 entries
+        assertNull(ChunkCodec.decode(rle, TILES));
+    }
+}
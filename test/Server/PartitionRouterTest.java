@@ -0,0 +1,32 @@
+package Server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import org.junit.jupiter.api.Test;
+
+class PartitionRouterTest {
+    private static long[] keys(String json) {
+        JsonReader msg = new JsonReader();
+        msg.reset(json);
+        return PartitionRouter.chunkKeys(json, msg);
+    }
+
+    @Test
+    void singleKey() {
+        assertArrayEquals(new long[] { ChunkCache.key(-3, 7) }, keys("{\"type\":\"getChunk\",\"key\":\"-3,7\"}"));
+    }
+
+    @Test
+    void keysOfChunksReply() {
+        assertArrayEquals(new long[] { ChunkCache.key(0, 0), ChunkCache.key(1, -1) },
+                keys("{\"type\":\"chunks\",\"list\":[{\"key\":\"0,0\",\"ver\":2,\"d\":[18,8]},"
+                        + "{\"key\":\"1,-1\",\"ver\":0}]}"));
+    }
+
+    @Test
+    void saveKeysIgnoreKeyFieldsOutsideTheChunksArray() {
+        assertArrayEquals(new long[] { ChunkCache.key(2, 3) },
+                keys("{\"type\":\"save\",\"player\":{\"x\":1,\"y\":2,\"key\":\"9,9\"},"
+                        + "\"chunks\":[{\"key\":\"2,3\",\"data\":\"[1,2]\",\"meta\":{\"key\":\"8,8\"}}]}"));
+    }
+}
@@ -0,0 +1,91 @@
+package Server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class WorldSnapshotRestoreTest {
+    private static final int TILES = TerrainGenerator.TILES_PER_CHUNK;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void deleteThenReputInLaterIncrementalSurvivesSqliteRestore() throws Exception {
+        restoreChain("sqlite");
+    }
+
+    @Test
+    void deleteThenReputInLaterIncrementalSurvivesRegionRestore() throws Exception {
+        restoreChain("region");
+    }
+
+    // Full: chunks A and B. Incremental 1: both deleted. Incremental 2: A put back.
+    private void restoreChain(String kind) throws Exception {
+        Database db = new Database("jdbc:sqlite:" + dir.resolve("world.db"), 2);
+        List<Path> chain;
+        try {
+            Main.createSchema(db);
+            SqliteChunkStore store = new SqliteChunkStore(db, TILES);
+            ChunkVersions versions = new ChunkVersions(db, 1024);
+            WorldSnapshots snapshots = new WorldSnapshots(db, store, versions, dir.resolve("snapshots"), 0, 24);
+
+            write(store, versions, 0, 0, tiles(1));
+            write(store, versions, 1, 0, tiles(2));
+            Path full = snapshots.start(true).join().file;
+            write(store, versions, 0, 0, null);
+            write(store, versions, 1, 0, null);
+            Path incr1 = snapshots.start(false).join().file;
+            write(store, versions, 0, 0, tiles(3));
+            Path incr2 = snapshots.start(false).join().file;
+            assertNotNull(incr2);
+            chain = List.of(full, incr1, incr2);
+            store.close();
+        } finally {
+            db.close();
+        }
+
+        Database target = new Database("jdbc:sqlite:" + dir.resolve("restored.db"), 2);
+        try {
+            Main.createSchema(target);
+            ChunkStore store = "region".equals(kind) ? new RegionChunkStore(dir.resolve("regions"), target, TILES)
+                    : new SqliteChunkStore(target, TILES);
+            try {
+                WorldSnapshotRestore.restore(target, store, kind, chain);
+                assertArrayEquals(tiles(3), store.read(0, 0));
+                assertNull(store.read(1, 0));
+            } finally {
+                store.close();
+            }
+        } finally {
+            target.close();
+        }
+    }
+
+    // A put (tiles) or delete (null) under a new chunk version, persisted like an edit flush
+    private static void write(ChunkStore store, ChunkVersions versions, int cx, int cy, byte[] tiles)
+            throws Exception {
+        long version = versions.edits(cx, cy, new int[0])[1];
+        ChunkStore.Batch batch = new ChunkStore.Batch(Metrics.DB_EDIT_FLUSH).version(cx, cy, version);
+        if (tiles == null) {
+            batch.delete(cx, cy);
+        } else {
+            batch.put(cx, cy, ChunkCodec.encode(tiles));
+        }
+        store.writeSync(batch);
+        versions.persisted(batch);
+    }
+
+    private static byte[] tiles(int value) {
+        byte[] tiles = new byte[TILES];
+        Arrays.fill(tiles, (byte) value);
+        return tiles;
+    }
+}